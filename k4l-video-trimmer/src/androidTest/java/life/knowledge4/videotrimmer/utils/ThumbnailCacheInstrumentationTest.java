@@ -0,0 +1,149 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs on a device, since the memory cache holds real bitmaps and the disk cache
+ * compresses them.
+ */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailCacheInstrumentationTest {
+
+    private static final int SIZE = 512;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "thumbnail-cache-test");
+        deleteDirectory();
+    }
+
+    @After
+    public void tearDown() {
+        deleteDirectory();
+    }
+
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static Bitmap createThumbnail(int color) {
+        Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        return bitmap;
+    }
+
+    /**
+     * Puts more thumbnails than the memory cache holds, an eighth of the heap.
+     *
+     * @return the key of the last one
+     */
+    private static String fillMemory(ThumbnailCache cache) {
+        long count = Runtime.getRuntime().maxMemory() / 8 / (SIZE * SIZE * 4) + 2;
+        String key = null;
+        for (int i = 0; i < count; i++) {
+            key = ThumbnailCache.getKey("filler", i, SIZE, SIZE);
+            cache.put(key, createThumbnail(Color.BLACK));
+        }
+        return key;
+    }
+
+    @Test
+    public void memory_evictsLeastRecentlyUsedOverItsByteLimit() {
+        ThumbnailCache cache = new ThumbnailCache(null, 0);
+        String key = ThumbnailCache.getKey("memory", 0, SIZE, SIZE);
+        Bitmap thumbnail = createThumbnail(Color.RED);
+        cache.put(key, thumbnail);
+        assertSame(thumbnail, cache.get(key));
+        assertSame(thumbnail, cache.getFromMemory(key));
+
+        String last = fillMemory(cache);
+        assertNull(cache.get(key));
+        assertNotNull(cache.get(last));
+    }
+
+    @Test
+    public void disk_keepsThumbnailsEvictedFromMemory() {
+        ThumbnailCache cache = new ThumbnailCache(mDirectory, 1024 * 1024);
+        String key = ThumbnailCache.getKey("disk", 0, SIZE, SIZE);
+        Bitmap thumbnail = createThumbnail(Color.RED);
+        cache.put(key, thumbnail);
+        File file = new File(mDirectory, key + ".jpg");
+        assertTrue(file.isFile());
+        assertNotNull(BitmapFactory.decodeFile(file.getPath()));
+
+        fillMemory(new ThumbnailCache(null, 0));
+        assertNull(cache.getFromMemory(key));
+        Bitmap decoded = cache.get(key);
+        assertNotNull(decoded);
+        assertSame(decoded, cache.getFromMemory(key));
+        assertNotSame(thumbnail, decoded);
+        assertEquals(SIZE, decoded.getWidth());
+        assertEquals(SIZE, decoded.getHeight());
+        // compressed, so only about red
+        int pixel = decoded.getPixel(SIZE / 2, SIZE / 2);
+        assertTrue(Color.red(pixel) > 200 && Color.green(pixel) < 50 && Color.blue(pixel) < 50);
+    }
+
+    @Test
+    public void disk_evictsLeastRecentlyUsedOverItsLimit() {
+        // a plain color compresses to a few kilobytes
+        ThumbnailCache cache = new ThumbnailCache(mDirectory, 1);
+        String first = ThumbnailCache.getKey("disk", 0, SIZE, SIZE);
+        String second = ThumbnailCache.getKey("disk", 1, SIZE, SIZE);
+        cache.put(first, createThumbnail(Color.RED));
+        cache.put(second, createThumbnail(Color.GREEN));
+        assertTrue(new File(mDirectory, second + ".jpg").isFile());
+        assertEquals(1, mDirectory.list().length);
+    }
+}
@@ -31,6 +31,7 @@ import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.GestureDetector;
@@ -53,8 +54,18 @@ import java.util.List;
 import life.knowledge4.videotrimmer.interfaces.OnK4LVideoListener;
 import life.knowledge4.videotrimmer.interfaces.OnProgressVideoListener;
 import life.knowledge4.videotrimmer.interfaces.OnRangeSeekBarListener;
+import life.knowledge4.videotrimmer.interfaces.OnRangeSeekBarZoomListener;
+import life.knowledge4.videotrimmer.interfaces.OnTrimMetricsListener;
 import life.knowledge4.videotrimmer.interfaces.OnTrimVideoListener;
+import life.knowledge4.videotrimmer.interfaces.Tracer;
+import life.knowledge4.videotrimmer.mp4.TrimMetrics;
+import life.knowledge4.videotrimmer.mp4.TrimOptions;
 import life.knowledge4.videotrimmer.utils.BackgroundExecutor;
+import life.knowledge4.videotrimmer.utils.Mp4IndexLoader;
+import life.knowledge4.videotrimmer.utils.SpeculativeExporter;
+import life.knowledge4.videotrimmer.utils.Tracing;
+import life.knowledge4.videotrimmer.utils.ThumbnailCache;
+import life.knowledge4.videotrimmer.utils.TrimResultCache;
 import life.knowledge4.videotrimmer.utils.TrimVideoUtils;
 import life.knowledge4.videotrimmer.utils.UiThreadExecutor;
 import life.knowledge4.videotrimmer.view.ProgressBarView;
@@ -69,6 +80,9 @@ public class K4LVideoTrimmer extends FrameLayout {
     private static final String TAG = K4LVideoTrimmer.class.getSimpleName();
     private static final int MIN_TIME_FRAME = 1000;
     private static final int SHOW_PROGRESS = 2;
+    private static final int SPECULATIVE_EXPORT_DELAY = 1000;
+    // trims and the cleanup of interrupted ones run one after the other
+    private static final String TRIM_SERIAL = "K4LVideoTrimmer:trim";
 
     private SeekBar mHolderTopView;
     private RangeSeekBarView mRangeSeekBarView;
@@ -83,6 +97,10 @@ public class K4LVideoTrimmer extends FrameLayout {
 
     private ProgressBarView mVideoProgressIndicator;
     private Uri mSrc;
+    private Mp4IndexLoader mIndexLoader;
+    private SpeculativeExporter mSpeculativeExporter;
+    private final TrimOptions mTrimOptions = new TrimOptions();
+    private TrimResultCache mResultCache;
     private String mFinalPath;
 
     private int mMaxDuration;
@@ -98,6 +116,7 @@ public class K4LVideoTrimmer extends FrameLayout {
 
     private long mOriginSizeFile;
     private boolean mResetSeekBar = true;
+    private boolean mKeyFrameThumbnails;
     private final MessageHandler mMessageHandler = new MessageHandler(this);
 
     public K4LVideoTrimmer(@NonNull Context context, AttributeSet attrs) {
@@ -208,6 +227,12 @@ public class K4LVideoTrimmer extends FrameLayout {
             }
         });
         mRangeSeekBarView.addOnRangeSeekBarListener(mVideoProgressIndicator);
+        mRangeSeekBarView.addOnRangeSeekBarZoomListener(new OnRangeSeekBarZoomListener() {
+            @Override
+            public void onZoom(RangeSeekBarView rangeSeekBarView, float windowStart, float windowEnd) {
+                mTimeLineView.setWindow(windowStart / 100, windowEnd / 100);
+            }
+        });
 
         mHolderTopView.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
@@ -270,7 +295,9 @@ public class K4LVideoTrimmer extends FrameLayout {
             mediaMetadataRetriever.setDataSource(getContext(), mSrc);
             long METADATA_KEY_DURATION = Long.parseLong(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
 
-            final File file = new File(mSrc.getPath());
+            final Mp4IndexLoader indexLoader = mIndexLoader;
+            final SpeculativeExporter speculativeExporter = mOnTrimVideoListener != null ? mSpeculativeExporter : null;
+            final TrimResultCache resultCache = mResultCache;
 
             if (mTimeVideo < MIN_TIME_FRAME) {
 
@@ -286,11 +313,14 @@ public class K4LVideoTrimmer extends FrameLayout {
                 mOnTrimVideoListener.onTrimStarted();
 
             BackgroundExecutor.execute(
-                    new BackgroundExecutor.Task("", 0L, "") {
+                    new BackgroundExecutor.Task("", 0L, TRIM_SERIAL) {
                         @Override
                         public void execute() {
                             try {
-                                TrimVideoUtils.startTrim(file, getDestinationPath(), mStartPosition, mEndPosition, mOnTrimVideoListener);
+                                if (speculativeExporter == null
+                                        || !speculativeExporter.deliver(indexLoader, getDestinationPath(), mStartPosition, mEndPosition, mTrimOptions, resultCache, mOnTrimVideoListener)) {
+                                    TrimVideoUtils.startTrim(indexLoader, getDestinationPath(), mStartPosition, mEndPosition, mTrimOptions, resultCache, mOnTrimVideoListener);
+                                }
                             } catch (final Throwable e) {
                                 Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
                             }
@@ -320,6 +350,16 @@ public class K4LVideoTrimmer extends FrameLayout {
 
     private void onCancelClicked() {
         mVideoView.stopPlayback();
+        if (mTrimOptions.isResumable()) {
+            // after any running trim, which either completes or is interrupted
+            final String dst = getDestinationPath();
+            BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, TRIM_SERIAL) {
+                @Override
+                public void execute() {
+                    TrimVideoUtils.discardResumableTrims(dst);
+                }
+            });
+        }
         if (mOnTrimVideoListener != null) {
             mOnTrimVideoListener.cancelAction();
         }
@@ -448,12 +488,24 @@ public class K4LVideoTrimmer extends FrameLayout {
 
         setTimeFrames();
         mTimeVideo = mEndPosition - mStartPosition;
+
+        if (mSpeculativeExporter != null) {
+            mSpeculativeExporter.cancel();
+        }
     }
 
     private void onStopSeekThumbs() {
         mMessageHandler.removeMessages(SHOW_PROGRESS);
         mVideoView.pause();
         mPlayView.setVisibility(View.VISIBLE);
+
+        if (mSpeculativeExporter != null && mIndexLoader != null) {
+            if (mStartPosition <= 0 && mEndPosition >= mDuration) {
+                mSpeculativeExporter.cancel();
+            } else {
+                mSpeculativeExporter.schedule(mIndexLoader, getDestinationPath(), mStartPosition, mEndPosition, mTrimOptions, SPECULATIVE_EXPORT_DELAY);
+            }
+        }
     }
 
     private void onVideoCompleted() {
@@ -546,10 +598,145 @@ public class K4LVideoTrimmer extends FrameLayout {
      * Cancel all current operations
      */
     public void destroy() {
+        if (mIndexLoader != null) {
+            mIndexLoader.cancel();
+        }
+        if (mSpeculativeExporter != null) {
+            mSpeculativeExporter.cancel();
+        }
         BackgroundExecutor.cancelAll("", true);
         UiThreadExecutor.cancelAll("");
     }
 
+    /**
+     * Export the selected range in the background once the user stops moving the thumbs,
+     * so that saving an unchanged range returns the video at once.
+     * Disabled by default
+     *
+     * @param ioBudgetBytes the most bytes that may be written by exports of ranges that are not saved, 0 to disable
+     */
+    @SuppressWarnings("unused")
+    public void setSpeculativeExportBudget(long ioBudgetBytes) {
+        if (mSpeculativeExporter != null) {
+            mSpeculativeExporter.cancel();
+        }
+        mSpeculativeExporter = ioBudgetBytes > 0 ? new SpeculativeExporter(ioBudgetBytes) : null;
+    }
+
+    /**
+     * Keep a journal of the progress of the trim, so that saving the same range again
+     * after the app was killed continues the interrupted trim instead of starting over.
+     * Cancelling the trimmer deletes what interrupted trims left in the destination folder.
+     * Disabled by default
+     *
+     * @param resumable whether trims can be resumed
+     */
+    @SuppressWarnings("unused")
+    public void setResumableTrim(boolean resumable) {
+        mTrimOptions.setResumable(resumable);
+    }
+
+    /**
+     * Keep trimmed videos in a folder and hand out the kept file when the same range of the
+     * same video is saved again with the same options. From Android 5.0, with the folder and
+     * the destination on the same storage, files are linked rather than copied in and out.
+     * The least recently used videos are deleted when the folder goes over the size limit.
+     * Disabled by default
+     *
+     * @param directory folder used only for the kept videos, or null to disable the cache
+     * @param maxBytes  size limit of the folder in bytes
+     */
+    @SuppressWarnings("unused")
+    public void setResultCache(@Nullable File directory, long maxBytes) {
+        mResultCache = directory != null ? new TrimResultCache(directory, maxBytes) : null;
+    }
+
+    /**
+     * Keep the thumbnails of the timeline in a folder, so that opening a video again
+     * draws its timeline without extracting frames. Thumbnails are always kept in memory.
+     * Disabled by default
+     *
+     * @param directory folder used only for the thumbnails, or null to keep them in memory only
+     * @param maxBytes  size limit of the folder in bytes
+     */
+    @SuppressWarnings("unused")
+    public void setThumbnailCache(@Nullable File directory, long maxBytes) {
+        mTimeLineView.setThumbnailCache(new ThumbnailCache(directory, maxBytes));
+    }
+
+    /**
+     * Extract the thumbnails of the timeline with several decoders at once, each taking a
+     * part of the video. Capped to the number of cores.
+     * By default thumbnails are extracted one at a time
+     *
+     * @param parallelism the number of decoders
+     */
+    @SuppressWarnings("unused")
+    public void setThumbnailParallelism(int parallelism) {
+        mTimeLineView.setThumbnailParallelism(parallelism);
+    }
+
+    /**
+     * Take the thumbnails of the timeline at the key frames of the video, read from its
+     * index, so that no key frame is decoded twice and neighbouring thumbnails differ.
+     * Applies to videos set afterwards. By default thumbnails are evenly spaced
+     *
+     * @param keyFrames whether thumbnails are moved to key frames
+     */
+    @SuppressWarnings("unused")
+    public void setKeyFrameThumbnails(boolean keyFrames) {
+        mKeyFrameThumbnails = keyFrames;
+    }
+
+    /**
+     * Let the user pinch the timeline to zoom into a part of the video, and scroll it by
+     * dragging away from the thumbs. The thumbnails of the visible part are extracted as
+     * the zoom changes. Disabled by default
+     *
+     * @param zoom whether the timeline can be zoomed
+     */
+    @SuppressWarnings("unused")
+    public void setTimeLineZoom(boolean zoom) {
+        mRangeSeekBarView.setZoomEnabled(zoom);
+    }
+
+    /**
+     * Receive the metrics of every trimmed video written, on the background thread of
+     * the trim. Videos trimmed by mp4parser and kept videos handed out only report part of
+     * the metrics, see {@link TrimMetrics}
+     *
+     * @param listener the metrics listener, or null to stop receiving them
+     */
+    @SuppressWarnings("unused")
+    public void setOnTrimMetricsListener(@Nullable OnTrimMetricsListener listener) {
+        mTrimOptions.setMetricsListener(listener);
+    }
+
+    /**
+     * Verify trimmed videos while writing them, and compute a digest of each on the way.
+     * The digest is in the metrics, see {@link #setOnTrimMetricsListener(OnTrimMetricsListener)}.
+     * Disabled by default
+     *
+     * @param digestAlgorithm {@link TrimOptions#DIGEST_CRC32}, {@link TrimOptions#DIGEST_SHA256},
+     *                        or null to disable verification
+     */
+    @SuppressWarnings("unused")
+    public void setVerifyTrim(@Nullable String digestAlgorithm) {
+        mTrimOptions.setDigestAlgorithm(digestAlgorithm);
+    }
+
+    /**
+     * Cut the trimmed video into chunks of the given duration, written in time order, so
+     * that the audio and video of a moment are next to each other in the file.
+     * By default the chunk layout of the source is kept
+     *
+     * @param durationMs chunk duration in milliseconds, 0 to keep the source layout
+     */
+    @SuppressWarnings("unused")
+    public void setInterleaveDuration(long durationMs) {
+        mTrimOptions.setInterleaveDurationMs(durationMs);
+    }
+
     /**
      * Set the maximum duration of the trimmed video.
      * The trimmer interface wont allow the user to set duration longer than maxDuration
@@ -587,6 +774,17 @@ public class K4LVideoTrimmer extends FrameLayout {
         mVideoView.setVideoURI(mSrc);
         mVideoView.requestFocus();
 
+        // Index the source while the user picks the range, so that saving does not have to
+        if (mIndexLoader != null) {
+            mIndexLoader.cancel();
+        }
+        if (mSpeculativeExporter != null) {
+            mSpeculativeExporter.cancel();
+        }
+        mIndexLoader = new Mp4IndexLoader(new File(mSrc.getPath()));
+        mIndexLoader.preload();
+
+        mTimeLineView.setIndexLoader(mKeyFrameThumbnails ? mIndexLoader : null);
         mTimeLineView.setVideo(mSrc);
     }
 
@@ -606,7 +804,14 @@ public class K4LVideoTrimmer extends FrameLayout {
                 return;
             }
 
-            view.notifyProgressUpdate(true);
+            Tracer tracer = Tracing.getTracer();
+            tracer.beginSection(Tracing.SECTION_PROGRESS);
+            try {
+                view.notifyProgressUpdate(true);
+            } finally {
+                tracer.endSection();
+            }
+            tracer.setCounter(Tracing.COUNTER_POSITION_MS, view.mVideoView.getCurrentPosition());
             if (view.mVideoView.isPlaying()) {
                 sendEmptyMessageDelayed(0, 10);
             }
@@ -0,0 +1,153 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Buffered big-endian reader over a region of a {@link FileChannel}. Uses
+ * positional reads so the channel position is never touched.
+ */
+final class ChannelReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private long mFilePosition;
+
+    ChannelReader(@NonNull FileChannel channel, long position) {
+        this(channel, position, BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize how much is read at once, small for readers that mostly seek
+     */
+    ChannelReader(@NonNull FileChannel channel, long position, int bufferSize) {
+        mChannel = channel;
+        mBuffer = ByteBuffer.allocate(Math.max(16, bufferSize));
+        mBuffer.limit(0);
+        mFilePosition = position;
+    }
+
+    long position() {
+        return mFilePosition - mBuffer.remaining();
+    }
+
+    void seek(long position) {
+        long bufferStart = mFilePosition - mBuffer.limit();
+        if (position >= bufferStart && position <= mFilePosition) {
+            // still buffered
+            mBuffer.position((int) (position - bufferStart));
+            return;
+        }
+        mBuffer.limit(0);
+        mFilePosition = position;
+    }
+
+    void skip(long count) {
+        if (count <= mBuffer.remaining()) {
+            mBuffer.position(mBuffer.position() + (int) count);
+        } else {
+            seek(position() + count);
+        }
+    }
+
+    int readUnsignedByte() throws IOException {
+        ensure(1);
+        return mBuffer.get() & 0xFF;
+    }
+
+    int readUnsignedShort() throws IOException {
+        ensure(2);
+        return mBuffer.getShort() & 0xFFFF;
+    }
+
+    int readInt() throws IOException {
+        ensure(4);
+        return mBuffer.getInt();
+    }
+
+    long readUnsignedInt() throws IOException {
+        return readInt() & 0xFFFFFFFFL;
+    }
+
+    long readLong() throws IOException {
+        ensure(8);
+        return mBuffer.getLong();
+    }
+
+    /**
+     * Reads an unsigned 32 bit value that is used as a count or an index.
+     */
+    int readCount() throws IOException {
+        long value = readUnsignedInt();
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Value too large at " + (position() - 4) + ": " + value);
+        }
+        return (int) value;
+    }
+
+    String readType() throws IOException {
+        ensure(4);
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) {
+            chars[i] = (char) (mBuffer.get() & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    void readFully(@NonNull byte[] dst) throws IOException {
+        int done = 0;
+        while (done < dst.length) {
+            if (!mBuffer.hasRemaining()) {
+                ensure(1);
+            }
+            int count = Math.min(dst.length - done, mBuffer.remaining());
+            mBuffer.get(dst, done, count);
+            done += count;
+        }
+    }
+
+    private void ensure(int count) throws IOException {
+        if (mBuffer.remaining() >= count) {
+            return;
+        }
+        mBuffer.compact();
+        while (mBuffer.position() < count) {
+            int read = mChannel.read(mBuffer, mFilePosition);
+            if (read < 0) {
+                mBuffer.flip();
+                throw new EOFException("Unexpected end of file at " + mFilePosition);
+            }
+            mFilePosition += read;
+        }
+        mBuffer.flip();
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
+
+/**
+ * Buffered big-endian writer appending to a {@link FileChannel}.
+ */
+final class ChannelWriter {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private long mFilePosition;
+    private Checksum mChecksum;
+    private int mChecksumMark;
+    private OutputDigest mDigest;
+    private long mReadCount;
+    private long mBytesRead;
+    private long mWriteCount;
+    private long mBytesWritten;
+
+    ChannelWriter(@NonNull FileChannel channel, long position) {
+        mChannel = channel;
+        mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        mFilePosition = position;
+    }
+
+    long position() {
+        return mFilePosition + mBuffer.position();
+    }
+
+    /**
+     * Feeds every byte written from now on to <code>checksum</code>, or stops feeding the
+     * current one when null.
+     */
+    void setChecksum(Checksum checksum) {
+        updateChecksum();
+        mChecksum = checksum;
+    }
+
+    /**
+     * Feeds every byte reaching the channel from now on to <code>digest</code>.
+     */
+    void setDigest(OutputDigest digest) throws IOException {
+        flush();
+        mDigest = digest;
+    }
+
+    private void updateChecksum() {
+        if (mChecksum != null && mBuffer.position() > mChecksumMark) {
+            mChecksum.update(mBuffer.array(), mChecksumMark, mBuffer.position() - mChecksumMark);
+        }
+        mChecksumMark = mBuffer.position();
+    }
+
+    void writeByte(int value) throws IOException {
+        ensure(1);
+        mBuffer.put((byte) value);
+    }
+
+    void writeShort(int value) throws IOException {
+        ensure(2);
+        mBuffer.putShort((short) value);
+    }
+
+    void writeInt(int value) throws IOException {
+        ensure(4);
+        mBuffer.putInt(value);
+    }
+
+    void writeUnsignedInt(long value) throws IOException {
+        writeInt((int) value);
+    }
+
+    void writeLong(long value) throws IOException {
+        ensure(8);
+        mBuffer.putLong(value);
+    }
+
+    void writeType(@NonNull String type) throws IOException {
+        ensure(4);
+        for (int i = 0; i < 4; i++) {
+            mBuffer.put((byte) type.charAt(i));
+        }
+    }
+
+    void write(@NonNull byte[] src) throws IOException {
+        write(src, 0, src.length);
+    }
+
+    void write(@NonNull byte[] src, int offset, int length) throws IOException {
+        while (length > 0) {
+            ensure(1);
+            int count = Math.min(length, mBuffer.remaining());
+            mBuffer.put(src, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Writes a box header, using the 64 bit size field when needed.
+     */
+    void writeBoxHeader(@NonNull String type, long size) throws IOException {
+        if (size > 0xFFFFFFFFL) {
+            writeInt(1);
+            writeType(type);
+            writeLong(size);
+        } else {
+            writeUnsignedInt(size);
+            writeType(type);
+        }
+    }
+
+    /**
+     * Copies <code>count</code> bytes of <code>src</code> starting at <code>position</code>.
+     */
+    void copyFrom(@NonNull FileChannel src, long position, long count) throws IOException {
+        while (count > 0) {
+            ensure(1);
+            int limit = mBuffer.limit();
+            if (count < mBuffer.remaining()) {
+                mBuffer.limit(mBuffer.position() + (int) count);
+            }
+            int read = src.read(mBuffer, position);
+            mReadCount++;
+            mBuffer.limit(limit);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of source at " + position);
+            }
+            mBytesRead += read;
+            position += read;
+            count -= read;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of <code>src</code> straight to the channel.
+     */
+    void write(@NonNull ByteBuffer src) throws IOException {
+        flush();
+        if (mDigest != null) {
+            mDigest.update(src);
+        }
+        if (mChecksum != null) {
+            ByteBuffer view = src.duplicate();
+            while (view.hasRemaining()) {
+                int count = Math.min(view.remaining(), mBuffer.capacity());
+                view.get(mBuffer.array(), 0, count);
+                mChecksum.update(mBuffer.array(), 0, count);
+            }
+        }
+        while (src.hasRemaining()) {
+            int written = mChannel.write(src, mFilePosition);
+            mFilePosition += written;
+            mWriteCount++;
+            mBytesWritten += written;
+        }
+    }
+
+    void flush() throws IOException {
+        updateChecksum();
+        mChecksumMark = 0;
+        if (mDigest != null) {
+            mDigest.update(mBuffer.array(), 0, mBuffer.position());
+        }
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            int written = mChannel.write(mBuffer, mFilePosition);
+            mFilePosition += written;
+            mWriteCount++;
+            mBytesWritten += written;
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * Forces the flushed content to the storage device.
+     */
+    void force() throws IOException {
+        mChannel.force(false);
+    }
+
+    /**
+     * @return the bytes that reached the channel so far
+     */
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Adds the I/O done by this writer to <code>metrics</code>.
+     */
+    void addTo(@NonNull TrimMetrics metrics) {
+        metrics.addReads(mReadCount, mBytesRead);
+        metrics.addWrites(mWriteCount, mBytesWritten);
+        metrics.addPeakBufferBytes(mBuffer.capacity());
+    }
+
+    private void ensure(int count) throws IOException {
+        if (mBuffer.remaining() < count) {
+            flush();
+        }
+    }
+}
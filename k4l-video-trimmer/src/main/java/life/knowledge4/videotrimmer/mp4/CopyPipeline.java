@@ -0,0 +1,296 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies byte ranges of a source channel through a reader thread, so that reading the
+ * source overlaps with writing the output.
+ * <p>
+ * The reader fills the blocks of a small ring of direct buffers and the writer drains
+ * them in order. A full ring blocks the reader and an empty one blocks the writer, so
+ * the copy runs at the speed of the slower device. The buffers are allocated once and
+ * kept for the next pipelines, a few sets of them so that concurrent trims reuse theirs too.
+ * <p>
+ * Blocks are filled whole whatever the ranges, and carry the chunk ends announced with
+ * {@link #endChunkAt(long)} as offsets in their buffer.
+ */
+final class CopyPipeline {
+
+    private static final int BLOCK_COUNT = 4;
+    private static final int BLOCK_SIZE = 256 * 1024;
+
+    private static final int IDLE_BUFFER_SETS = 2;
+
+    // buffers of the last closed pipelines, waiting for the next ones
+    private static final List<ByteBuffer[]> IDLE_BUFFERS = new ArrayList<>();
+
+    /**
+     * Produces the ranges to copy, on the reader thread.
+     */
+    interface Source {
+        void produce(@NonNull CopyPipeline pipeline) throws IOException;
+    }
+
+    static final class Block {
+        private final ByteBuffer mBuffer;
+        private final IntList mChunkEnds = new IntList();
+        private boolean mLast;
+
+        private Block(@NonNull ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @NonNull
+        ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        int getChunkEndCount() {
+            return mChunkEnds.size();
+        }
+
+        /**
+         * @return the position in the buffer right after the last byte of a chunk, in
+         * increasing order of <code>index</code>
+         */
+        int getChunkEnd(int index) {
+            return mChunkEnds.get(index);
+        }
+    }
+
+    private final FileChannel mSrc;
+    private final ByteBuffer[] mBuffers;
+    private final BlockingQueue<Block> mFree;
+    private final BlockingQueue<Block> mFilled;
+    private final Block mEnd;
+    private Thread mReader;
+    private volatile Throwable mError;
+    private final AtomicInteger mBlocksInUse = new AtomicInteger();
+
+    // reader side
+    private Block mCurrent;
+    // bytes queued so far, and the chunk ends announced in those terms
+    private long mQueuedBytes;
+    private final LongList mChunkEnds = new LongList();
+    private int mNextChunkEnd;
+    private long mReadCount;
+    private long mBytesRead;
+    private int mPeakBlocksInUse;
+
+    CopyPipeline(@NonNull FileChannel src) {
+        mSrc = src;
+        mBuffers = obtainBuffers();
+        mFree = new ArrayBlockingQueue<>(BLOCK_COUNT);
+        mFilled = new ArrayBlockingQueue<>(BLOCK_COUNT + 1);
+        for (ByteBuffer buffer : mBuffers) {
+            buffer.clear();
+            mFree.add(new Block(buffer));
+        }
+        mEnd = new Block(ByteBuffer.allocate(0));
+        mEnd.mLast = true;
+    }
+
+    void start(@NonNull final Source source) {
+        mReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    source.produce(CopyPipeline.this);
+                    if (mCurrent != null && mCurrent.mBuffer.position() > 0) {
+                        handOff();
+                    }
+                } catch (InterruptedIOException e) {
+                    // closed by the writer
+                } catch (Throwable e) {
+                    // rethrown by the writer, which would otherwise wait for the end forever
+                    mError = e;
+                } finally {
+                    // the filled queue has room for every block plus the end
+                    mFilled.add(mEnd);
+                }
+            }
+        }, "Mp4Writer-reader");
+        mReader.start();
+    }
+
+    /**
+     * Queues <code>count</code> bytes of the source starting at <code>position</code>.
+     * Called by the {@link Source}.
+     */
+    void read(long position, long count) throws IOException {
+        while (count > 0) {
+            if (mCurrent == null) {
+                mCurrent = takeFree();
+            }
+            ByteBuffer buffer = mCurrent.mBuffer;
+            if (count < buffer.remaining()) {
+                buffer.limit(buffer.position() + (int) count);
+            }
+            int read = mSrc.read(buffer, position);
+            mReadCount++;
+            buffer.limit(buffer.capacity());
+            if (read < 0) {
+                throw new EOFException("Unexpected end of source at " + position);
+            }
+            mBytesRead += read;
+            mQueuedBytes += read;
+            position += read;
+            count -= read;
+            while (mNextChunkEnd < mChunkEnds.size() && mChunkEnds.get(mNextChunkEnd) <= mQueuedBytes) {
+                long blockStart = mQueuedBytes - buffer.position();
+                mCurrent.mChunkEnds.add((int) (mChunkEnds.get(mNextChunkEnd++) - blockStart));
+            }
+            if (!buffer.hasRemaining()) {
+                handOff();
+            }
+        }
+    }
+
+    /**
+     * Announces that a chunk ends once <code>queuedBytes</code> bytes were queued in total,
+     * before they are. Called by the {@link Source}, with increasing values.
+     */
+    void endChunkAt(long queuedBytes) {
+        mChunkEnds.add(queuedBytes);
+    }
+
+    private void handOff() {
+        mCurrent.mBuffer.flip();
+        mFilled.add(mCurrent);
+        mCurrent = null;
+    }
+
+    @NonNull
+    private Block takeFree() throws IOException {
+        Block block;
+        try {
+            block = mFree.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Reading interrupted");
+        }
+        mPeakBlocksInUse = Math.max(mPeakBlocksInUse, mBlocksInUse.incrementAndGet());
+        return block;
+    }
+
+    /**
+     * @return the next block to write, or null after the last one
+     */
+    Block take() throws IOException {
+        Block block;
+        try {
+            block = mFilled.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Writing interrupted");
+        }
+        if (block.mLast) {
+            mFilled.add(block);
+            Throwable error = mError;
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error instanceof Error) {
+                throw (Error) error;
+            } else if (error != null) {
+                throw new IOException("Reading failed", error);
+            }
+            return null;
+        }
+        return block;
+    }
+
+    /**
+     * Gives a written block back to the reader.
+     */
+    void recycle(@NonNull Block block) {
+        block.mBuffer.clear();
+        block.mChunkEnds.clear();
+        mBlocksInUse.decrementAndGet();
+        mFree.add(block);
+    }
+
+    /**
+     * Stops the reader if it is still running and keeps the buffers for the next pipeline.
+     */
+    void close() throws InterruptedIOException {
+        if (mReader == null) {
+            releaseBuffers(mBuffers);
+            return;
+        }
+        mReader.interrupt();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mReader.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mReader = null;
+        releaseBuffers(mBuffers);
+        if (interrupted) {
+            throw new InterruptedIOException("Closing interrupted");
+        }
+    }
+
+    /**
+     * Adds the reads of the pipeline to <code>metrics</code>, once closed.
+     */
+    void addTo(@NonNull TrimMetrics metrics) {
+        metrics.addReads(mReadCount, mBytesRead);
+        metrics.addPeakBufferBytes((long) mPeakBlocksInUse * BLOCK_SIZE);
+    }
+
+    @NonNull
+    private static synchronized ByteBuffer[] obtainBuffers() {
+        ByteBuffer[] buffers = IDLE_BUFFERS.isEmpty() ? null : IDLE_BUFFERS.remove(IDLE_BUFFERS.size() - 1);
+        if (buffers == null) {
+            buffers = new ByteBuffer[BLOCK_COUNT];
+            for (int i = 0; i < BLOCK_COUNT; i++) {
+                buffers[i] = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            }
+        }
+        return buffers;
+    }
+
+    private static synchronized void releaseBuffers(@NonNull ByteBuffer[] buffers) {
+        if (IDLE_BUFFERS.size() < IDLE_BUFFER_SETS) {
+            IDLE_BUFFERS.add(buffers);
+        }
+    }
+}
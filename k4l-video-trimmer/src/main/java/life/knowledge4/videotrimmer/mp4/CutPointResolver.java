@@ -0,0 +1,205 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Moves the cut points of a trim to sync samples, since decoding can only start at one.
+ * <p>
+ * The start is moved back to a sync sample of a reference track, the video track with
+ * the fewest sync samples. When other tracks have sync samples too, the latest start
+ * shortly before it where every one of them has a sync sample is used instead, which is
+ * the case for the aligned key frames of multi-bitrate and multi-angle recordings. If
+ * there is none, the other tracks start at their own sync sample before the reference
+ * cut. The end is moved forward to a sync sample of the reference track. Only the sync
+ * sample numbers of each track are searched, so this is as fast as with a single track.
+ */
+final class CutPointResolver {
+
+    // sync samples of different tracks this close are taken as the same cut point
+    private static final long SYNC_TOLERANCE_US = 1000;
+    // how far before the reference cut to look for a sync sample of every track
+    private static final long MAX_ALIGNMENT_SHIFT_US = 5000000;
+
+    private final List<TrackIndex> mTracks;
+    private final int mReferenceTrack;
+    private long mStartUs;
+    private long mEndUs;
+    private boolean mAligned;
+
+    CutPointResolver(@NonNull Mp4Index index) {
+        mTracks = index.getTracks();
+        int reference = -1;
+        boolean referenceIsVideo = false;
+        for (int i = 0; i < mTracks.size(); i++) {
+            int[] syncSamples = mTracks.get(i).getSampleTable().getSyncSamples();
+            if (syncSamples == null || syncSamples.length == 0) {
+                continue;
+            }
+            boolean video = TrackIndex.HANDLER_VIDEO.equals(mTracks.get(i).getHandlerType());
+            if (reference < 0 || (video && !referenceIsVideo)
+                    || (video == referenceIsVideo && syncSamples.length < getSyncSamples(reference).length)) {
+                reference = i;
+                referenceIsVideo = video;
+            }
+        }
+        mReferenceTrack = reference;
+    }
+
+    /**
+     * @return the track the cut points are taken from, or -1 if no track has sync samples
+     */
+    int getReferenceTrack() {
+        return mReferenceTrack;
+    }
+
+    void resolve(long startUs, long endUs) {
+        mStartUs = startUs;
+        mEndUs = endUs;
+        mAligned = true;
+        if (mReferenceTrack < 0) {
+            return;
+        }
+        mStartUs = correctTimeToSyncSample(mReferenceTrack, startUs, false);
+        mEndUs = correctTimeToSyncSample(mReferenceTrack, endUs, true);
+
+        if (hasSyncSamplesAt(mStartUs)) {
+            return;
+        }
+        for (int sync = findSyncSample(mReferenceTrack, mStartUs) - 1; sync >= 0; sync--) {
+            long syncUs = getSyncTimeUs(mReferenceTrack, sync);
+            if (syncUs < mStartUs - MAX_ALIGNMENT_SHIFT_US) {
+                break;
+            }
+            if (hasSyncSamplesAt(syncUs)) {
+                mStartUs = syncUs;
+                return;
+            }
+        }
+        mAligned = false;
+    }
+
+    long getStartUs() {
+        return mStartUs;
+    }
+
+    long getEndUs() {
+        return mEndUs;
+    }
+
+    /**
+     * @return whether every track with sync samples has one at the start
+     */
+    boolean isAligned() {
+        return mAligned;
+    }
+
+    /**
+     * @return the first kept sample of <code>track</code>, a sync sample if it has them
+     */
+    int getStartSample(int track) {
+        TrackIndex index = mTracks.get(track);
+        SampleTable table = index.getSampleTable();
+        int[] syncSamples = table.getSyncSamples();
+        if (track == mReferenceTrack || syncSamples == null || syncSamples.length == 0) {
+            return Math.max(0, table.getSampleAtTime(index.toUnits(mStartUs)));
+        }
+        int sample = table.getSampleAtTime(index.toUnits(mStartUs + SYNC_TOLERANCE_US));
+        int sync = upperBound(syncSamples, sample) - 1;
+        return syncSamples[Math.max(0, sync)];
+    }
+
+    private boolean hasSyncSamplesAt(long us) {
+        for (int track = 0; track < mTracks.size(); track++) {
+            int[] syncSamples = getSyncSamples(track);
+            if (track == mReferenceTrack || syncSamples == null || syncSamples.length == 0) {
+                continue;
+            }
+            int sync = findSyncSample(track, us + SYNC_TOLERANCE_US);
+            if (sync < 0 || getSyncTimeUs(track, sync) < us - SYNC_TOLERANCE_US) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the time of the last sync sample not after <code>cutUs</code>, or with
+     * <code>next</code> the first one after it
+     */
+    private long correctTimeToSyncSample(int track, long cutUs, boolean next) {
+        int[] syncSamples = getSyncSamples(track);
+        int sync = findSyncSample(track, cutUs);
+        if (sync == syncSamples.length - 1) {
+            return getSyncTimeUs(track, sync);
+        } else if (next) {
+            return getSyncTimeUs(track, sync + 1);
+        } else {
+            return sync < 0 ? 0 : getSyncTimeUs(track, sync);
+        }
+    }
+
+    /**
+     * @return the index in the sync samples of <code>track</code> of the last one not
+     * after <code>us</code>, or -1 if there is none
+     */
+    private int findSyncSample(int track, long us) {
+        int[] syncSamples = getSyncSamples(track);
+        int low = 0;
+        int high = syncSamples.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getSyncTimeUs(track, mid) <= us) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+
+    private long getSyncTimeUs(int track, int sync) {
+        TrackIndex index = mTracks.get(track);
+        return index.toUs(index.getSampleTable().getDecodingTime(getSyncSamples(track)[sync]));
+    }
+
+    private int[] getSyncSamples(int track) {
+        return mTracks.get(track).getSampleTable().getSyncSamples();
+    }
+
+    private static int upperBound(@NonNull int[] values, int key) {
+        int index = Arrays.binarySearch(values, key);
+        if (index < 0) {
+            return -index - 1;
+        }
+        while (index < values.length && values[index] == key) {
+            index++;
+        }
+        return index;
+    }
+}
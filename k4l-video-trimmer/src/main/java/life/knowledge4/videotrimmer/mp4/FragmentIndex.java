@@ -0,0 +1,715 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Where the movie fragments of a fragmented file are and when they start, so that a
+ * trim only reads the fragments around its range instead of every moof of the file.
+ * <p>
+ * Start times come from the segment index (sidx) when it covers every fragment, otherwise
+ * from the decode time (tfdt) of every track fragment, which is a few header reads per
+ * fragment. Sample durations are only added up for files without decode times.
+ * <p>
+ * The index of a file that is still being recorded grows with {@link #append}, which only
+ * reads the fragments written since.
+ */
+final class FragmentIndex {
+
+    // tfhd flags
+    private static final int TFHD_BASE_DATA_OFFSET = 0x1;
+    private static final int TFHD_DESCRIPTION_INDEX = 0x2;
+    private static final int TFHD_DEFAULT_DURATION = 0x8;
+    private static final int TFHD_DEFAULT_SIZE = 0x10;
+    private static final int TFHD_DEFAULT_FLAGS = 0x20;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x20000;
+
+    // trun flags
+    private static final int TRUN_DATA_OFFSET = 0x1;
+    private static final int TRUN_FIRST_SAMPLE_FLAGS = 0x4;
+    private static final int TRUN_DURATION = 0x100;
+    private static final int TRUN_SIZE = 0x200;
+    private static final int TRUN_FLAGS = 0x400;
+    private static final int TRUN_COMPOSITION_OFFSET = 0x800;
+
+    private static final int SAMPLE_IS_NON_SYNC = 0x10000;
+
+    private final List<TrackIndex> mTracks;
+
+    // trex defaults of every track
+    private final int[] mDefaultDescriptionIndexes;
+    private final int[] mDefaultDurations;
+    private final int[] mDefaultSizes;
+    private final int[] mDefaultFlags;
+
+    // moof boxes, in file order, and their start times
+    private final List<Mp4Box> mMoofs = new ArrayList<>();
+    private final LongList mStartTimesUs;
+    // decode time of every track at the start of every fragment, in its timescale, -1 if unknown
+    private final LongList mTrackTimes;
+    // decode time of every track at the end of the last fragment, in its timescale
+    private final long[] mEndTimes;
+    private long mEndUs;
+
+    private FragmentIndex(@NonNull List<TrackIndex> tracks) {
+        mTracks = tracks;
+        mDefaultDescriptionIndexes = new int[tracks.size()];
+        mDefaultDurations = new int[tracks.size()];
+        mDefaultSizes = new int[tracks.size()];
+        mDefaultFlags = new int[tracks.size()];
+        Arrays.fill(mDefaultDescriptionIndexes, 1);
+        mStartTimesUs = new LongList();
+        mTrackTimes = new LongList();
+        mEndTimes = new long[tracks.size()];
+    }
+
+    private FragmentIndex(@NonNull FragmentIndex other) {
+        mTracks = other.mTracks;
+        mDefaultDescriptionIndexes = other.mDefaultDescriptionIndexes;
+        mDefaultDurations = other.mDefaultDurations;
+        mDefaultSizes = other.mDefaultSizes;
+        mDefaultFlags = other.mDefaultFlags;
+        mMoofs.addAll(other.mMoofs);
+        mStartTimesUs = new LongList(other.mStartTimesUs);
+        mTrackTimes = new LongList(other.mTrackTimes);
+        mEndTimes = other.mEndTimes.clone();
+        mEndUs = other.mEndUs;
+    }
+
+    /**
+     * @return the index of the fragments among <code>boxes</code>, or null if there are none
+     */
+    @Nullable
+    static FragmentIndex build(@NonNull FileChannel channel, @NonNull Mp4Box moov, @NonNull List<TrackIndex> tracks,
+                               @NonNull List<Mp4Box> boxes) throws IOException {
+        FragmentIndex index = new FragmentIndex(tracks);
+        for (Mp4Box box : boxes) {
+            if ("moof".equals(box.getType())) {
+                index.mMoofs.add(box);
+            }
+        }
+        if (index.mMoofs.isEmpty()) {
+            return null;
+        }
+        Mp4Box mvex = moov.getChild("mvex");
+        if (mvex != null) {
+            index.readTrackDefaults(channel, mvex);
+        }
+        if (!index.readSegmentIndex(channel, boxes)) {
+            index.readDecodeTimes(channel, 0);
+        }
+        index.readEndTimes(channel);
+        return index;
+    }
+
+    /**
+     * Indexes the fragments among <code>boxes</code>, the boxes written after those this
+     * index was built from. The fragments already indexed are not read again.
+     *
+     * @return a new index with the fragments of both, or this one if there are no new ones
+     */
+    @NonNull
+    FragmentIndex append(@NonNull FileChannel channel, @NonNull List<Mp4Box> boxes) throws IOException {
+        FragmentIndex index = new FragmentIndex(this);
+        int first = index.mMoofs.size();
+        for (Mp4Box box : boxes) {
+            if ("moof".equals(box.getType())) {
+                index.mMoofs.add(box);
+            }
+        }
+        if (index.mMoofs.size() == first) {
+            return this;
+        }
+        index.readDecodeTimes(channel, first);
+        index.readEndTimes(channel);
+        return index;
+    }
+
+    int getFragmentCount() {
+        return mMoofs.size();
+    }
+
+    long getFragmentStartUs(int fragment) {
+        return mStartTimesUs.get(fragment);
+    }
+
+    /**
+     * @return where the samples of the last fragment end, in microseconds
+     */
+    long getEndUs() {
+        return mEndUs;
+    }
+
+    /**
+     * Reads the samples of the fragments between <code>startUs</code> and <code>endUs</code>,
+     * with as many fragments before and after as it takes for every track to cover the
+     * trim once its start and end are moved to sync samples.
+     *
+     * @return an index of the source whose sample tables hold those samples only
+     */
+    @NonNull
+    Mp4Index createRangeIndex(@NonNull Mp4Index source, long startUs, long endUs) throws IOException {
+        int first = findFirstFragment(startUs);
+        int last = Math.max(first, findLastFragment(endUs));
+        FileInputStream fis = new FileInputStream(source.getFile());
+        try {
+            FileChannel channel = fis.getChannel();
+            while (true) {
+                Mp4Index index = createIndex(source, readFragments(channel, first, last));
+                CutPointResolver cutPoints = new CutPointResolver(index);
+                cutPoints.resolve(startUs - index.getTimeOffsetUs(), endUs - index.getTimeOffsetUs());
+                boolean extendStart = false;
+                boolean extendEnd = false;
+                for (TrackIndex track : index.getTracks()) {
+                    SampleTable table = track.getSampleTable();
+                    int count = table.getSampleCount();
+                    if (count == 0) {
+                        continue;
+                    }
+                    // every track has samples from the start to past the end of the trim
+                    extendStart |= track.toUs(table.getDecodingTime(0)) > cutPoints.getStartUs();
+                    extendEnd |= track.toUs(table.getDecodingTime(count)) <= cutPoints.getEndUs();
+                    int[] syncSamples = table.getSyncSamples();
+                    if (syncSamples != null) {
+                        extendStart |= syncSamples.length == 0
+                                || track.toUs(table.getDecodingTime(syncSamples[0])) > cutPoints.getStartUs();
+                        extendEnd |= syncSamples.length == 0
+                                || track.toUs(table.getDecodingTime(syncSamples[syncSamples.length - 1])) <= endUs - index.getTimeOffsetUs();
+                    }
+                }
+                extendStart &= first > 0;
+                extendEnd &= last < mMoofs.size() - 1;
+                if (!extendStart && !extendEnd) {
+                    return index;
+                }
+                if (extendStart) {
+                    first--;
+                }
+                if (extendEnd) {
+                    last++;
+                }
+            }
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * @return the first fragment that may hold samples at <code>us</code>
+     */
+    private int findFirstFragment(long us) {
+        int fragment = findLastFragment(us);
+        long startUs = mStartTimesUs.get(fragment);
+        // fragments of the same sidx subsegment share its start time
+        while (fragment > 0 && mStartTimesUs.get(fragment - 1) == startUs) {
+            fragment--;
+        }
+        return fragment;
+    }
+
+    /**
+     * @return the last fragment that starts at or before <code>us</code>, or the first one
+     */
+    private int findLastFragment(long us) {
+        int low = 0;
+        int high = mStartTimesUs.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mStartTimesUs.get(mid) <= us) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return Math.max(0, low - 1);
+    }
+
+    @NonNull
+    private Mp4Index createIndex(@NonNull Mp4Index source, @NonNull TrackSamples[] samples) {
+        // the tables start with the track that starts first, the others keep their distance to it
+        long timeOffsetUs = Long.MAX_VALUE;
+        for (int track = 0; track < samples.length; track++) {
+            if (samples[track].mCount > 0) {
+                timeOffsetUs = Math.min(timeOffsetUs, mTracks.get(track).toUs(samples[track].mFirstTime));
+            }
+        }
+        if (timeOffsetUs == Long.MAX_VALUE) {
+            timeOffsetUs = 0;
+        }
+        List<TrackIndex> tracks = new ArrayList<>();
+        for (int track = 0; track < samples.length; track++) {
+            TrackIndex trackIndex = mTracks.get(track);
+            long timeOffset = samples[track].mCount > 0 ? samples[track].mFirstTime - trackIndex.toUnits(timeOffsetUs) : 0;
+            tracks.add(new TrackIndex(trackIndex.getTrackId(), trackIndex.getHandlerType(), trackIndex.getTimescale(),
+                    trackIndex.getTrak(), samples[track].toSampleTable(timeOffset)));
+        }
+        return source.createRangeIndex(tracks, timeOffsetUs);
+    }
+
+    @NonNull
+    private TrackSamples[] readFragments(@NonNull FileChannel channel, int first, int last) throws IOException {
+        TrackSamples[] samples = new TrackSamples[mTracks.size()];
+        for (int track = 0; track < samples.length; track++) {
+            samples[track] = new TrackSamples();
+        }
+        for (int fragment = first; fragment <= last; fragment++) {
+            Mp4Box moof = mMoofs.get(fragment);
+            long dataEnd = moof.getOffset();
+            for (Mp4Box traf : Mp4Box.readBoxes(channel, moof.getContentOffset(), moof.getEnd())) {
+                if ("traf".equals(traf.getType())) {
+                    dataEnd = readTrackFragment(channel, fragment, moof, traf, dataEnd, samples);
+                }
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Adds the samples of a track fragment to those of its track.
+     *
+     * @param dataStart where the data of the track fragment starts if its header does not say
+     * @return where its data ends
+     */
+    private long readTrackFragment(@NonNull FileChannel channel, int fragment, @NonNull Mp4Box moof, @NonNull Mp4Box traf,
+                                   long dataStart, @NonNull TrackSamples[] samples) throws IOException {
+        List<Mp4Box> children = Mp4Box.readBoxes(channel, traf.getContentOffset(), traf.getEnd());
+        ChannelReader reader = new ChannelReader(channel, traf.getContentOffset(), (int) Math.min(64 * 1024, traf.getSize()));
+        TrackFragmentHeader header = readHeader(reader, children, traf);
+        if (header == null) {
+            return dataStart;
+        }
+        TrackSamples trackSamples = samples[header.mTrack];
+        long base = header.mBaseDataOffset >= 0 ? header.mBaseDataOffset : header.mBaseIsMoof ? moof.getOffset() : dataStart;
+        if (trackSamples.mCount == 0) {
+            long time = readDecodeTime(reader, children);
+            if (time < 0) {
+                time = mTrackTimes.get(fragment * mTracks.size() + header.mTrack);
+            }
+            if (time < 0) {
+                time = mTracks.get(header.mTrack).toUnits(mStartTimesUs.get(fragment));
+            }
+            trackSamples.mFirstTime = time;
+        }
+
+        long dataOffset = base;
+        for (Mp4Box trun : children) {
+            if (!"trun".equals(trun.getType())) {
+                continue;
+            }
+            reader.seek(trun.getContentOffset());
+            int versionAndFlags = reader.readInt();
+            int flags = versionAndFlags & 0xFFFFFF;
+            int count = reader.readCount();
+            if ((flags & TRUN_DATA_OFFSET) != 0) {
+                dataOffset = base + reader.readInt();
+            }
+            boolean hasFirstSampleFlags = (flags & TRUN_FIRST_SAMPLE_FLAGS) != 0;
+            int firstSampleFlags = hasFirstSampleFlags ? reader.readInt() : 0;
+            if ((flags & TRUN_COMPOSITION_OFFSET) != 0) {
+                trackSamples.mHasCompositionOffsets = true;
+            }
+            trackSamples.startChunk(dataOffset, header.mDescriptionIndex);
+            for (int i = 0; i < count; i++) {
+                int duration = (flags & TRUN_DURATION) != 0 ? reader.readInt() : header.mDuration;
+                int size = (flags & TRUN_SIZE) != 0 ? reader.readInt() : header.mSize;
+                int sampleFlags = (flags & TRUN_FLAGS) != 0 ? reader.readInt() : header.mFlags;
+                if (i == 0 && hasFirstSampleFlags) {
+                    sampleFlags = firstSampleFlags;
+                }
+                int compositionOffset = (flags & TRUN_COMPOSITION_OFFSET) != 0 ? reader.readInt() : 0;
+                trackSamples.add(duration, size, (sampleFlags & SAMPLE_IS_NON_SYNC) == 0, compositionOffset);
+                dataOffset += size & 0xFFFFFFFFL;
+            }
+            trackSamples.endChunk();
+        }
+        return dataOffset;
+    }
+
+    /**
+     * Reads the tfhd of a track fragment, with the trex defaults of its track filled in.
+     *
+     * @return the header, or null if the track fragment is of an unknown track
+     */
+    @Nullable
+    private TrackFragmentHeader readHeader(@NonNull ChannelReader reader, @NonNull List<Mp4Box> children, @NonNull Mp4Box traf) throws IOException {
+        Mp4Box tfhd = getChild(children, "tfhd");
+        if (tfhd == null) {
+            throw new IOException("Missing tfhd in " + traf);
+        }
+        reader.seek(tfhd.getContentOffset());
+        int flags = reader.readInt() & 0xFFFFFF;
+        int track = getTrack(reader.readInt());
+        if (track < 0) {
+            return null;
+        }
+        TrackFragmentHeader header = new TrackFragmentHeader();
+        header.mTrack = track;
+        header.mBaseDataOffset = (flags & TFHD_BASE_DATA_OFFSET) != 0 ? reader.readLong() : -1;
+        header.mBaseIsMoof = (flags & TFHD_DEFAULT_BASE_IS_MOOF) != 0;
+        header.mDescriptionIndex = (flags & TFHD_DESCRIPTION_INDEX) != 0 ? reader.readInt() : mDefaultDescriptionIndexes[track];
+        header.mDuration = (flags & TFHD_DEFAULT_DURATION) != 0 ? reader.readInt() : mDefaultDurations[track];
+        header.mSize = (flags & TFHD_DEFAULT_SIZE) != 0 ? reader.readInt() : mDefaultSizes[track];
+        header.mFlags = (flags & TFHD_DEFAULT_FLAGS) != 0 ? reader.readInt() : mDefaultFlags[track];
+        return header;
+    }
+
+    /**
+     * @return the tfdt decode time of a track fragment, or -1 if it has none
+     */
+    private static long readDecodeTime(@NonNull ChannelReader reader, @NonNull List<Mp4Box> children) throws IOException {
+        Mp4Box tfdt = getChild(children, "tfdt");
+        if (tfdt == null) {
+            return -1;
+        }
+        reader.seek(tfdt.getContentOffset());
+        int version = reader.readUnsignedByte();
+        reader.skip(3);
+        return version == 1 ? reader.readLong() : reader.readUnsignedInt();
+    }
+
+    private void readTrackDefaults(@NonNull FileChannel channel, @NonNull Mp4Box mvex) throws IOException {
+        ChannelReader reader = new ChannelReader(channel, mvex.getContentOffset(), (int) mvex.getSize());
+        for (Mp4Box trex : mvex.getChildren()) {
+            if (!"trex".equals(trex.getType())) {
+                continue;
+            }
+            reader.seek(trex.getContentOffset() + 4);
+            int track = getTrack(reader.readInt());
+            if (track >= 0) {
+                mDefaultDescriptionIndexes[track] = reader.readInt();
+                mDefaultDurations[track] = reader.readInt();
+                mDefaultSizes[track] = reader.readInt();
+                mDefaultFlags[track] = reader.readInt();
+            }
+        }
+    }
+
+    /**
+     * Takes the start times of the fragments from the first sidx box, if it has a reference
+     * to the start of every fragment's subsegment.
+     *
+     * @return whether the sidx gave the start of every fragment
+     */
+    private boolean readSegmentIndex(@NonNull FileChannel channel, @NonNull List<Mp4Box> boxes) throws IOException {
+        Mp4Box sidx = null;
+        for (Mp4Box box : boxes) {
+            if ("sidx".equals(box.getType())) {
+                sidx = box;
+                break;
+            }
+        }
+        if (sidx == null) {
+            return false;
+        }
+        ChannelReader reader = new ChannelReader(channel, sidx.getContentOffset());
+        int version = reader.readUnsignedByte();
+        reader.skip(3 + 4);
+        long timescale = reader.readUnsignedInt();
+        long time = version == 0 ? reader.readUnsignedInt() : reader.readLong();
+        long offset = sidx.getEnd() + (version == 0 ? reader.readUnsignedInt() : reader.readLong());
+        reader.skip(2);
+        int count = reader.readUnsignedShort();
+        if (timescale == 0 || count == 0) {
+            return false;
+        }
+
+        LongList offsets = new LongList(count);
+        LongList times = new LongList(count);
+        for (int i = 0; i < count; i++) {
+            int reference = reader.readInt();
+            if (reference < 0) {
+                // a reference to another sidx
+                return false;
+            }
+            offsets.add(offset);
+            times.add(time * 1000000L / timescale);
+            offset += reference;
+            time += reader.readUnsignedInt();
+            reader.skip(4);
+        }
+
+        LongList startTimes = new LongList(mMoofs.size());
+        int subsegment = 0;
+        for (Mp4Box moof : mMoofs) {
+            if (moof.getOffset() < offsets.get(0) || moof.getOffset() >= offset) {
+                return false;
+            }
+            while (subsegment + 1 < count && offsets.get(subsegment + 1) <= moof.getOffset()) {
+                subsegment++;
+            }
+            startTimes.add(times.get(subsegment));
+        }
+        for (int i = 0; i < startTimes.size(); i++) {
+            mStartTimesUs.add(startTimes.get(i));
+            for (int track = 0; track < mTracks.size(); track++) {
+                mTrackTimes.add(-1);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes the start times of the fragments from <code>first</code> on from the decode times
+     * of their track fragments.
+     */
+    private void readDecodeTimes(@NonNull FileChannel channel, int first) throws IOException {
+        long[] nextTimes = mEndTimes.clone();
+        long[] times = new long[mTracks.size()];
+        long lastStartUs = first > 0 ? mStartTimesUs.get(first - 1) : 0;
+        for (Mp4Box moof : mMoofs.subList(first, mMoofs.size())) {
+            Arrays.fill(times, -1);
+            long startUs = Long.MAX_VALUE;
+            ChannelReader reader = new ChannelReader(channel, moof.getContentOffset(), (int) Math.min(64 * 1024, moof.getSize()));
+            for (Mp4Box traf : Mp4Box.readBoxes(channel, moof.getContentOffset(), moof.getEnd())) {
+                if (!"traf".equals(traf.getType())) {
+                    continue;
+                }
+                List<Mp4Box> children = Mp4Box.readBoxes(channel, traf.getContentOffset(), traf.getEnd());
+                TrackFragmentHeader header = readHeader(reader, children, traf);
+                if (header == null || times[header.mTrack] >= 0) {
+                    continue;
+                }
+                long time = readDecodeTime(reader, children);
+                if (time < 0) {
+                    time = nextTimes[header.mTrack];
+                    nextTimes[header.mTrack] = time + readDuration(reader, children, header);
+                } else {
+                    nextTimes[header.mTrack] = time;
+                }
+                times[header.mTrack] = time;
+                startUs = Math.min(startUs, mTracks.get(header.mTrack).toUs(time));
+            }
+            lastStartUs = startUs == Long.MAX_VALUE ? lastStartUs : startUs;
+            mStartTimesUs.add(lastStartUs);
+            for (long time : times) {
+                mTrackTimes.add(time);
+            }
+        }
+    }
+
+    /**
+     * Adds up the sample durations of the last fragment, for where the file ends and where
+     * the next fragment starts when it has no decode times.
+     */
+    private void readEndTimes(@NonNull FileChannel channel) throws IOException {
+        int fragment = mMoofs.size() - 1;
+        Mp4Box moof = mMoofs.get(fragment);
+        ChannelReader reader = new ChannelReader(channel, moof.getContentOffset(), (int) Math.min(64 * 1024, moof.getSize()));
+        boolean[] found = new boolean[mTracks.size()];
+        for (Mp4Box traf : Mp4Box.readBoxes(channel, moof.getContentOffset(), moof.getEnd())) {
+            if (!"traf".equals(traf.getType())) {
+                continue;
+            }
+            List<Mp4Box> children = Mp4Box.readBoxes(channel, traf.getContentOffset(), traf.getEnd());
+            TrackFragmentHeader header = readHeader(reader, children, traf);
+            if (header == null) {
+                continue;
+            }
+            if (!found[header.mTrack]) {
+                found[header.mTrack] = true;
+                long time = readDecodeTime(reader, children);
+                if (time < 0) {
+                    time = mTrackTimes.get(fragment * mTracks.size() + header.mTrack);
+                }
+                if (time < 0) {
+                    time = mTracks.get(header.mTrack).toUnits(mStartTimesUs.get(fragment));
+                }
+                mEndTimes[header.mTrack] = time;
+            }
+            mEndTimes[header.mTrack] += readDuration(reader, children, header);
+        }
+        for (int track = 0; track < mTracks.size(); track++) {
+            mEndUs = Math.max(mEndUs, mTracks.get(track).toUs(mEndTimes[track]));
+        }
+    }
+
+    /**
+     * @return the duration of the samples of a track fragment, in its track timescale
+     */
+    private static long readDuration(@NonNull ChannelReader reader, @NonNull List<Mp4Box> children, @NonNull TrackFragmentHeader header) throws IOException {
+        long duration = 0;
+        for (Mp4Box trun : children) {
+            if (!"trun".equals(trun.getType())) {
+                continue;
+            }
+            reader.seek(trun.getContentOffset());
+            int flags = reader.readInt() & 0xFFFFFF;
+            int count = reader.readCount();
+            if ((flags & TRUN_DURATION) == 0) {
+                duration += (long) count * (header.mDuration & 0xFFFFFFFFL);
+                continue;
+            }
+            reader.skip(((flags & TRUN_DATA_OFFSET) != 0 ? 4 : 0) + ((flags & TRUN_FIRST_SAMPLE_FLAGS) != 0 ? 4 : 0));
+            int skip = ((flags & TRUN_SIZE) != 0 ? 4 : 0) + ((flags & TRUN_FLAGS) != 0 ? 4 : 0)
+                    + ((flags & TRUN_COMPOSITION_OFFSET) != 0 ? 4 : 0);
+            for (int i = 0; i < count; i++) {
+                duration += reader.readUnsignedInt();
+                reader.skip(skip);
+            }
+        }
+        return duration;
+    }
+
+    private int getTrack(int trackId) {
+        for (int track = 0; track < mTracks.size(); track++) {
+            if (mTracks.get(track).getTrackId() == trackId) {
+                return track;
+            }
+        }
+        return -1;
+    }
+
+    @Nullable
+    private static Mp4Box getChild(@NonNull List<Mp4Box> boxes, @NonNull String type) {
+        for (Mp4Box box : boxes) {
+            if (box.getType().equals(type)) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    private static final class TrackFragmentHeader {
+        int mTrack;
+        long mBaseDataOffset;
+        boolean mBaseIsMoof;
+        int mDescriptionIndex;
+        int mDuration;
+        int mSize;
+        int mFlags;
+    }
+
+    /**
+     * Samples of a track read from fragments, turned into sample tables once complete.
+     * Every track run becomes a chunk.
+     */
+    private static final class TrackSamples {
+
+        long mFirstTime = -1;
+        int mCount;
+
+        private final IntList mTimeCounts = new IntList();
+        private final IntList mTimeDeltas = new IntList();
+        boolean mHasCompositionOffsets;
+        private final IntList mOffsetCounts = new IntList();
+        private final IntList mOffsets = new IntList();
+        private final IntList mSizes = new IntList();
+        private long mMaxSize;
+        private final IntList mSyncSamples = new IntList();
+
+        private final LongList mChunkOffsets = new LongList();
+        private final IntList mChunkRunFirstChunks = new IntList();
+        private final IntList mChunkRunSampleCounts = new IntList();
+        private final IntList mChunkRunDescriptionIndexes = new IntList();
+        private long mChunkOffset;
+        private int mChunkDescriptionIndex;
+        private int mChunkSampleCount;
+
+        void startChunk(long offset, int descriptionIndex) {
+            mChunkOffset = offset;
+            mChunkDescriptionIndex = descriptionIndex;
+            mChunkSampleCount = 0;
+        }
+
+        void add(int duration, int size, boolean sync, int compositionOffset) {
+            int last = mTimeCounts.size() - 1;
+            if (last >= 0 && mTimeDeltas.get(last) == duration) {
+                mTimeCounts.set(last, mTimeCounts.get(last) + 1);
+            } else {
+                mTimeCounts.add(1);
+                mTimeDeltas.add(duration);
+            }
+            last = mOffsetCounts.size() - 1;
+            if (last >= 0 && mOffsets.get(last) == compositionOffset) {
+                mOffsetCounts.set(last, mOffsetCounts.get(last) + 1);
+            } else {
+                mOffsetCounts.add(1);
+                mOffsets.add(compositionOffset);
+            }
+            mSizes.add(size);
+            mMaxSize = Math.max(mMaxSize, size & 0xFFFFFFFFL);
+            if (sync) {
+                mSyncSamples.add(mCount);
+            }
+            mCount++;
+            mChunkSampleCount++;
+        }
+
+        void endChunk() {
+            if (mChunkSampleCount == 0) {
+                return;
+            }
+            int chunk = mChunkOffsets.size();
+            mChunkOffsets.add(mChunkOffset);
+            int last = mChunkRunFirstChunks.size() - 1;
+            if (last < 0 || mChunkRunSampleCounts.get(last) != mChunkSampleCount
+                    || mChunkRunDescriptionIndexes.get(last) != mChunkDescriptionIndex) {
+                mChunkRunFirstChunks.add(chunk);
+                mChunkRunSampleCounts.add(mChunkSampleCount);
+                mChunkRunDescriptionIndexes.add(mChunkDescriptionIndex);
+            }
+        }
+
+        /**
+         * @param timeOffset the decoding time of the first sample in the range index
+         */
+        @NonNull
+        SampleTable toSampleTable(long timeOffset) {
+            PackedArray sizes = new PackedArray(mCount, PackedArray.bitsRequired(mMaxSize));
+            for (int i = 0; i < mCount; i++) {
+                sizes.set(i, mSizes.get(i) & 0xFFFFFFFFL);
+            }
+            long maxOffset = 0;
+            for (int i = 0; i < mChunkOffsets.size(); i++) {
+                maxOffset = Math.max(maxOffset, mChunkOffsets.get(i));
+            }
+            PackedArray chunkOffsets = new PackedArray(mChunkOffsets.size(), PackedArray.bitsRequired(maxOffset));
+            for (int i = 0; i < mChunkOffsets.size(); i++) {
+                chunkOffsets.set(i, mChunkOffsets.get(i));
+            }
+            int[] firstChunks = mChunkRunFirstChunks.toArray();
+            int[] sampleCounts = mChunkRunSampleCounts.toArray();
+            int[] descriptionIndexes = mChunkRunDescriptionIndexes.toArray();
+            if (firstChunks.length == 0) {
+                firstChunks = new int[]{0};
+                sampleCounts = new int[]{0};
+                descriptionIndexes = new int[]{1};
+            }
+            boolean allSync = mSyncSamples.size() == mCount;
+            return new SampleTable(mCount, mTimeCounts.toArray(), mTimeDeltas.toArray(),
+                    mHasCompositionOffsets ? mOffsetCounts.toArray() : null, mHasCompositionOffsets ? mOffsets.toArray() : null,
+                    0, sizes, allSync ? null : mSyncSamples.toArray(),
+                    firstChunks, sampleCounts, descriptionIndexes, chunkOffsets, timeOffset);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Thrown before a trim starts writing when its output does not fit in the usable space
+ * of the destination.
+ */
+public class InsufficientSpaceException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long mRequiredBytes;
+    private final long mUsableBytes;
+
+    public InsufficientSpaceException(@NonNull File dst, long requiredBytes, long usableBytes) {
+        super("Writing " + dst + " needs " + requiredBytes + " bytes, only " + usableBytes + " are usable");
+        mRequiredBytes = requiredBytes;
+        mUsableBytes = usableBytes;
+    }
+
+    /**
+     * @return the bytes the output still needs
+     */
+    public long getRequiredBytes() {
+        return mRequiredBytes;
+    }
+
+    /**
+     * @return the usable bytes of the destination when the trim was about to start
+     */
+    public long getUsableBytes() {
+        return mUsableBytes;
+    }
+}
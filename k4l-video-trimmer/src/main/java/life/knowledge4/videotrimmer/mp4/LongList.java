@@ -0,0 +1,78 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import java.util.Arrays;
+
+/**
+ * Growable long array, used where a List of boxed longs would cost several
+ * times the memory.
+ */
+final class LongList {
+
+    private long[] mValues;
+    private int mSize;
+
+    LongList() {
+        this(16);
+    }
+
+    LongList(int capacity) {
+        mValues = new long[Math.max(1, capacity)];
+    }
+
+    LongList(LongList other) {
+        mValues = Arrays.copyOf(other.mValues, Math.max(1, other.mSize));
+        mSize = other.mSize;
+    }
+
+    void add(long value) {
+        if (mSize == mValues.length) {
+            mValues = Arrays.copyOf(mValues, mValues.length * 2);
+        }
+        mValues[mSize++] = value;
+    }
+
+    long get(int index) {
+        if (index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + mSize);
+        }
+        return mValues[index];
+    }
+
+    void set(int index, long value) {
+        if (index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + mSize);
+        }
+        mValues[index] = value;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    long[] toArray() {
+        return Arrays.copyOf(mValues, mSize);
+    }
+}
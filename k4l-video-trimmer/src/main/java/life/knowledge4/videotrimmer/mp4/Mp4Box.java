@@ -0,0 +1,204 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Header of a box read from a file: its type, where it is and how big it is.
+ * The box payload is never kept in memory, only the children of container boxes.
+ */
+public final class Mp4Box {
+
+    // only box headers are read, mostly one per seek
+    private static final int HEADER_BUFFER_SIZE = 4096;
+
+    private static final Set<String> CONTAINERS = new HashSet<>(Arrays.asList(
+            "moov", "trak", "mdia", "minf", "stbl", "edts", "dinf", "mvex"));
+
+    private final String mType;
+    private final long mOffset;
+    private final int mHeaderSize;
+    private final long mSize;
+    private final List<Mp4Box> mChildren;
+
+    private Mp4Box(@NonNull String type, long offset, int headerSize, long size, @NonNull List<Mp4Box> children) {
+        mType = type;
+        mOffset = offset;
+        mHeaderSize = headerSize;
+        mSize = size;
+        mChildren = children;
+    }
+
+    @NonNull
+    public String getType() {
+        return mType;
+    }
+
+    public long getOffset() {
+        return mOffset;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public long getContentOffset() {
+        return mOffset + mHeaderSize;
+    }
+
+    public long getContentSize() {
+        return mSize - mHeaderSize;
+    }
+
+    public long getEnd() {
+        return mOffset + mSize;
+    }
+
+    @NonNull
+    public List<Mp4Box> getChildren() {
+        return mChildren;
+    }
+
+    @Nullable
+    public Mp4Box getChild(@NonNull String type) {
+        for (Mp4Box child : mChildren) {
+            if (child.mType.equals(type)) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Follows a path of box types, e.g. <code>"mdia", "minf", "stbl"</code>.
+     */
+    @Nullable
+    public Mp4Box getDescendant(@NonNull String... path) {
+        Mp4Box box = this;
+        for (String type : path) {
+            box = box.getChild(type);
+            if (box == null) {
+                return null;
+            }
+        }
+        return box;
+    }
+
+    @Override
+    public String toString() {
+        return mType + "[" + mOffset + ", " + mSize + "]";
+    }
+
+    /**
+     * Reads the boxes found between <code>start</code> and <code>end</code>, descending into
+     * the well known container boxes.
+     */
+    @NonNull
+    static List<Mp4Box> readBoxes(@NonNull FileChannel channel, long start, long end) throws IOException {
+        ChannelReader reader = new ChannelReader(channel, start, HEADER_BUFFER_SIZE);
+        List<Mp4Box> boxes = new ArrayList<>();
+        long position = start;
+        while (end - position >= 8) {
+            Mp4Box box = readBox(reader, channel, position, end);
+            boxes.add(box);
+            position = box.getEnd();
+        }
+        return boxes;
+    }
+
+    /**
+     * Like {@link #readBoxes(FileChannel, long, long)}, but stops at the first box that does
+     * not fit before <code>end</code>, as the last box of a file that is still being written.
+     */
+    @NonNull
+    static List<Mp4Box> readCompleteBoxes(@NonNull FileChannel channel, long start, long end) throws IOException {
+        ChannelReader reader = new ChannelReader(channel, start, HEADER_BUFFER_SIZE);
+        List<Mp4Box> boxes = new ArrayList<>();
+        long position = start;
+        while (end - position >= 8) {
+            reader.seek(position);
+            long size = reader.readUnsignedInt();
+            if (size == 1) {
+                if (end - position < 16) {
+                    break;
+                }
+                reader.skip(4);
+                size = reader.readLong();
+            }
+            // a size of 0 runs to the end of the file, which is not known yet
+            if (size == 0 || position + size > end) {
+                break;
+            }
+            Mp4Box box = readBox(reader, channel, position, end);
+            boxes.add(box);
+            position = box.getEnd();
+        }
+        return boxes;
+    }
+
+    /**
+     * Reads the header of the box at <code>position</code>, and its children when it is a
+     * container box.
+     */
+    @NonNull
+    static Mp4Box readBox(@NonNull FileChannel channel, long position, long end) throws IOException {
+        return readBox(new ChannelReader(channel, position, HEADER_BUFFER_SIZE), channel, position, end);
+    }
+
+    @NonNull
+    private static Mp4Box readBox(@NonNull ChannelReader reader, @NonNull FileChannel channel, long position, long end) throws IOException {
+        reader.seek(position);
+        long size = reader.readUnsignedInt();
+        String type = reader.readType();
+        int headerSize = 8;
+        if (size == 1) {
+            size = reader.readLong();
+            headerSize = 16;
+        } else if (size == 0) {
+            size = end - position;
+        }
+        if (size < headerSize || position + size > end) {
+            throw new IOException("Invalid size " + size + " for box " + type + " at " + position);
+        }
+
+        List<Mp4Box> children;
+        if (CONTAINERS.contains(type)) {
+            children = Collections.unmodifiableList(readBoxes(channel, position + headerSize, position + size));
+        } else {
+            children = Collections.emptyList();
+        }
+        return new Mp4Box(type, position, headerSize, size, children);
+    }
+}
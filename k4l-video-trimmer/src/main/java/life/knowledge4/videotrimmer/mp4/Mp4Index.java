@@ -0,0 +1,385 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import life.knowledge4.videotrimmer.interfaces.Tracer;
+import life.knowledge4.videotrimmer.utils.Tracing;
+
+/**
+ * Structure of an MP4 file: its top level boxes, the movie box tree and the compact
+ * sample tables of every track. Building it reads only the box headers and the
+ * sample tables, never the media data.
+ * <p>
+ * A fragmented file that is still being recorded can be indexed with {@link #follow(File)},
+ * and {@link #refresh()} then picks up the fragments written since.
+ */
+public final class Mp4Index {
+
+    private final File mFile;
+    private final long mLength;
+    private final long mLastModified;
+    private final List<Mp4Box> mBoxes;
+    private final Mp4Box mMoov;
+    private final long mMovieTimescale;
+    private final List<TrackIndex> mTracks;
+    // where the last box that was complete when indexing ends
+    private long mBoxesEnd;
+    private boolean mFragmented;
+    private FragmentIndex mFragmentIndex;
+    private long mTimeOffsetUs;
+    private long mParseTimeNs;
+    private long mIndexTimeNs;
+
+    private Mp4Index(@NonNull File file, long length, long lastModified, @NonNull List<Mp4Box> boxes, @NonNull Mp4Box moov,
+                     long movieTimescale, @NonNull List<TrackIndex> tracks) {
+        mFile = file;
+        mLength = length;
+        mLastModified = lastModified;
+        mBoxes = boxes;
+        mMoov = moov;
+        mMovieTimescale = movieTimescale;
+        mTracks = tracks;
+    }
+
+    @NonNull
+    public static Mp4Index parse(@NonNull File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return parse(file, fis.getChannel());
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Indexes a file that may still be being written, leaving out the box being written
+     * and the movie fragment whose media data is not complete yet.
+     */
+    @NonNull
+    public static Mp4Index follow(@NonNull File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return parse(file, fis.getChannel(), true);
+        } finally {
+            fis.close();
+        }
+    }
+
+    @NonNull
+    static Mp4Index parse(@NonNull File file, @NonNull FileChannel channel) throws IOException {
+        return parse(file, channel, false);
+    }
+
+    @NonNull
+    private static Mp4Index parse(@NonNull File file, @NonNull FileChannel channel, boolean follow) throws IOException {
+        Tracer tracer = Tracing.getTracer();
+        long parseStart = System.nanoTime();
+        long length = channel.size();
+        long lastModified = file.lastModified();
+        List<Mp4Box> boxes;
+        tracer.beginSection(Tracing.SECTION_PARSE);
+        try {
+            boxes = follow ? readCompleteFragments(channel, 0, length) : Mp4Box.readBoxes(channel, 0, length);
+        } finally {
+            tracer.endSection();
+        }
+
+        tracer.beginSection(Tracing.SECTION_INDEX);
+        try {
+            return index(file, channel, length, lastModified, boxes, parseStart);
+        } finally {
+            tracer.endSection();
+        }
+    }
+
+    @NonNull
+    private static Mp4Index index(@NonNull File file, @NonNull FileChannel channel, long length, long lastModified,
+                                  @NonNull List<Mp4Box> boxes, long parseStart) throws IOException {
+        long indexStart = System.nanoTime();
+
+        Mp4Box moov = null;
+        for (Mp4Box box : boxes) {
+            if ("moov".equals(box.getType())) {
+                moov = box;
+            }
+        }
+        if (moov == null) {
+            throw new IOException("No moov box found in " + file);
+        }
+
+        Mp4Box mvhd = moov.getChild("mvhd");
+        if (mvhd == null) {
+            throw new IOException("No mvhd box found in " + file);
+        }
+        ChannelReader reader = new ChannelReader(channel, mvhd.getContentOffset());
+        long movieTimescale = readTimescale(reader, mvhd);
+
+        List<TrackIndex> tracks = new ArrayList<>();
+        for (Mp4Box trak : moov.getChildren()) {
+            if (!"trak".equals(trak.getType())) {
+                continue;
+            }
+            Mp4Box tkhd = trak.getChild("tkhd");
+            Mp4Box mdhd = trak.getDescendant("mdia", "mdhd");
+            Mp4Box hdlr = trak.getDescendant("mdia", "hdlr");
+            Mp4Box stbl = trak.getDescendant("mdia", "minf", "stbl");
+            if (tkhd == null || mdhd == null || hdlr == null || stbl == null) {
+                throw new IOException("Incomplete track " + trak + " in " + file);
+            }
+
+            reader.seek(tkhd.getContentOffset());
+            int version = reader.readUnsignedByte();
+            reader.skip(3 + (version == 1 ? 16 : 8));
+            int trackId = reader.readInt();
+
+            long timescale = readTimescale(reader, mdhd);
+
+            reader.seek(hdlr.getContentOffset() + 8);
+            String handlerType = reader.readType();
+
+            tracks.add(new TrackIndex(trackId, handlerType, timescale, trak, SampleTable.read(channel, stbl)));
+        }
+
+        Mp4Index index = new Mp4Index(file, length, lastModified, Collections.unmodifiableList(boxes), moov,
+                movieTimescale, Collections.unmodifiableList(tracks));
+        if (moov.getChild("mvex") != null) {
+            index.mFragmented = true;
+            index.mFragmentIndex = FragmentIndex.build(channel, moov, index.mTracks, boxes);
+        }
+        index.mBoxesEnd = boxes.get(boxes.size() - 1).getEnd();
+        index.mParseTimeNs = indexStart - parseStart;
+        index.mIndexTimeNs = System.nanoTime() - indexStart;
+        return index;
+    }
+
+    /**
+     * Reads the complete boxes between <code>start</code> and <code>end</code>, without a
+     * moof at the end, as its media data is still being written.
+     */
+    @NonNull
+    private static List<Mp4Box> readCompleteFragments(@NonNull FileChannel channel, long start, long end) throws IOException {
+        List<Mp4Box> boxes = Mp4Box.readCompleteBoxes(channel, start, end);
+        while (!boxes.isEmpty() && "moof".equals(boxes.get(boxes.size() - 1).getType())) {
+            boxes.remove(boxes.size() - 1);
+        }
+        return boxes;
+    }
+
+    /**
+     * Indexes what was written to the file since this index was built. For a fragmented
+     * file only the new fragments are read, the ones already indexed are kept.
+     *
+     * @return the new index, or this one if nothing complete was written since
+     */
+    @NonNull
+    public Mp4Index refresh() throws IOException {
+        FileInputStream fis = new FileInputStream(mFile);
+        try {
+            FileChannel channel = fis.getChannel();
+            long length = channel.size();
+            if (length == mLength && mFile.lastModified() == mLastModified) {
+                return this;
+            }
+            if (!mFragmented) {
+                return parse(mFile, channel, true);
+            }
+
+            long parseStart = System.nanoTime();
+            long lastModified = mFile.lastModified();
+            List<Mp4Box> newBoxes = readCompleteFragments(channel, mBoxesEnd, length);
+            if (newBoxes.isEmpty()) {
+                return this;
+            }
+            List<Mp4Box> boxes = new ArrayList<>(mBoxes);
+            boxes.addAll(newBoxes);
+
+            long indexStart = System.nanoTime();
+            Mp4Index index = new Mp4Index(mFile, length, lastModified, Collections.unmodifiableList(boxes), mMoov,
+                    mMovieTimescale, mTracks);
+            index.mFragmented = true;
+            index.mFragmentIndex = mFragmentIndex != null ? mFragmentIndex.append(channel, newBoxes)
+                    : FragmentIndex.build(channel, mMoov, mTracks, boxes);
+            index.mBoxesEnd = newBoxes.get(newBoxes.size() - 1).getEnd();
+            index.mParseTimeNs = indexStart - parseStart;
+            index.mIndexTimeNs = System.nanoTime() - indexStart;
+            return index;
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Reads the timescale of a <code>mvhd</code> or <code>mdhd</code> box.
+     */
+    private static long readTimescale(@NonNull ChannelReader reader, @NonNull Mp4Box box) throws IOException {
+        reader.seek(box.getContentOffset());
+        int version = reader.readUnsignedByte();
+        reader.skip(3 + (version == 1 ? 16 : 8));
+        long timescale = reader.readUnsignedInt();
+        if (timescale == 0) {
+            throw new IOException("Invalid timescale in " + box);
+        }
+        return timescale;
+    }
+
+    @NonNull
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * @return the top level boxes of the file
+     */
+    @NonNull
+    public List<Mp4Box> getBoxes() {
+        return mBoxes;
+    }
+
+    @Nullable
+    public Mp4Box getBox(@NonNull String type) {
+        for (Mp4Box box : mBoxes) {
+            if (box.getType().equals(type)) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    @NonNull
+    public Mp4Box getMoov() {
+        return mMoov;
+    }
+
+    public long getMovieTimescale() {
+        return mMovieTimescale;
+    }
+
+    @NonNull
+    public List<TrackIndex> getTracks() {
+        return mTracks;
+    }
+
+    /**
+     * @return whether the samples are described by movie fragments instead of the
+     * sample tables of the movie box
+     */
+    public boolean isFragmented() {
+        return mFragmented;
+    }
+
+    /**
+     * @return whether the fragments of a fragmented file were found, so that
+     * {@link TrimPlan} can read the ones it needs
+     */
+    public boolean hasFragmentIndex() {
+        return mFragmentIndex != null;
+    }
+
+    /**
+     * @return the number of movie fragments, 0 if the file is not fragmented
+     */
+    public int getFragmentCount() {
+        return mFragmentIndex != null ? mFragmentIndex.getFragmentCount() : 0;
+    }
+
+    /**
+     * @return where the samples of the last indexed fragment end, in microseconds, 0 if the
+     * file is not fragmented. Ranges up to there can be trimmed while the file grows.
+     */
+    public long getFragmentsEndUs() {
+        return mFragmentIndex != null ? mFragmentIndex.getEndUs() : 0;
+    }
+
+    @Nullable
+    FragmentIndex getFragmentIndex() {
+        return mFragmentIndex;
+    }
+
+    /**
+     * @return where the sample tables start in the source, in microseconds, for an index
+     * of a range of fragments
+     */
+    long getTimeOffsetUs() {
+        return mTimeOffsetUs;
+    }
+
+    /**
+     * @return an index of the same file with the given tracks, whose samples were read from
+     * movie fragments and start at <code>timeOffsetUs</code>
+     */
+    @NonNull
+    Mp4Index createRangeIndex(@NonNull List<TrackIndex> tracks, long timeOffsetUs) {
+        Mp4Index index = new Mp4Index(mFile, mLength, mLastModified, mBoxes, mMoov, mMovieTimescale,
+                Collections.unmodifiableList(tracks));
+        index.mTimeOffsetUs = timeOffsetUs;
+        index.mBoxesEnd = mBoxesEnd;
+        index.mParseTimeNs = mParseTimeNs;
+        index.mIndexTimeNs = mIndexTimeNs;
+        return index;
+    }
+
+    /**
+     * @return the heap used by the sample tables of every track, in bytes
+     */
+    public long getSampleTablesSizeInBytes() {
+        long size = 0;
+        for (TrackIndex track : mTracks) {
+            size += track.getSampleTable().getSizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * @return the time spent reading the box tree, in nanoseconds
+     */
+    long getParseTimeNs() {
+        return mParseTimeNs;
+    }
+
+    /**
+     * @return the time spent reading the sample tables, in nanoseconds
+     */
+    long getIndexTimeNs() {
+        return mIndexTimeNs;
+    }
+}
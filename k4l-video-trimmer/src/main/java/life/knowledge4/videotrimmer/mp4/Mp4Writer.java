@@ -0,0 +1,1207 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import life.knowledge4.videotrimmer.interfaces.Tracer;
+import life.knowledge4.videotrimmer.utils.Tracing;
+
+/**
+ * Writes the result of a {@link TrimPlan}: the source ftyp, a movie box rebuilt from
+ * the kept samples and a media data box with the kept chunks. Edit lists, sample
+ * dependencies and sample groups are cut to the kept samples, and boxes that do not
+ * describe samples are copied from the source as they are.
+ */
+public final class Mp4Writer {
+
+    private static final byte[] DEFAULT_FTYP = {
+            0, 0, 0, 32, 'f', 't', 'y', 'p', 'i', 's', 'o', 'm', 0, 0, 2, 0,
+            'i', 's', 'o', 'm', 'i', 's', 'o', '2', 'a', 'v', 'c', '1', 'm', 'p', '4', '1'};
+
+    // bytes of samples written between two journal checkpoints
+    private static final long CHECKPOINT_BYTES = 8 * 1024 * 1024;
+
+    private final TrimPlan mPlan;
+    private final Mp4Index mIndex;
+
+    private FileChannel mSrc;
+    private OutBox mMoov;
+    private ChannelWriter mOut;
+    private long mMdatHeaderSize;
+    private long mDataOffset;
+    private File mJournalFile;
+    private String mDigestAlgorithm;
+    private boolean mVerify;
+    private final TrimMetrics mMetrics = new TrimMetrics();
+
+    public Mp4Writer(@NonNull TrimPlan plan) {
+        mPlan = plan;
+        mIndex = plan.getIndex();
+        mMetrics.setIndexTimes(mIndex.getParseTimeNs(), mIndex.getIndexTimeNs());
+        mMetrics.setCutPointTimeNs(plan.getCreateTimeNs());
+    }
+
+    /**
+     * @return the metrics of the trim, complete once {@link #write(File)} returned
+     */
+    @NonNull
+    public TrimMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Records the progress of the copy in <code>journal</code>. If the journal describes a
+     * partial write of the same plan into the same file, the copy continues from its
+     * last checkpoint. The journal is deleted once the output is complete.
+     */
+    public void setJournal(File journal) {
+        mJournalFile = journal;
+    }
+
+    /**
+     * Computes a digest of the output while it is written, see {@link TrimMetrics#getDigest()},
+     * and checks that the box sizes, chunk offsets and sample counts of the output agree.
+     * A failed check throws an IOException.
+     *
+     * @param digestAlgorithm {@link TrimOptions#DIGEST_CRC32}, {@link TrimOptions#DIGEST_SHA256}
+     *                        or any other MessageDigest algorithm, or null to turn it off
+     */
+    public void setVerify(String digestAlgorithm) {
+        if (digestAlgorithm != null) {
+            // fail early on unknown algorithms
+            OutputDigest.create(digestAlgorithm);
+        }
+        mDigestAlgorithm = digestAlgorithm;
+        mVerify = digestAlgorithm != null;
+    }
+
+    public void write(@NonNull File dst) throws IOException {
+        Tracer tracer = Tracing.getTracer();
+        tracer.beginSection(Tracing.SECTION_WRITE);
+        try {
+            writeFile(dst);
+        } finally {
+            tracer.endSection();
+        }
+        tracer.setCounter(Tracing.COUNTER_BYTES_WRITTEN, mMetrics.getBytesWritten());
+    }
+
+    /**
+     * Copies an output written before, such as a kept result, to <code>dst</code>.
+     *
+     * @param digestAlgorithm see {@link #setVerify(String)}, or null
+     * @return the I/O and time of the copy, and the digest of <code>dst</code> if asked
+     * for. The parse, index and cut point times are zero
+     */
+    @NonNull
+    public static TrimMetrics copy(@NonNull File src, @NonNull File dst, String digestAlgorithm) throws IOException {
+        long copyStart = System.nanoTime();
+        TrimMetrics metrics = new TrimMetrics();
+        OutputDigest digest = digestAlgorithm != null ? OutputDigest.create(digestAlgorithm) : null;
+        FileInputStream fis = new FileInputStream(src);
+        try {
+            FileChannel in = fis.getChannel();
+            long size = in.size();
+            checkUsableSpace(dst, size);
+
+            boolean done = false;
+            RandomAccessFile raf = new RandomAccessFile(dst, "rw");
+            ChannelWriter out = new ChannelWriter(raf.getChannel(), 0);
+            try {
+                raf.setLength(size);
+                out.setDigest(digest);
+                out.copyFrom(in, 0, size);
+                out.flush();
+                done = true;
+            } finally {
+                raf.close();
+                out.addTo(metrics);
+                if (!done) {
+                    dst.delete();
+                }
+            }
+        } finally {
+            fis.close();
+        }
+        if (digest != null) {
+            metrics.setDigest(digest.getAlgorithm(), digest.getValue());
+        }
+        metrics.addWriteTimeNs(System.nanoTime() - copyStart);
+        return metrics;
+    }
+
+    /**
+     * Reads an output written before, such as a kept result handed out without a copy, to
+     * digest it.
+     *
+     * @param digestAlgorithm see {@link #setVerify(String)}, or null to not read it at all
+     * @return the reads and time of the digest, and the digest of <code>file</code> if asked
+     * for. The other counts and times are zero
+     */
+    @NonNull
+    public static TrimMetrics digest(@NonNull File file, String digestAlgorithm) throws IOException {
+        TrimMetrics metrics = new TrimMetrics();
+        if (digestAlgorithm == null) {
+            return metrics;
+        }
+        long digestStart = System.nanoTime();
+        OutputDigest digest = OutputDigest.create(digestAlgorithm);
+        ByteBuffer buffer = ByteBuffer.allocate(ChannelWriter.BUFFER_SIZE);
+        long reads = 0;
+        long bytes = 0;
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel in = fis.getChannel();
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                reads++;
+                bytes += read;
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            fis.close();
+        }
+        metrics.addReads(reads, bytes);
+        metrics.setDigest(digest.getAlgorithm(), digest.getValue());
+        metrics.addWriteTimeNs(System.nanoTime() - digestStart);
+        return metrics;
+    }
+
+    private void writeFile(@NonNull File dst) throws IOException {
+        long writeStart = System.nanoTime();
+        FileInputStream fis = new FileInputStream(mIndex.getFile());
+        try {
+            mSrc = fis.getChannel();
+            layout();
+            long outputSize = mDataOffset + mPlan.getDataSize();
+            checkUsableSpace(dst, outputSize);
+
+            boolean done = false;
+            RandomAccessFile raf = new RandomAccessFile(dst, "rw");
+            try {
+                // reserve the whole output up front, so that it is written into space
+                // allocated at once instead of growing the file write after write
+                if (raf.length() < outputSize) {
+                    raf.setLength(outputSize);
+                }
+                TrimJournal journal = mJournalFile != null ? TrimJournal.read(mJournalFile) : null;
+                if (journal != null && !journal.matches(mPlan, dst)) {
+                    journal = null;
+                }
+                write(raf.getChannel(), dst, journal);
+                done = true;
+            } finally {
+                raf.close();
+                // what reached the output counts even if the trim failed or was cancelled
+                if (mOut != null) {
+                    mOut.addTo(mMetrics);
+                }
+                if (!done && mJournalFile == null) {
+                    // nothing can continue the output, give the reserved space back
+                    dst.delete();
+                }
+            }
+        } finally {
+            fis.close();
+        }
+        if (mJournalFile != null) {
+            mJournalFile.delete();
+        }
+        mMetrics.addWriteTimeNs(System.nanoTime() - writeStart);
+    }
+
+    /**
+     * Builds the movie box and places the media data after it, which gives the exact
+     * size of the output before anything is written.
+     */
+    private void layout() throws IOException {
+        Mp4Box ftyp = mIndex.getBox("ftyp");
+        long ftypSize = ftyp != null ? ftyp.getSize() : DEFAULT_FTYP.length;
+        long dataSize = mPlan.getDataSize();
+        mMdatHeaderSize = dataSize + 8 > 0xFFFFFFFFL ? 16 : 8;
+
+        mMoov = buildMoov(false);
+        mDataOffset = ftypSize + mMoov.size() + mMdatHeaderSize;
+        if (mDataOffset + dataSize > 0xFFFFFFFFL) {
+            mMoov = buildMoov(true);
+            mDataOffset = ftypSize + mMoov.size() + mMdatHeaderSize;
+        }
+    }
+
+    /**
+     * Fails before writing anything if the output would not fit in the usable space of
+     * its folder. Bytes already in <code>dst</code> are reused.
+     */
+    private static void checkUsableSpace(@NonNull File dst, long outputSize) throws IOException {
+        File folder = dst.getAbsoluteFile().getParentFile();
+        if (folder == null || !folder.isDirectory()) {
+            return;
+        }
+        long requiredBytes = outputSize - (dst.isFile() ? dst.length() : 0);
+        long usableBytes = folder.getUsableSpace();
+        if (requiredBytes > usableBytes) {
+            throw new InsufficientSpaceException(dst, requiredBytes, usableBytes);
+        }
+    }
+
+    private void write(@NonNull FileChannel dst, @NonNull File dstFile, TrimJournal journal) throws IOException {
+        Mp4Box ftyp = mIndex.getBox("ftyp");
+        long dataSize = mPlan.getDataSize();
+        long mdatHeaderSize = mMdatHeaderSize;
+        OutBox moov = mMoov;
+        OutputDigest digest = null;
+        if (mVerify) {
+            verifyPlan();
+            digest = OutputDigest.create(mDigestAlgorithm);
+        }
+
+        if (journal != null && journal.getHeaderSize() == mDataOffset
+                && journal.verify(dst, journal.getCompletedChunks() > 0 ? mPlan.getChunkSize(journal.getCompletedChunks() - 1) : 0)) {
+            ChannelWriter out = new ChannelWriter(dst, journal.getCompletedPosition());
+            mOut = out;
+            if (digest != null) {
+                digestExisting(dst, journal.getCompletedPosition(), digest);
+                out.setDigest(digest);
+            }
+            writeSamples(out, dst, journal.getCompletedChunks(), journal);
+            finish(out, dst, dataSize, digest);
+            return;
+        }
+
+        ChannelWriter out = new ChannelWriter(dst, 0);
+        mOut = out;
+        out.setDigest(digest);
+        CRC32 headerChecksum = new CRC32();
+        out.setChecksum(headerChecksum);
+        if (ftyp != null) {
+            out.copyFrom(mSrc, ftyp.getOffset(), ftyp.getSize());
+        } else {
+            out.write(DEFAULT_FTYP);
+        }
+        moov.write(out);
+        out.writeBoxHeader("mdat", mdatHeaderSize + dataSize);
+        out.setChecksum(null);
+        verify(out.position() == mDataOffset, "header ends at " + out.position() + " instead of " + mDataOffset);
+
+        journal = null;
+        if (mJournalFile != null) {
+            journal = TrimJournal.create(mPlan, dstFile, out.position(), headerChecksum.getValue());
+            checkpoint(out, dst, journal, 0, 0);
+        }
+        writeSamples(out, dst, 0, journal);
+        finish(out, dst, dataSize, digest);
+    }
+
+    private void finish(@NonNull ChannelWriter out, @NonNull FileChannel dst, long dataSize, OutputDigest digest) throws IOException {
+        out.flush();
+        verify(out.position() == mDataOffset + dataSize,
+                "samples end at " + out.position() + " instead of " + (mDataOffset + dataSize));
+        dst.truncate(out.position());
+        if (digest != null) {
+            mMetrics.setDigest(digest.getAlgorithm(), digest.getValue());
+        }
+    }
+
+    /**
+     * Feeds the part of the output written before a resume to <code>digest</code>.
+     */
+    private void digestExisting(@NonNull FileChannel dst, long length, @NonNull OutputDigest digest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            int read = dst.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Output shorter than its journal");
+            }
+            mMetrics.addReads(1, read);
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+    }
+
+    /**
+     * Checks that the chunks of the plan cover the kept samples of every track exactly
+     * once, in order, and that their sizes agree with the samples and the source ranges.
+     */
+    private void verifyPlan() throws IOException {
+        int trackCount = mIndex.getTracks().size();
+        int[] nextSamples = new int[trackCount];
+        for (int track = 0; track < trackCount; track++) {
+            nextSamples[track] = mPlan.getStartSample(track);
+        }
+        long dataSize = 0;
+        for (int chunk = 0; chunk < mPlan.getChunkCount(); chunk++) {
+            int track = mPlan.getChunkTrack(chunk);
+            int first = mPlan.getChunkFirstSample(chunk);
+            int count = mPlan.getChunkSampleCount(chunk);
+            verify(first == nextSamples[track], "chunk " + chunk + " starts at sample " + first + " instead of " + nextSamples[track]);
+            verify(count > 0, "chunk " + chunk + " is empty");
+            nextSamples[track] = first + count;
+
+            SampleTable table = getTable(track);
+            long sampleBytes = 0;
+            for (int sample = first; sample < first + count; sample++) {
+                sampleBytes += table.getSize(sample);
+            }
+            long pieceBytes = 0;
+            int firstPiece = mPlan.getChunkFirstPiece(chunk);
+            for (int piece = firstPiece; piece < firstPiece + mPlan.getChunkPieceCount(chunk); piece++) {
+                pieceBytes += mPlan.getPieceSize(piece);
+            }
+            verify(sampleBytes == mPlan.getChunkSize(chunk) && pieceBytes == sampleBytes,
+                    "chunk " + chunk + " has " + mPlan.getChunkSize(chunk) + " bytes, samples " + sampleBytes + ", source " + pieceBytes);
+            dataSize += sampleBytes;
+        }
+        for (int track = 0; track < trackCount; track++) {
+            verify(nextSamples[track] == mPlan.getEndSample(track), "track " + track + " chunks end at sample "
+                    + nextSamples[track] + " instead of " + mPlan.getEndSample(track));
+        }
+        long rangeBytes = 0;
+        for (int range = 0; range < mPlan.getCopyRangeCount(); range++) {
+            rangeBytes += mPlan.getCopyRangeSize(range);
+        }
+        verify(dataSize == mPlan.getDataSize() && rangeBytes == dataSize,
+                "data has " + mPlan.getDataSize() + " bytes, chunks " + dataSize + ", copy ranges " + rangeBytes);
+    }
+
+    private void verify(boolean condition, @NonNull String message) throws IOException {
+        if (mVerify && !condition) {
+            throw new IOException("Integrity check failed: " + message);
+        }
+    }
+
+    private void writeSamples(@NonNull ChannelWriter out, @NonNull FileChannel dst, final int firstChunk, final TrimJournal journal) throws IOException {
+        CopyPipeline pipeline = new CopyPipeline(mSrc);
+        try {
+            pipeline.start(new CopyPipeline.Source() {
+                @Override
+                public void produce(@NonNull CopyPipeline pipeline) throws IOException {
+                    readSamples(pipeline, firstChunk, journal != null);
+                }
+            });
+
+            Tracer tracer = Tracing.getTracer();
+            int chunk = firstChunk;
+            long uncheckedBytes = 0;
+            CopyPipeline.Block block;
+            while ((block = pipeline.take()) != null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Writing interrupted");
+                }
+                ByteBuffer buffer = block.getBuffer();
+                for (int end = 0; end < block.getChunkEndCount(); end++) {
+                    uncheckedBytes += mPlan.getChunkSize(chunk);
+                    chunk++;
+                    if (uncheckedBytes >= CHECKPOINT_BYTES && chunk < mPlan.getChunkCount()) {
+                        // the block is written in two parts only to checkpoint in between
+                        int limit = buffer.limit();
+                        buffer.limit(block.getChunkEnd(end));
+                        out.write(buffer);
+                        buffer.limit(limit);
+                        checkpoint(out, dst, journal, chunk, mPlan.getChunkSize(chunk - 1));
+                        uncheckedBytes = 0;
+                    }
+                }
+                out.write(buffer);
+                tracer.setCounter(Tracing.COUNTER_BYTES_WRITTEN, out.getBytesWritten());
+                pipeline.recycle(block);
+            }
+        } finally {
+            pipeline.close();
+            pipeline.addTo(mMetrics);
+        }
+    }
+
+    /**
+     * Queues the kept samples from <code>firstChunk</code> on, on the reader thread of
+     * the pipeline. Chunks that follow each other in the source are read as one range,
+     * with their ends announced to the pipeline if <code>markChunks</code>.
+     */
+    private void readSamples(@NonNull CopyPipeline pipeline, int firstChunk, boolean markChunks) throws IOException {
+        // output bytes of the chunks before firstChunk, to skip in the ranges
+        long skipped = 0;
+        for (int chunk = 0; chunk < firstChunk; chunk++) {
+            skipped += mPlan.getChunkSize(chunk);
+        }
+        int chunk = firstChunk;
+        long chunkEnd = chunk < mPlan.getChunkCount() ? skipped + mPlan.getChunkSize(chunk) : Long.MAX_VALUE;
+        long rangeStart = 0;
+        for (int range = 0; range < mPlan.getCopyRangeCount(); range++) {
+            long size = mPlan.getCopyRangeSize(range);
+            long rangeEnd = rangeStart + size;
+            if (rangeEnd > skipped) {
+                long skip = Math.max(0, skipped - rangeStart);
+                while (markChunks && chunkEnd <= rangeEnd) {
+                    pipeline.endChunkAt(chunkEnd - skipped);
+                    chunk++;
+                    chunkEnd = chunk < mPlan.getChunkCount() ? chunkEnd + mPlan.getChunkSize(chunk) : Long.MAX_VALUE;
+                }
+                pipeline.read(mPlan.getCopyRangeOffset(range) + skip, size - skip);
+            }
+            rangeStart = rangeEnd;
+        }
+    }
+
+    /**
+     * Makes the output durable up to the current position, then records it.
+     *
+     * @param lastChunkSize the size of the chunk ending at the current position
+     */
+    private void checkpoint(@NonNull ChannelWriter out, @NonNull FileChannel dst, @NonNull TrimJournal journal, int completedChunks, int lastChunkSize) throws IOException {
+        out.flush();
+        out.force();
+        journal.checkpoint(dst, completedChunks, out.position(), lastChunkSize);
+        journal.write(mJournalFile);
+    }
+
+    @NonNull
+    private SampleTable getTable(int track) {
+        return mIndex.getTracks().get(track).getSampleTable();
+    }
+
+    /**
+     * @return the duration of the kept samples of <code>track</code>, in its timescale
+     */
+    private long getTrackDuration(int track) {
+        int start = mPlan.getStartSample(track);
+        int end = mPlan.getEndSample(track);
+        if (start == end) {
+            return 0;
+        }
+        SampleTable table = getTable(track);
+        return table.getDecodingTime(end) - table.getDecodingTime(start);
+    }
+
+    private long toMovieTimescale(int track, long duration) {
+        return duration * mIndex.getMovieTimescale() / mIndex.getTracks().get(track).getTimescale();
+    }
+
+    @NonNull
+    private OutBox buildMoov(boolean co64) throws IOException {
+        List<List<Edit>> edits = new ArrayList<>();
+        long movieDuration = 0;
+        for (int i = 0; i < mIndex.getTracks().size(); i++) {
+            List<Edit> trackEdits = buildEdits(i, mIndex.getTracks().get(i).getTrak());
+            edits.add(trackEdits);
+            movieDuration = Math.max(movieDuration, getPresentationDuration(i, trackEdits));
+        }
+
+        List<OutBox> children = new ArrayList<>();
+        int track = 0;
+        for (Mp4Box box : mIndex.getMoov().getChildren()) {
+            String type = box.getType();
+            if ("mvhd".equals(type)) {
+                children.add(new DurationBox(box, 16, 24, movieDuration));
+            } else if ("trak".equals(type)) {
+                children.add(buildTrak(track, box, edits.get(track), co64));
+                track++;
+            } else if ("mvex".equals(type)) {
+                // the samples of fragments are written in the sample tables
+            } else {
+                children.add(new CopiedBox(box));
+            }
+        }
+        return new ContainerBox("moov", children);
+    }
+
+    /**
+     * @return the duration of <code>track</code> in the movie timescale, that of its edits
+     * if it has some
+     */
+    private long getPresentationDuration(int track, List<Edit> edits) {
+        if (edits == null) {
+            return toMovieTimescale(track, getTrackDuration(track));
+        }
+        long duration = 0;
+        for (Edit edit : edits) {
+            duration += edit.mSegmentDuration;
+        }
+        return duration;
+    }
+
+    /**
+     * Rewrites the edit list of the source for the kept samples. The media time of the
+     * first edit showing media is kept, since it compensates the composition offsets of
+     * B frames or skips the priming of audio, and its duration becomes that of the kept
+     * samples past that media time. An empty edit delaying the track is kept when the track
+     * is kept from its first sample. Later edits describe the source past the cut and
+     * are dropped.
+     *
+     * @return the edits of the output, or null if the track has no edit list to rewrite
+     */
+    private List<Edit> buildEdits(int track, @NonNull Mp4Box trak) throws IOException {
+        Mp4Box elst = trak.getDescendant("edts", "elst");
+        if (elst == null) {
+            return null;
+        }
+        ByteBuffer buffer = readBox(elst);
+        buffer.position((int) (elst.getContentOffset() - elst.getOffset()));
+        boolean version1 = buffer.get() == 1;
+        buffer.position(buffer.position() + 3);
+        long entryCount = buffer.getInt() & 0xFFFFFFFFL;
+        long emptyDuration = 0;
+        Edit media = null;
+        for (long i = 0; i < entryCount && media == null; i++) {
+            if (buffer.remaining() < (version1 ? 20 : 12)) {
+                throw new IOException("Truncated " + elst);
+            }
+            long segmentDuration = version1 ? buffer.getLong() : buffer.getInt() & 0xFFFFFFFFL;
+            long mediaTime = version1 ? buffer.getLong() : buffer.getInt();
+            int rate = buffer.getInt();
+            if (mediaTime == -1) {
+                emptyDuration += segmentDuration;
+            } else {
+                media = new Edit(segmentDuration, mediaTime, rate);
+            }
+        }
+        if (media == null) {
+            return null;
+        }
+
+        // every track is cut at the same media time, so the delay of the track still lines
+        // it up with the others. It is in the movie timescale, which the output keeps
+        int start = mPlan.getStartSample(track);
+        List<Edit> edits = new ArrayList<>();
+        if (emptyDuration > 0) {
+            edits.add(new Edit(emptyDuration, -1, Edit.RATE_NORMAL));
+        }
+        SampleTable table = getTable(track);
+        int firstOffset = table.hasCompositionOffsets() && start < mPlan.getEndSample(track) ? table.getCompositionOffset(start) : 0;
+        long skipped = Math.max(0, media.mMediaTime - firstOffset);
+        long duration = Math.max(0, getTrackDuration(track) - skipped);
+        edits.add(new Edit(toMovieTimescale(track, duration), media.mMediaTime, media.mRate));
+        return edits;
+    }
+
+    @NonNull
+    private OutBox buildTrak(int track, @NonNull Mp4Box trak, List<Edit> edits, boolean co64) throws IOException {
+        long duration = getTrackDuration(track);
+
+        List<OutBox> children = new ArrayList<>();
+        for (Mp4Box box : trak.getChildren()) {
+            String type = box.getType();
+            if ("tkhd".equals(type)) {
+                children.add(new DurationBox(box, 20, 28, getPresentationDuration(track, edits)));
+            } else if ("edts".equals(type)) {
+                if (edits != null) {
+                    List<OutBox> edts = new ArrayList<>();
+                    edts.add(new ElstBox(edits));
+                    children.add(new ContainerBox("edts", edts));
+                }
+            } else if ("mdia".equals(type)) {
+                List<OutBox> mdia = new ArrayList<>();
+                for (Mp4Box mdiaBox : box.getChildren()) {
+                    if ("mdhd".equals(mdiaBox.getType())) {
+                        mdia.add(new DurationBox(mdiaBox, 16, 24, duration));
+                    } else if ("minf".equals(mdiaBox.getType())) {
+                        List<OutBox> minf = new ArrayList<>();
+                        for (Mp4Box minfBox : mdiaBox.getChildren()) {
+                            if ("stbl".equals(minfBox.getType())) {
+                                minf.add(buildStbl(track, minfBox, co64));
+                            } else {
+                                minf.add(new CopiedBox(minfBox));
+                            }
+                        }
+                        mdia.add(new ContainerBox("minf", minf));
+                    } else {
+                        mdia.add(new CopiedBox(mdiaBox));
+                    }
+                }
+                children.add(new ContainerBox("mdia", mdia));
+            } else {
+                children.add(new CopiedBox(box));
+            }
+        }
+        return new ContainerBox("trak", children);
+    }
+
+    @NonNull
+    private OutBox buildStbl(int track, @NonNull Mp4Box stbl, boolean co64) throws IOException {
+        Mp4Box stsd = stbl.getChild("stsd");
+        if (stsd == null) {
+            throw new IOException("Missing stsd in " + stbl);
+        }
+        SampleTable table = getTable(track);
+
+        List<OutBox> children = new ArrayList<>();
+        children.add(new CopiedBox(stsd));
+        children.add(new SttsBox(track));
+        if (table.hasCompositionOffsets()) {
+            children.add(new CttsBox(track));
+        }
+        if (table.hasSyncSamples()) {
+            children.add(new StssBox(track));
+        }
+        children.add(new StscBox(track));
+        children.add(new StszBox(track));
+        children.add(new ChunkOffsetBox(track, co64));
+        // per sample boxes that cannot be cut, such as subs or saiz, are dropped
+        for (Mp4Box box : stbl.getChildren()) {
+            String type = box.getType();
+            if ("sdtp".equals(type)) {
+                if (box.getContentSize() - 4 >= mPlan.getEndSample(track)) {
+                    children.add(new SdtpBox(track, box));
+                }
+            } else if ("sbgp".equals(type)) {
+                children.add(new SbgpBox(track, box));
+            } else if ("sgpd".equals(type)) {
+                children.add(new CopiedBox(box));
+            }
+        }
+        return new ContainerBox("stbl", children);
+    }
+
+    /**
+     * @return the whole of <code>box</code>, read from the source
+     */
+    @NonNull
+    private ByteBuffer readBox(@NonNull Mp4Box box) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) box.getSize());
+        while (buffer.hasRemaining()) {
+            int read = mSrc.read(buffer, box.getOffset() + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Unexpected end of source in " + box);
+            }
+            mMetrics.addReads(1, read);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private abstract static class OutBox {
+
+        abstract long size();
+
+        abstract void write(@NonNull ChannelWriter out) throws IOException;
+    }
+
+    private final class ContainerBox extends OutBox {
+
+        private final String mType;
+        private final List<OutBox> mChildren;
+        private final long mSize;
+
+        ContainerBox(@NonNull String type, @NonNull List<OutBox> children) {
+            mType = type;
+            mChildren = children;
+            long size = 8;
+            for (OutBox child : children) {
+                size += child.size();
+            }
+            mSize = size;
+        }
+
+        @Override
+        long size() {
+            return mSize;
+        }
+
+        @Override
+        void write(@NonNull ChannelWriter out) throws IOException {
+            long start = out.position();
+            out.writeBoxHeader(mType, mSize);
+            for (OutBox child : mChildren) {
+                long childStart = out.position();
+                child.write(out);
+                verify(out.position() - childStart == child.size(), "a box in " + mType + " wrote "
+                        + (out.position() - childStart) + " bytes instead of " + child.size());
+            }
+            verify(out.position() - start == mSize, mType + " wrote " + (out.position() - start) + " bytes instead of " + mSize);
+        }
+    }
+
+    private final class CopiedBox extends OutBox {
+
+        private final Mp4Box mBox;
+
+        CopiedBox(@NonNull Mp4Box box) {
+            mBox = box;
+        }
+
+        @Override
+        long size() {
+            return mBox.getSize();
+        }
+
+        @Override
+        void write(@NonNull ChannelWriter out) throws IOException {
+            out.copyFrom(mSrc, mBox.getOffset(), mBox.getSize());
+        }
+    }
+
+    /**
+     * A mvhd, tkhd or mdhd box, copied with a new duration.
+     */
+    private final class DurationBox extends OutBox {
+
+        private final byte[] mBytes;
+
+        DurationBox(@NonNull Mp4Box box, int offsetV0, int offsetV1, long duration) throws IOException {
+            ByteBuffer buffer = readBox(box);
+            int header = (int) (box.getContentOffset() - box.getOffset());
+            if (buffer.get(header) == 1) {
+                buffer.putLong(header + offsetV1, duration);
+            } else {
+                buffer.putInt(header + offsetV0, (int) Math.min(duration, 0xFFFFFFFFL));
+            }
+            mBytes = buffer.array();
+        }
+
+        @Override
+        long size() {
+            return mBytes.length;
+        }
+
+        @Override
+        void write(@NonNull ChannelWriter out) throws IOException {
+            out.write(mBytes);
+        }
+    }
+
+    private static final class Edit {
+
+        static final int RATE_NORMAL = 0x00010000;
+
+        final long mSegmentDuration;
+        final long mMediaTime;
+        final int mRate;
+
+        Edit(long segmentDuration, long mediaTime, int rate) {
+            mSegmentDuration = segmentDuration;
+            mMediaTime = mediaTime;
+            mRate = rate;
+        }
+    }
+
+    private static final class ElstBox extends OutBox {
+
+        private final List<Edit> mEdits;
+        private final boolean mVersion1;
+
+        ElstBox(@NonNull List<Edit> edits) {
+            mEdits = edits;
+            boolean version1 = false;
+            for (Edit edit : edits) {
+                version1 |= edit.mSegmentDuration > 0xFFFFFFFFL || edit.mMediaTime > Integer.MAX_VALUE;
+            }
+            mVersion1 = version1;
+        }
+
+        @Override
+        long size() {
+            return 16 + (mVersion1 ? 20L : 12L) * mEdits.size();
+        }
+
+        @Override
+        void write(@NonNull ChannelWriter out) throws IOException {
+            out.writeBoxHeader("elst", size());
+            out.writeInt(mVersion1 ? 0x01000000 : 0);
+            out.writeInt(mEdits.size());
+            for (Edit edit : mEdits) {
+                if (mVersion1) {
+                    out.writeLong(edit.mSegmentDuration);
+                    out.writeLong(edit.mMediaTime);
+                } else {
+                    out.writeUnsignedInt(edit.mSegmentDuration);
+                    out.writeInt((int) edit.mMediaTime);
+                }
+                out.writeInt(edit.mRate);
+            }
+        }
+    }
+
+    /**
+     * The dependency flags of the kept samples, one byte each.
+     */
+    private final class SdtpBox extends OutBox {
+
+        private final byte[] mBytes;
+
+        SdtpBox(int track, @NonNull Mp4Box sdtp) throws IOException {
+            ByteBuffer buffer = readBox(sdtp);
+            int content = (int) (sdtp.getContentOffset() - sdtp.getOffset());
+            int start = mPlan.getStartSample(track);
+            int count = mPlan.getEndSample(track) - start;
+            mBytes = new byte[4 + count];
+            // version and flags, then the flags of the kept samples
+            System.arraycopy(buffer.array(), content, mBytes, 0, 4);
+            System.arraycopy(buffer.array(), content + 4 + start, mBytes, 4, count);
+        }
+
+        @Override
+        long size() {
+            return 8 + mBytes.length;
+        }
+
+        @Override
+        void write(@NonNull ChannelWriter out) throws IOException {
+            out.writeBoxHeader("sdtp", size());
+            out.write(mBytes);
+        }
+    }
+
+    /**
+     * The sample to group runs of the source, cut to the kept samples. The group
+     * descriptions are copied as they are.
+     */
+    private final class SbgpBox extends OutBox {
+
+        private final byte[] mHeader;
+        private final IntList mCounts = new IntList();
+        private final IntList mGroups = new IntList();
+
+        SbgpBox(int track, @NonNull Mp4Box sbgp) throws IOException {
+            ByteBuffer buffer = readBox(sbgp);
+            buffer.position((int) (sbgp.getContentOffset() - sbgp.getOffset()));
+            // version and flags, grouping type and, in version 1, its parameter
+            mHeader = new byte[buffer.get(buffer.position()) == 1 ? 12 : 8];
+            buffer.get(mHeader);
+            long entryCount = buffer.getInt() & 0xFFFFFFFFL;
+            int start = mPlan.getStartSample(track);
+            int end = mPlan.getEndSample(track);
+            long sample = 0;
+            for (long i = 0; i < entryCount && sample < end; i++) {
+                if (buffer.remaining() < 8) {
+                    throw new IOException("Truncated " + sbgp);
+                }
+                long count = buffer.getInt() & 0xFFFFFFFFL;
+                int group = buffer.getInt();
+                long kept = Math.min(sample + count, end) - Math.max(sample, start);
+                if (kept > 0) {
+                    mCounts.add((int) kept);
+                    mGroups.add(group);
+                }
+                sample += count;
+            }
+        }
+
+        @Override
+        long size() {
+            return 8 + mHeader.length + 4 + 8L * mCounts.size();
+        }
+
+        @Override
+        void write(@NonNull ChannelWriter out) throws IOException {
+            out.writeBoxHeader("sbgp", size());
+            out.write(mHeader);
+            out.writeInt(mCounts.size());
+            for (int i = 0; i < mCounts.size(); i++) {
+                out.writeInt(mCounts.get(i));
+                out.writeInt(mGroups.get(i));
+            }
+        }
+    }
+
+    private final class SttsBox extends OutBox {
+
+        private final int mTrack;
+        private final int mEntryCount;
+
+        SttsBox(int track) throws IOException {
+            mTrack = track;
+            mEntryCount = writeEntries(null);
+        }
+
+        @Override
+        long size() {
+            return 16 + 8L * mEntryCount;
+        }
+
+        @Override
+        void write(@NonNull ChannelWriter out) throws IOException {
+            out.writeBoxHeader("stts", size());
+            out.writeInt(0);
+            out.writeInt(mEntryCount);
+            writeEntries(out);
+        }
+
+        private int writeEntries(ChannelWriter out) throws IOException {
+            SampleTable table = getTable(mTrack);
+            int entries = 0;
+            int count = 0;
+            long delta = 0;
+            for (int sample = mPlan.getStartSample(mTrack); sample < mPlan.getEndSample(mTrack); sample++) {
+                long duration = table.getDuration(sample);
+                if (count > 0 && duration != delta) {
+                    writeEntry(out, count, delta);
+                    entries++;
+                    count = 0;
+                }
+                delta = duration;
+                count++;
+            }
+            if (count > 0) {
+                writeEntry(out, count, delta);
+                entries++;
+            }
+            return entries;
+        }
+    }
+
+    private final class CttsBox extends OutBox {
+
+        private final int mTrack;
+        private final int mEntryCount;
+        private boolean mSigned;
+
+        CttsBox(int track) throws IOException {
+            mTrack = track;
+            mEntryCount = writeEntries(null);
+        }
+
+        @Override
+        long size() {
+            return 16 + 8L * mEntryCount;
+        }
+
+        @Override
+        void write(@NonNull ChannelWriter out) throws IOException {
+            out.writeBoxHeader("ctts", size());
+            out.writeInt(mSigned ? 0x01000000 : 0);
+            out.writeInt(mEntryCount);
+            writeEntries(out);
+        }
+
+        private int writeEntries(ChannelWriter out) throws IOException {
+            SampleTable table = getTable(mTrack);
+            int entries = 0;
+            int count = 0;
+            int offset = 0;
+            for (int sample = mPlan.getStartSample(mTrack); sample < mPlan.getEndSample(mTrack); sample++) {
+                int sampleOffset = table.getCompositionOffset(sample);
+                mSigned |= sampleOffset < 0;
+                if (count > 0 && sampleOffset != offset) {
+                    writeEntry(out, count, offset);
+                    entries++;
+                    count = 0;
+                }
+                offset = sampleOffset;
+                count++;
+            }
+            if (count > 0) {
+                writeEntry(out, count, offset);
+                entries++;
+            }
+            return entries;
+        }
+    }
+
+    private static void writeEntry(ChannelWriter out, int count, long value) throws IOException {
+        if (out != null) {
+            out.writeInt(count);
+            out.writeUnsignedInt(value);
+        }
+    }
+
+    private final class StssBox extends OutBox {
+
+        private final int mTrack;
+        private final int mFirst;
+        private final int mEnd;
+
+        StssBox(int track) {
+            mTrack = track;
+            int[] syncSamples = getTable(track).getSyncSamples();
+            mFirst = lowerBound(syncSamples, mPlan.getStartSample(track));
+            mEnd = lowerBound(syncSamples, mPlan.getEndSample(track));
+        }
+
+        @Override
+        long size() {
+            return 16 + 4L * (mEnd - mFirst);
+        }
+
+        @Override
+        void write(@NonNull ChannelWriter out) throws IOException {
+            int[] syncSamples = getTable(mTrack).getSyncSamples();
+            int start = mPlan.getStartSample(mTrack);
+            out.writeBoxHeader("stss", size());
+            out.writeInt(0);
+            out.writeInt(mEnd - mFirst);
+            for (int i = mFirst; i < mEnd; i++) {
+                out.writeInt(syncSamples[i] - start + 1);
+            }
+        }
+    }
+
+    private static int lowerBound(@NonNull int[] values, int key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private final class StscBox extends OutBox {
+
+        private final int mTrack;
+        private final int mEntryCount;
+
+        StscBox(int track) throws IOException {
+            mTrack = track;
+            mEntryCount = writeEntries(null);
+        }
+
+        @Override
+        long size() {
+            return 16 + 12L * mEntryCount;
+        }
+
+        @Override
+        void write(@NonNull ChannelWriter out) throws IOException {
+            out.writeBoxHeader("stsc", size());
+            out.writeInt(0);
+            out.writeInt(mEntryCount);
+            writeEntries(out);
+        }
+
+        private int writeEntries(ChannelWriter out) throws IOException {
+            SampleTable table = getTable(mTrack);
+            int entries = 0;
+            int trackChunk = 0;
+            int lastCount = -1;
+            int lastDescription = -1;
+            for (int chunk = 0; chunk < mPlan.getChunkCount(); chunk++) {
+                if (mPlan.getChunkTrack(chunk) != mTrack) {
+                    continue;
+                }
+                int count = mPlan.getChunkSampleCount(chunk);
+                int description = table.getSampleDescriptionIndex(table.getChunkForSample(mPlan.getChunkFirstSample(chunk)));
+                trackChunk++;
+                if (count != lastCount || description != lastDescription) {
+                    if (out != null) {
+                        out.writeInt(trackChunk);
+                        out.writeInt(count);
+                        out.writeInt(description);
+                    }
+                    entries++;
+                    lastCount = count;
+                    lastDescription = description;
+                }
+            }
+            return entries;
+        }
+    }
+
+    private final class StszBox extends OutBox {
+
+        private final int mTrack;
+
+        StszBox(int track) {
+            mTrack = track;
+        }
+
+        @Override
+        long size() {
+            if (getTable(mTrack).getConstantSize() != 0) {
+                return 20;
+            }
+            return 20 + 4L * (mPlan.getEndSample(mTrack) - mPlan.getStartSample(mTrack));
+        }
+
+        @Override
+        void write(@NonNull ChannelWriter out) throws IOException {
+            SampleTable table = getTable(mTrack);
+            int start = mPlan.getStartSample(mTrack);
+            int end = mPlan.getEndSample(mTrack);
+            out.writeBoxHeader("stsz", size());
+            out.writeInt(0);
+            out.writeInt(table.getConstantSize());
+            out.writeInt(end - start);
+            if (table.getConstantSize() == 0) {
+                for (int sample = start; sample < end; sample++) {
+                    out.writeInt(table.getSize(sample));
+                }
+            }
+        }
+    }
+
+    private final class ChunkOffsetBox extends OutBox {
+
+        private final int mTrack;
+        private final boolean mWide;
+        private final int mEntryCount;
+
+        ChunkOffsetBox(int track, boolean wide) {
+            mTrack = track;
+            mWide = wide;
+            int entries = 0;
+            for (int chunk = 0; chunk < mPlan.getChunkCount(); chunk++) {
+                if (mPlan.getChunkTrack(chunk) == track) {
+                    entries++;
+                }
+            }
+            mEntryCount = entries;
+        }
+
+        @Override
+        long size() {
+            return 16 + (mWide ? 8L : 4L) * mEntryCount;
+        }
+
+        @Override
+        void write(@NonNull ChannelWriter out) throws IOException {
+            out.writeBoxHeader(mWide ? "co64" : "stco", size());
+            out.writeInt(0);
+            out.writeInt(mEntryCount);
+            long offset = mDataOffset;
+            for (int chunk = 0; chunk < mPlan.getChunkCount(); chunk++) {
+                if (mPlan.getChunkTrack(chunk) == mTrack) {
+                    if (mWide) {
+                        out.writeLong(offset);
+                    } else {
+                        out.writeUnsignedInt(offset);
+                    }
+                }
+                offset += mPlan.getChunkSize(chunk);
+                verify(mWide || offset <= 0xFFFFFFFFL, "chunk " + chunk + " ends after 4GB in stco");
+            }
+            verify(offset == mDataOffset + mPlan.getDataSize(), "chunk offsets end at " + offset);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Running digest of everything written to an output, either a CRC32 or any
+ * {@link MessageDigest} algorithm.
+ */
+final class OutputDigest {
+
+    static final String CRC32 = "CRC32";
+
+    private final String mAlgorithm;
+    private final CRC32 mCrc;
+    private final MessageDigest mDigest;
+    private byte[] mScratch;
+
+    private OutputDigest(@NonNull String algorithm, CRC32 crc, MessageDigest digest) {
+        mAlgorithm = algorithm;
+        mCrc = crc;
+        mDigest = digest;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the algorithm is not available
+     */
+    @NonNull
+    static OutputDigest create(@NonNull String algorithm) {
+        if (CRC32.equalsIgnoreCase(algorithm)) {
+            return new OutputDigest(CRC32, new CRC32(), null);
+        }
+        try {
+            return new OutputDigest(algorithm, null, MessageDigest.getInstance(algorithm));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown digest algorithm " + algorithm, e);
+        }
+    }
+
+    @NonNull
+    String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    void update(@NonNull byte[] src, int offset, int length) {
+        if (mCrc != null) {
+            mCrc.update(src, offset, length);
+        } else {
+            mDigest.update(src, offset, length);
+        }
+    }
+
+    /**
+     * Updates with the remaining bytes of <code>src</code>, leaving its position as it is.
+     */
+    void update(@NonNull ByteBuffer src) {
+        ByteBuffer view = src.duplicate();
+        if (mDigest != null) {
+            mDigest.update(view);
+            return;
+        }
+        if (view.hasArray()) {
+            mCrc.update(view.array(), view.arrayOffset() + view.position(), view.remaining());
+            return;
+        }
+        if (mScratch == null) {
+            mScratch = new byte[64 * 1024];
+        }
+        while (view.hasRemaining()) {
+            int count = Math.min(view.remaining(), mScratch.length);
+            view.get(mScratch, 0, count);
+            mCrc.update(mScratch, 0, count);
+        }
+    }
+
+    /**
+     * @return the digest of the bytes so far, in lowercase hexadecimal. If the algorithm
+     * cannot be cloned, the digest starts over afterwards
+     */
+    @NonNull
+    String getValue() {
+        if (mCrc != null) {
+            String value = Long.toHexString(mCrc.getValue());
+            return "00000000".substring(value.length()) + value;
+        }
+        byte[] digest;
+        try {
+            // on a clone, so that the digest can go on
+            digest = ((MessageDigest) mDigest.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            digest = mDigest.digest();
+        }
+        StringBuilder value = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            value.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+/**
+ * Fixed size array of unsigned values stored with only as many bits per value
+ * as the largest value needs.
+ */
+public final class PackedArray {
+
+    private final long[] mBlocks;
+    private final int mSize;
+    private final int mBitsPerValue;
+    private final long mMask;
+
+    public PackedArray(int size, int bitsPerValue) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size: " + size);
+        }
+        if (bitsPerValue < 1 || bitsPerValue > 64) {
+            throw new IllegalArgumentException("Bits per value must be between 1 and 64: " + bitsPerValue);
+        }
+        mSize = size;
+        mBitsPerValue = bitsPerValue;
+        mMask = bitsPerValue == 64 ? -1L : (1L << bitsPerValue) - 1;
+        mBlocks = new long[(int) (((long) size * bitsPerValue + 63) >>> 6)];
+    }
+
+    /**
+     * @param maxValue the largest value that will be stored
+     * @return the number of bits needed to store every value up to <code>maxValue</code>
+     */
+    public static int bitsRequired(long maxValue) {
+        return maxValue == 0 ? 1 : 64 - Long.numberOfLeadingZeros(maxValue);
+    }
+
+    public long get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + mSize);
+        }
+        long bitIndex = (long) index * mBitsPerValue;
+        int block = (int) (bitIndex >>> 6);
+        int shift = (int) (bitIndex & 63);
+        long value = mBlocks[block] >>> shift;
+        int spill = shift + mBitsPerValue - 64;
+        if (spill > 0) {
+            value |= mBlocks[block + 1] << (mBitsPerValue - spill);
+        }
+        return value & mMask;
+    }
+
+    public void set(int index, long value) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + mSize);
+        }
+        if ((value & ~mMask) != 0) {
+            throw new IllegalArgumentException("Value " + value + " does not fit in " + mBitsPerValue + " bits");
+        }
+        long bitIndex = (long) index * mBitsPerValue;
+        int block = (int) (bitIndex >>> 6);
+        int shift = (int) (bitIndex & 63);
+        mBlocks[block] = (mBlocks[block] & ~(mMask << shift)) | (value << shift);
+        int spill = shift + mBitsPerValue - 64;
+        if (spill > 0) {
+            int written = mBitsPerValue - spill;
+            mBlocks[block + 1] = (mBlocks[block + 1] & ~(mMask >>> written)) | (value >>> written);
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getBitsPerValue() {
+        return mBitsPerValue;
+    }
+
+    /**
+     * @return the heap used by the packed values, in bytes
+     */
+    public long getSizeInBytes() {
+        return 8L * mBlocks.length;
+    }
+}
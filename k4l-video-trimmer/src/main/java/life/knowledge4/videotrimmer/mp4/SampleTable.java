@@ -0,0 +1,506 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Sample tables of a track in the compact form they have in the file: decoding and
+ * composition times stay run-length encoded (stts/ctts), sample sizes and chunk offsets
+ * are bit packed (stsz/stco) and sample-to-chunk stays one entry per run (stsc).
+ * Every property is still available by sample number.
+ */
+public final class SampleTable {
+
+    private final int mSampleCount;
+
+    // stts
+    private final int[] mTimeCounts;
+    private final int[] mTimeDeltas;
+    private final int[] mTimeFirstSamples;
+    private final long[] mTimeFirstTimes;
+    private final long mDuration;
+    private final long mTimeOffset;
+
+    // ctts, null when the track has no composition offsets
+    private final int[] mOffsetCounts;
+    private final int[] mOffsets;
+    private final int[] mOffsetFirstSamples;
+
+    // stsz
+    private final int mConstantSize;
+    private final PackedArray mSizes;
+
+    // stss, zero based, null when every sample is a sync sample
+    private final int[] mSyncSamples;
+
+    // stsc, zero based chunk numbers
+    private final int[] mChunkRunFirstChunks;
+    private final int[] mChunkRunSampleCounts;
+    private final int[] mChunkRunDescriptionIndexes;
+    private final int[] mChunkRunFirstSamples;
+
+    // stco / co64
+    private final PackedArray mChunkOffsets;
+
+    SampleTable(int sampleCount,
+                @NonNull int[] timeCounts, @NonNull int[] timeDeltas,
+                @Nullable int[] offsetCounts, @Nullable int[] offsets,
+                int constantSize, @Nullable PackedArray sizes,
+                @Nullable int[] syncSamples,
+                @NonNull int[] chunkRunFirstChunks, @NonNull int[] chunkRunSampleCounts, @NonNull int[] chunkRunDescriptionIndexes,
+                @NonNull PackedArray chunkOffsets) {
+        this(sampleCount, timeCounts, timeDeltas, offsetCounts, offsets, constantSize, sizes, syncSamples,
+                chunkRunFirstChunks, chunkRunSampleCounts, chunkRunDescriptionIndexes, chunkOffsets, 0);
+    }
+
+    /**
+     * @param timeOffset the decoding time of the first sample, for tables of samples that
+     *                   do not start at the beginning of their track
+     */
+    SampleTable(int sampleCount,
+                @NonNull int[] timeCounts, @NonNull int[] timeDeltas,
+                @Nullable int[] offsetCounts, @Nullable int[] offsets,
+                int constantSize, @Nullable PackedArray sizes,
+                @Nullable int[] syncSamples,
+                @NonNull int[] chunkRunFirstChunks, @NonNull int[] chunkRunSampleCounts, @NonNull int[] chunkRunDescriptionIndexes,
+                @NonNull PackedArray chunkOffsets, long timeOffset) {
+        mSampleCount = sampleCount;
+        mTimeOffset = timeOffset;
+
+        mTimeCounts = coverSamples(timeCounts, sampleCount);
+        mTimeDeltas = timeDeltas;
+        mTimeFirstSamples = new int[mTimeCounts.length + 1];
+        mTimeFirstTimes = new long[mTimeCounts.length + 1];
+        for (int i = 0; i < mTimeCounts.length; i++) {
+            mTimeFirstSamples[i + 1] = mTimeFirstSamples[i] + mTimeCounts[i];
+            mTimeFirstTimes[i + 1] = mTimeFirstTimes[i] + (long) mTimeCounts[i] * (mTimeDeltas[i] & 0xFFFFFFFFL);
+        }
+        mDuration = sampleCount == 0 ? 0 : getDecodingTime(sampleCount - 1) - timeOffset + getDuration(sampleCount - 1);
+
+        if (offsetCounts != null && offsets != null) {
+            mOffsetCounts = coverSamples(offsetCounts, sampleCount);
+            mOffsets = offsets;
+            mOffsetFirstSamples = new int[mOffsetCounts.length + 1];
+            for (int i = 0; i < mOffsetCounts.length; i++) {
+                mOffsetFirstSamples[i + 1] = mOffsetFirstSamples[i] + mOffsetCounts[i];
+            }
+        } else {
+            mOffsetCounts = null;
+            mOffsets = null;
+            mOffsetFirstSamples = null;
+        }
+
+        mConstantSize = constantSize;
+        mSizes = sizes;
+        mSyncSamples = syncSamples;
+
+        mChunkOffsets = chunkOffsets;
+        mChunkRunFirstChunks = chunkRunFirstChunks;
+        mChunkRunSampleCounts = chunkRunSampleCounts;
+        mChunkRunDescriptionIndexes = chunkRunDescriptionIndexes;
+        mChunkRunFirstSamples = new int[chunkRunFirstChunks.length];
+        for (int i = 1; i < chunkRunFirstChunks.length; i++) {
+            long chunks = chunkRunFirstChunks[i] - chunkRunFirstChunks[i - 1];
+            mChunkRunFirstSamples[i] = (int) Math.min(Integer.MAX_VALUE, mChunkRunFirstSamples[i - 1] + chunks * chunkRunSampleCounts[i - 1]);
+        }
+    }
+
+    /**
+     * Stretches the last run so that the runs cover every sample, as some muxers write
+     * fewer entries than samples.
+     */
+    @NonNull
+    private static int[] coverSamples(@NonNull int[] counts, int sampleCount) {
+        long covered = 0;
+        for (int count : counts) {
+            covered += count;
+        }
+        if (covered >= sampleCount || counts.length == 0) {
+            return counts;
+        }
+        int[] result = Arrays.copyOf(counts, counts.length);
+        result[result.length - 1] += sampleCount - covered;
+        return result;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return the sum of all sample durations, in track timescale units
+     */
+    public long getDuration() {
+        return mDuration;
+    }
+
+    public long getDuration(int sample) {
+        checkSample(sample);
+        if (mTimeDeltas.length == 0) {
+            return 0;
+        }
+        return mTimeDeltas[findRun(mTimeFirstSamples, sample)] & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @param sample a sample number, or the sample count for the end of the track
+     * @return the decoding time of the sample, in track timescale units
+     */
+    public long getDecodingTime(int sample) {
+        if (sample == mSampleCount && mSampleCount > 0) {
+            return mTimeOffset + mDuration;
+        }
+        checkSample(sample);
+        if (mTimeDeltas.length == 0) {
+            return mTimeOffset;
+        }
+        int run = findRun(mTimeFirstSamples, sample);
+        return mTimeOffset + mTimeFirstTimes[run] + (long) (sample - mTimeFirstSamples[run]) * (mTimeDeltas[run] & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the last sample whose decoding time is not after <code>time</code>, or -1 if
+     * every sample starts after it
+     */
+    public int getSampleAtTime(long time) {
+        time -= mTimeOffset;
+        if (mSampleCount == 0 || time < 0) {
+            return -1;
+        }
+        if (time >= mDuration) {
+            return mSampleCount - 1;
+        }
+        int run = upperBound(mTimeFirstTimes, 0, mTimeCounts.length, time) - 1;
+        while (run > 0 && mTimeCounts[run] == 0) {
+            run--;
+        }
+        long delta = mTimeDeltas[run] & 0xFFFFFFFFL;
+        long inRun = delta == 0 ? mTimeCounts[run] - 1 : Math.min(mTimeCounts[run] - 1, (time - mTimeFirstTimes[run]) / delta);
+        return Math.min(mSampleCount - 1, mTimeFirstSamples[run] + (int) inRun);
+    }
+
+    public boolean hasCompositionOffsets() {
+        return mOffsets != null;
+    }
+
+    public int getCompositionOffset(int sample) {
+        checkSample(sample);
+        if (mOffsets == null || mOffsets.length == 0) {
+            return 0;
+        }
+        return mOffsets[findRun(mOffsetFirstSamples, sample)];
+    }
+
+    public int getSize(int sample) {
+        checkSample(sample);
+        return mSizes == null ? mConstantSize : (int) mSizes.get(sample);
+    }
+
+    /**
+     * @return the size every sample has, or 0 when sizes vary
+     */
+    public int getConstantSize() {
+        return mSizes == null ? mConstantSize : 0;
+    }
+
+    public boolean hasSyncSamples() {
+        return mSyncSamples != null;
+    }
+
+    public boolean isSyncSample(int sample) {
+        checkSample(sample);
+        return mSyncSamples == null || Arrays.binarySearch(mSyncSamples, sample) >= 0;
+    }
+
+    /**
+     * @return the zero based sync sample numbers, or null when every sample is a sync sample
+     */
+    @Nullable
+    public int[] getSyncSamples() {
+        return mSyncSamples;
+    }
+
+    public int getChunkCount() {
+        return mChunkOffsets.size();
+    }
+
+    public long getChunkOffset(int chunk) {
+        return mChunkOffsets.get(chunk);
+    }
+
+    public int getChunkForSample(int sample) {
+        checkSample(sample);
+        int run = upperBound(mChunkRunFirstSamples, sample) - 1;
+        while (run > 0 && mChunkRunSampleCounts[run] == 0) {
+            run--;
+        }
+        int perChunk = Math.max(1, mChunkRunSampleCounts[run]);
+        return mChunkRunFirstChunks[run] + (sample - mChunkRunFirstSamples[run]) / perChunk;
+    }
+
+    public int getChunkFirstSample(int chunk) {
+        int run = upperBound(mChunkRunFirstChunks, chunk) - 1;
+        long first = mChunkRunFirstSamples[run] + (long) (chunk - mChunkRunFirstChunks[run]) * mChunkRunSampleCounts[run];
+        return (int) Math.min(mSampleCount, first);
+    }
+
+    public int getChunkSampleCount(int chunk) {
+        int run = upperBound(mChunkRunFirstChunks, chunk) - 1;
+        return Math.max(0, Math.min(mChunkRunSampleCounts[run], mSampleCount - getChunkFirstSample(chunk)));
+    }
+
+    /**
+     * @return the one based sample description index of the samples in <code>chunk</code>
+     */
+    public int getSampleDescriptionIndex(int chunk) {
+        return mChunkRunDescriptionIndexes[upperBound(mChunkRunFirstChunks, chunk) - 1];
+    }
+
+    /**
+     * @return the offset of the sample in the file
+     */
+    public long getSampleOffset(int sample) {
+        int chunk = getChunkForSample(sample);
+        long offset = getChunkOffset(chunk);
+        for (int i = getChunkFirstSample(chunk); i < sample; i++) {
+            offset += getSize(i);
+        }
+        return offset;
+    }
+
+    /**
+     * @return the heap used by this table, in bytes
+     */
+    public long getSizeInBytes() {
+        long size = 4L * (mTimeCounts.length + mTimeDeltas.length + mTimeFirstSamples.length) + 8L * mTimeFirstTimes.length;
+        if (mOffsets != null) {
+            size += 4L * (mOffsetCounts.length + mOffsets.length + mOffsetFirstSamples.length);
+        }
+        if (mSizes != null) {
+            size += mSizes.getSizeInBytes();
+        }
+        if (mSyncSamples != null) {
+            size += 4L * mSyncSamples.length;
+        }
+        size += 16L * mChunkRunFirstChunks.length;
+        return size + mChunkOffsets.getSizeInBytes();
+    }
+
+    private void checkSample(int sample) {
+        if (sample < 0 || sample >= mSampleCount) {
+            throw new IndexOutOfBoundsException("Sample " + sample + " out of " + mSampleCount);
+        }
+    }
+
+    /**
+     * @return the run containing <code>sample</code>, given the first sample of every run
+     */
+    private static int findRun(@NonNull int[] firstSamples, int sample) {
+        return Math.min(upperBound(firstSamples, sample) - 1, firstSamples.length - 2);
+    }
+
+    /**
+     * @return the index of the first value greater than <code>key</code> in a sorted array
+     */
+    private static int upperBound(@NonNull int[] values, int key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int upperBound(@NonNull long[] values, int from, int to, long key) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Reads the tables of a <code>stbl</code> box.
+     */
+    @NonNull
+    static SampleTable read(@NonNull FileChannel channel, @NonNull Mp4Box stbl) throws IOException {
+        ChannelReader reader = new ChannelReader(channel, stbl.getContentOffset());
+
+        // stsz / stz2
+        int sampleCount;
+        int constantSize = 0;
+        PackedArray sizes = null;
+        Mp4Box stsz = stbl.getChild("stsz");
+        Mp4Box stz2 = stbl.getChild("stz2");
+        if (stsz != null) {
+            reader.seek(stsz.getContentOffset() + 4);
+            constantSize = reader.readCount();
+            sampleCount = reader.readCount();
+            if (constantSize == 0) {
+                long entries = reader.position();
+                long max = 0;
+                for (int i = 0; i < sampleCount; i++) {
+                    max = Math.max(max, reader.readUnsignedInt());
+                }
+                sizes = new PackedArray(sampleCount, PackedArray.bitsRequired(max));
+                reader.seek(entries);
+                for (int i = 0; i < sampleCount; i++) {
+                    sizes.set(i, reader.readUnsignedInt());
+                }
+            }
+        } else if (stz2 != null) {
+            reader.seek(stz2.getContentOffset() + 7);
+            int fieldSize = reader.readUnsignedByte();
+            sampleCount = reader.readCount();
+            sizes = new PackedArray(sampleCount, fieldSize);
+            for (int i = 0; i < sampleCount; i++) {
+                if (fieldSize == 16) {
+                    sizes.set(i, reader.readUnsignedShort());
+                } else if (fieldSize == 8) {
+                    sizes.set(i, reader.readUnsignedByte());
+                } else if (fieldSize == 4) {
+                    int b = reader.readUnsignedByte();
+                    sizes.set(i, b >>> 4);
+                    if (++i < sampleCount) {
+                        sizes.set(i, b & 0x0F);
+                    }
+                } else {
+                    throw new IOException("Invalid stz2 field size " + fieldSize);
+                }
+            }
+        } else {
+            throw new IOException("Missing stsz in " + stbl);
+        }
+
+        // stts
+        Mp4Box stts = required(stbl, "stts");
+        reader.seek(stts.getContentOffset() + 4);
+        int timeEntries = reader.readCount();
+        int[] timeCounts = new int[timeEntries];
+        int[] timeDeltas = new int[timeEntries];
+        for (int i = 0; i < timeEntries; i++) {
+            timeCounts[i] = reader.readCount();
+            timeDeltas[i] = reader.readInt();
+        }
+
+        // ctts
+        int[] offsetCounts = null;
+        int[] offsets = null;
+        Mp4Box ctts = stbl.getChild("ctts");
+        if (ctts != null) {
+            reader.seek(ctts.getContentOffset() + 4);
+            int offsetEntries = reader.readCount();
+            offsetCounts = new int[offsetEntries];
+            offsets = new int[offsetEntries];
+            for (int i = 0; i < offsetEntries; i++) {
+                offsetCounts[i] = reader.readCount();
+                offsets[i] = reader.readInt();
+            }
+        }
+
+        // stss
+        int[] syncSamples = null;
+        Mp4Box stss = stbl.getChild("stss");
+        if (stss != null) {
+            reader.seek(stss.getContentOffset() + 4);
+            int syncEntries = reader.readCount();
+            syncSamples = new int[syncEntries];
+            for (int i = 0; i < syncEntries; i++) {
+                syncSamples[i] = reader.readCount() - 1;
+            }
+            Arrays.sort(syncSamples);
+        }
+
+        // stsc
+        Mp4Box stsc = required(stbl, "stsc");
+        reader.seek(stsc.getContentOffset() + 4);
+        int chunkRuns = reader.readCount();
+        int[] firstChunks = new int[chunkRuns];
+        int[] samplesPerChunk = new int[chunkRuns];
+        int[] descriptionIndexes = new int[chunkRuns];
+        for (int i = 0; i < chunkRuns; i++) {
+            firstChunks[i] = reader.readCount() - 1;
+            samplesPerChunk[i] = reader.readCount();
+            descriptionIndexes[i] = reader.readCount();
+        }
+        if (chunkRuns == 0 || firstChunks[0] != 0) {
+            if (sampleCount > 0) {
+                throw new IOException("Invalid stsc in " + stbl);
+            }
+            firstChunks = new int[]{0};
+            samplesPerChunk = new int[]{0};
+            descriptionIndexes = new int[]{1};
+        }
+
+        // stco / co64
+        Mp4Box stco = stbl.getChild("stco");
+        Mp4Box co64 = stbl.getChild("co64");
+        boolean wide = stco == null;
+        Mp4Box chunkOffsetBox = wide ? co64 : stco;
+        if (chunkOffsetBox == null) {
+            throw new IOException("Missing stco in " + stbl);
+        }
+        reader.seek(chunkOffsetBox.getContentOffset() + 4);
+        int chunkCount = reader.readCount();
+        long entries = reader.position();
+        long max = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            max = Math.max(max, wide ? reader.readLong() : reader.readUnsignedInt());
+        }
+        PackedArray chunkOffsets = new PackedArray(chunkCount, PackedArray.bitsRequired(max));
+        reader.seek(entries);
+        for (int i = 0; i < chunkCount; i++) {
+            chunkOffsets.set(i, wide ? reader.readLong() : reader.readUnsignedInt());
+        }
+
+        return new SampleTable(sampleCount, timeCounts, timeDeltas, offsetCounts, offsets,
+                constantSize, sizes, syncSamples, firstChunks, samplesPerChunk, descriptionIndexes, chunkOffsets);
+    }
+
+    @NonNull
+    private static Mp4Box required(@NonNull Mp4Box parent, @NonNull String type) throws IOException {
+        Mp4Box box = parent.getChild(type);
+        if (box == null) {
+            throw new IOException("Missing " + type + " in " + parent);
+        }
+        return box;
+    }
+}
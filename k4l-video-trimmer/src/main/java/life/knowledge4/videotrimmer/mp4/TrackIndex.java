@@ -0,0 +1,116 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * A track of an indexed file: its identity, its timescale and its sample tables.
+ */
+public final class TrackIndex {
+
+    public static final String HANDLER_VIDEO = "vide";
+    public static final String HANDLER_SOUND = "soun";
+
+    private final int mTrackId;
+    private final String mHandlerType;
+    private final long mTimescale;
+    private final Mp4Box mTrak;
+    private final SampleTable mSampleTable;
+
+    TrackIndex(int trackId, @NonNull String handlerType, long timescale, @NonNull Mp4Box trak, @NonNull SampleTable sampleTable) {
+        mTrackId = trackId;
+        mHandlerType = handlerType;
+        mTimescale = timescale;
+        mTrak = trak;
+        mSampleTable = sampleTable;
+    }
+
+    public int getTrackId() {
+        return mTrackId;
+    }
+
+    @NonNull
+    public String getHandlerType() {
+        return mHandlerType;
+    }
+
+    public long getTimescale() {
+        return mTimescale;
+    }
+
+    @NonNull
+    public Mp4Box getTrak() {
+        return mTrak;
+    }
+
+    @NonNull
+    public SampleTable getSampleTable() {
+        return mSampleTable;
+    }
+
+    public long getDurationUs() {
+        return toUs(mSampleTable.getDuration());
+    }
+
+    /**
+     * @return the presentation times of the sync samples, in microseconds and in order, or
+     * null when every sample is a sync sample
+     */
+    @Nullable
+    public long[] getSyncSampleTimesUs() {
+        int[] syncSamples = mSampleTable.getSyncSamples();
+        if (syncSamples == null) {
+            return null;
+        }
+        long[] times = new long[syncSamples.length];
+        for (int i = 0; i < syncSamples.length; i++) {
+            int sample = syncSamples[i];
+            times[i] = toUs(mSampleTable.getDecodingTime(sample) + mSampleTable.getCompositionOffset(sample));
+        }
+        // composition offsets may reorder them
+        Arrays.sort(times);
+        return times;
+    }
+
+    /**
+     * @param units a time in track timescale units
+     * @return the time in microseconds, rounded down
+     */
+    public long toUs(long units) {
+        return units * 1000000L / mTimescale;
+    }
+
+    /**
+     * @param us a time in microseconds
+     * @return the time in track timescale units, rounded up so that converting a track
+     * time to microseconds and back gives the same time
+     */
+    public long toUnits(long us) {
+        return (us * mTimescale + 999999L) / 1000000L;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Small file recording the layout of a trim being written and how far the copy of
+ * the samples went, so that the trim can continue after the process died.
+ * <p>
+ * It holds the identity of the source and of the plan, a checksum of everything
+ * before the samples and the number of chunks known to be on disk, with the checksum
+ * of the last of them. Resuming checks both checksums against the partial output.
+ */
+public final class TrimJournal {
+
+    private static final int MAGIC = 0x4B344C4A;
+    private static final int VERSION = 1;
+
+    private final String mSourcePath;
+    private final long mSourceLength;
+    private final long mSourceLastModified;
+    private final long mStartUs;
+    private final long mEndUs;
+    private final int mChunkCount;
+    private final long mDataSize;
+    private final String mOutputPath;
+    private final long mHeaderSize;
+    private final long mHeaderChecksum;
+
+    private int mCompletedChunks;
+    private long mCompletedPosition;
+    private long mLastChunkChecksum;
+
+    private TrimJournal(@NonNull String sourcePath, long sourceLength, long sourceLastModified, long startUs, long endUs,
+                        int chunkCount, long dataSize, @NonNull String outputPath, long headerSize, long headerChecksum) {
+        mSourcePath = sourcePath;
+        mSourceLength = sourceLength;
+        mSourceLastModified = sourceLastModified;
+        mStartUs = startUs;
+        mEndUs = endUs;
+        mChunkCount = chunkCount;
+        mDataSize = dataSize;
+        mOutputPath = outputPath;
+        mHeaderSize = headerSize;
+        mHeaderChecksum = headerChecksum;
+        mCompletedPosition = headerSize;
+    }
+
+    @NonNull
+    static TrimJournal create(@NonNull TrimPlan plan, @NonNull File output, long headerSize, long headerChecksum) {
+        Mp4Index index = plan.getIndex();
+        return new TrimJournal(index.getFile().getAbsolutePath(), index.getLength(), index.getLastModified(),
+                plan.getStartUs(), plan.getEndUs(), plan.getChunkCount(), plan.getDataSize(),
+                output.getAbsolutePath(), headerSize, headerChecksum);
+    }
+
+    /**
+     * @return the journal stored in <code>file</code>, or null if there is none or it
+     * cannot be read
+     */
+    @Nullable
+    public static TrimJournal read(@NonNull File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                TrimJournal journal = new TrimJournal(in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readLong(),
+                        in.readInt(), in.readLong(), in.readUTF(), in.readLong(), in.readLong());
+                journal.mCompletedChunks = in.readInt();
+                journal.mCompletedPosition = in.readLong();
+                journal.mLastChunkChecksum = in.readLong();
+                return journal;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Replaces <code>file</code> with this journal. The new content is written aside and
+     * renamed over the old one, so a crash leaves either of them intact.
+     */
+    void write(@NonNull File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mSourcePath);
+            out.writeLong(mSourceLength);
+            out.writeLong(mSourceLastModified);
+            out.writeLong(mStartUs);
+            out.writeLong(mEndUs);
+            out.writeInt(mChunkCount);
+            out.writeLong(mDataSize);
+            out.writeUTF(mOutputPath);
+            out.writeLong(mHeaderSize);
+            out.writeLong(mHeaderChecksum);
+            out.writeInt(mCompletedChunks);
+            out.writeLong(mCompletedPosition);
+            out.writeLong(mLastChunkChecksum);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not write journal " + file);
+        }
+    }
+
+    @NonNull
+    public String getOutputPath() {
+        return mOutputPath;
+    }
+
+    public int getCompletedChunks() {
+        return mCompletedChunks;
+    }
+
+    public long getCompletedPosition() {
+        return mCompletedPosition;
+    }
+
+    long getHeaderSize() {
+        return mHeaderSize;
+    }
+
+    /**
+     * Records that <code>output</code> is complete up to <code>completedPosition</code>, with
+     * the checksum of the last completed chunk read back from it.
+     *
+     * @param lastChunkSize the size of the last completed chunk
+     */
+    void checkpoint(@NonNull FileChannel output, int completedChunks, long completedPosition, int lastChunkSize) throws IOException {
+        mCompletedChunks = completedChunks;
+        mCompletedPosition = completedPosition;
+        mLastChunkChecksum = checksum(output, completedPosition - lastChunkSize, lastChunkSize);
+    }
+
+    /**
+     * @return whether this journal was written for <code>plan</code> into <code>output</code>
+     */
+    boolean matches(@NonNull TrimPlan plan, @NonNull File output) {
+        Mp4Index index = plan.getIndex();
+        return mSourcePath.equals(index.getFile().getAbsolutePath())
+                && mSourceLength == index.getLength()
+                && mSourceLastModified == index.getLastModified()
+                && mStartUs == plan.getStartUs()
+                && mEndUs == plan.getEndUs()
+                && mChunkCount == plan.getChunkCount()
+                && mDataSize == plan.getDataSize()
+                && mOutputPath.equals(output.getAbsolutePath());
+    }
+
+    /**
+     * Checks the part of <code>output</code> this journal says is complete.
+     *
+     * @param lastChunkSize the size of the last completed chunk
+     */
+    boolean verify(@NonNull FileChannel output, int lastChunkSize) throws IOException {
+        if (output.size() < mCompletedPosition || mCompletedChunks > mChunkCount) {
+            return false;
+        }
+        if (checksum(output, 0, mHeaderSize) != mHeaderChecksum) {
+            return false;
+        }
+        return mCompletedChunks == 0 || checksum(output, mCompletedPosition - lastChunkSize, lastChunkSize) == mLastChunkChecksum;
+    }
+
+    private static long checksum(@NonNull FileChannel channel, long position, long count) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (count > 0) {
+            buffer.clear();
+            if (count < buffer.capacity()) {
+                buffer.limit((int) count);
+            }
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                return -1;
+            }
+            crc.update(buffer.array(), 0, read);
+            position += read;
+            count -= read;
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Where the time of a trim went and how much I/O it did. Times are in nanoseconds.
+ * <p>
+ * The parse and index times are those of the {@link Mp4Index} the trim used, which may
+ * have been built ahead of the trim.
+ * <p>
+ * Some trims only fill part of the metrics. A result handed out by a trim result cache
+ * has the I/O and write time of the copy, if it was copied, and the time and reads of its
+ * digest, if one was asked for. A fragmented source without a fragment
+ * index is trimmed by mp4parser, which only tells its parse, cut point and write times
+ * and the bytes written, and has no digest.
+ */
+public final class TrimMetrics {
+
+    private long mParseTimeNs;
+    private long mIndexTimeNs;
+    private long mCutPointTimeNs;
+    private long mWriteTimeNs;
+    private long mBytesRead;
+    private long mBytesWritten;
+    private long mReadCount;
+    private long mWriteCount;
+    private long mPeakBufferBytes;
+    private String mDigestAlgorithm;
+    private String mDigest;
+
+    TrimMetrics() {
+    }
+
+    /**
+     * @return the metrics of a trim written by mp4parser, see the limits above
+     */
+    @NonNull
+    public static TrimMetrics fromMp4Parser(long parseTimeNs, long cutPointTimeNs, long writeTimeNs, long bytesWritten) {
+        TrimMetrics metrics = new TrimMetrics();
+        metrics.setIndexTimes(parseTimeNs, 0);
+        metrics.setCutPointTimeNs(cutPointTimeNs);
+        metrics.addWriteTimeNs(writeTimeNs);
+        metrics.addWrites(1, bytesWritten);
+        return metrics;
+    }
+
+    /**
+     * @return the time spent reading the box tree of the source
+     */
+    public long getParseTimeNs() {
+        return mParseTimeNs;
+    }
+
+    /**
+     * @return the time spent reading the sample tables of the source
+     */
+    public long getIndexTimeNs() {
+        return mIndexTimeNs;
+    }
+
+    /**
+     * @return the time spent moving the cut to sync samples and planning the chunks
+     */
+    public long getCutPointTimeNs() {
+        return mCutPointTimeNs;
+    }
+
+    /**
+     * @return the time spent writing the output, header included
+     */
+    public long getWriteTimeNs() {
+        return mWriteTimeNs;
+    }
+
+    /**
+     * @return the bytes read from the source while writing
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * @return the bytes written to the output
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public long getReadCount() {
+        return mReadCount;
+    }
+
+    public long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * @return the number of read and write calls made while writing
+     */
+    public long getIoCount() {
+        return mReadCount + mWriteCount;
+    }
+
+    /**
+     * @return the most bytes of copy buffers in use at the same time
+     */
+    public long getPeakBufferBytes() {
+        return mPeakBufferBytes;
+    }
+
+    /**
+     * @return the bytes written per second of write time
+     */
+    public long getThroughputBytesPerSecond() {
+        return mWriteTimeNs > 0 ? (long) (mBytesWritten * 1e9 / mWriteTimeNs) : 0;
+    }
+
+    /**
+     * @return the algorithm of {@link #getDigest()}, or null if the trim was not verified
+     */
+    public String getDigestAlgorithm() {
+        return mDigestAlgorithm;
+    }
+
+    /**
+     * @return the digest of the whole output in lowercase hexadecimal, computed while it was
+     * written, or null if the trim was not verified
+     */
+    public String getDigest() {
+        return mDigest;
+    }
+
+    void setIndexTimes(long parseTimeNs, long indexTimeNs) {
+        mParseTimeNs = parseTimeNs;
+        mIndexTimeNs = indexTimeNs;
+    }
+
+    void setCutPointTimeNs(long cutPointTimeNs) {
+        mCutPointTimeNs = cutPointTimeNs;
+    }
+
+    void addWriteTimeNs(long writeTimeNs) {
+        mWriteTimeNs += writeTimeNs;
+    }
+
+    void addReads(long count, long bytes) {
+        mReadCount += count;
+        mBytesRead += bytes;
+    }
+
+    void addWrites(long count, long bytes) {
+        mWriteCount += count;
+        mBytesWritten += bytes;
+    }
+
+    void addPeakBufferBytes(long bufferBytes) {
+        mPeakBufferBytes += bufferBytes;
+    }
+
+    void setDigest(String algorithm, String digest) {
+        mDigestAlgorithm = algorithm;
+        mDigest = digest;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "TrimMetrics{parse=%.1fms, index=%.1fms, cutPoints=%.1fms, write=%.1fms, "
+                        + "read=%d bytes in %d calls, written=%d bytes in %d calls, peakBuffers=%d bytes, throughput=%d bytes/s, %s=%s}",
+                mParseTimeNs / 1e6, mIndexTimeNs / 1e6, mCutPointTimeNs / 1e6, mWriteTimeNs / 1e6,
+                mBytesRead, mReadCount, mBytesWritten, mWriteCount, mPeakBufferBytes, getThroughputBytesPerSecond(),
+                mDigestAlgorithm != null ? mDigestAlgorithm : "digest", mDigest);
+    }
+}
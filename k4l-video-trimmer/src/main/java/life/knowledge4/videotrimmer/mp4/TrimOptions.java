@@ -0,0 +1,101 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import life.knowledge4.videotrimmer.interfaces.OnTrimMetricsListener;
+
+/**
+ * Options of a trim.
+ */
+public final class TrimOptions {
+
+    public static final String DIGEST_CRC32 = OutputDigest.CRC32;
+    public static final String DIGEST_SHA256 = "SHA-256";
+
+    private boolean mResumable;
+    private long mInterleaveDurationMs;
+    private OnTrimMetricsListener mMetricsListener;
+    private String mDigestAlgorithm;
+
+    public boolean isResumable() {
+        return mResumable;
+    }
+
+    /**
+     * Journals the progress of the trim next to its output, so that submitting the same
+     * trim again after the process died continues from the last checkpoint. A trim that
+     * fails for another reason deletes both, and
+     * {@link life.knowledge4.videotrimmer.utils.TrimVideoUtils#discardResumableTrims(String)}
+     * deletes those left by interrupted trims.
+     */
+    public void setResumable(boolean resumable) {
+        mResumable = resumable;
+    }
+
+    public long getInterleaveDurationMs() {
+        return mInterleaveDurationMs;
+    }
+
+    /**
+     * Cuts the output into chunks of at most <code>durationMs</code> per track, written in
+     * time order, so that reading the output from start to end stays sequential. With 0,
+     * the default, the chunk layout of the source is kept.
+     */
+    public void setInterleaveDurationMs(long durationMs) {
+        if (durationMs < 0) {
+            throw new IllegalArgumentException("Negative interleave duration: " + durationMs);
+        }
+        mInterleaveDurationMs = durationMs;
+    }
+
+    public OnTrimMetricsListener getMetricsListener() {
+        return mMetricsListener;
+    }
+
+    /**
+     * Receives the {@link TrimMetrics} of every trim written with these options, on the
+     * thread of the trim. Trims by mp4parser and kept results handed out report part of
+     * the metrics only.
+     */
+    public void setMetricsListener(OnTrimMetricsListener listener) {
+        mMetricsListener = listener;
+    }
+
+    public String getDigestAlgorithm() {
+        return mDigestAlgorithm;
+    }
+
+    /**
+     * Verifies trims while writing them: the layout of the output is checked and a digest
+     * of it is computed on the way, returned in {@link TrimMetrics#getDigest()}. Null, the
+     * default, turns it off. Trims by mp4parser, of fragmented sources without a fragment
+     * index, are neither checked nor digested.
+     *
+     * @param algorithm {@link #DIGEST_CRC32}, {@link #DIGEST_SHA256} or another MessageDigest
+     *                  algorithm
+     */
+    public void setDigestAlgorithm(String algorithm) {
+        mDigestAlgorithm = algorithm;
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.List;
+
+import life.knowledge4.videotrimmer.interfaces.Tracer;
+import life.knowledge4.videotrimmer.utils.Tracing;
+
+/**
+ * What a trim copies: the sample range kept from every track, with the start and the
+ * end moved to sync samples, and the order in which the kept chunks are written.
+ */
+public final class TrimPlan {
+
+    private final Mp4Index mIndex;
+    private final long mStartUs;
+    private final long mEndUs;
+    private final long mTimeOffsetUs;
+    private final int[] mStartSamples;
+    private final int[] mEndSamples;
+    private long mCreateTimeNs;
+
+    // output chunks, in the order they are written
+    private final IntList mChunkTracks = new IntList();
+    private final IntList mChunkFirstSamples = new IntList();
+    private final IntList mChunkSampleCounts = new IntList();
+    private final IntList mChunkSizes = new IntList();
+    private final IntList mChunkFirstPieces = new IntList();
+
+    // contiguous source byte ranges of each output chunk, in the order they are written
+    private final LongList mPieceOffsets = new LongList();
+    private final LongList mPieceSizes = new LongList();
+
+    // pieces following each other in the source, merged
+    private final LongList mRangeOffsets = new LongList();
+    private final LongList mRangeSizes = new LongList();
+
+    private TrimPlan(@NonNull Mp4Index index, long startUs, long endUs) {
+        mIndex = index;
+        mStartUs = startUs;
+        mEndUs = endUs;
+        mTimeOffsetUs = index.getTimeOffsetUs();
+        int trackCount = index.getTracks().size();
+        mStartSamples = new int[trackCount];
+        mEndSamples = new int[trackCount];
+    }
+
+    /**
+     * Plans a trim between <code>startMs</code> and <code>endMs</code>. Since decoding can only
+     * start at a sync sample, the start is moved back and the end forward to sync samples,
+     * aligned across the tracks that have them, see {@link CutPointResolver}.
+     * <p>
+     * For a fragmented file, only the fragments around the range are read.
+     */
+    @NonNull
+    public static TrimPlan create(@NonNull Mp4Index index, long startMs, long endMs) throws IOException {
+        return create(index, startMs, endMs, 0);
+    }
+
+    /**
+     * Same as {@link #create(Mp4Index, long, long)}, but with <code>interleaveUs</code> greater
+     * than 0 the output chunks are cut to that duration and written in time order instead
+     * of keeping the chunk layout of the source.
+     */
+    @NonNull
+    public static TrimPlan create(@NonNull Mp4Index index, long startMs, long endMs, long interleaveUs) throws IOException {
+        Tracer tracer = Tracing.getTracer();
+        tracer.beginSection(Tracing.SECTION_CUT_POINTS);
+        try {
+            return plan(index, startMs, endMs, interleaveUs);
+        } finally {
+            tracer.endSection();
+        }
+    }
+
+    @NonNull
+    private static TrimPlan plan(@NonNull Mp4Index index, long startMs, long endMs, long interleaveUs) throws IOException {
+        long createStart = System.nanoTime();
+        long startUs = startMs * 1000L;
+        long endUs = endMs * 1000L;
+        if (index.isFragmented()) {
+            FragmentIndex fragments = index.getFragmentIndex();
+            if (fragments == null) {
+                throw new IOException("No movie fragments found in " + index.getFile());
+            }
+            index = fragments.createRangeIndex(index, startUs, endUs);
+            startUs -= index.getTimeOffsetUs();
+            endUs -= index.getTimeOffsetUs();
+        }
+
+        CutPointResolver cutPoints = new CutPointResolver(index);
+        cutPoints.resolve(startUs, endUs);
+        startUs = cutPoints.getStartUs();
+        endUs = cutPoints.getEndUs();
+
+        TrimPlan plan = new TrimPlan(index, startUs, endUs);
+        List<TrackIndex> tracks = index.getTracks();
+        for (int i = 0; i < tracks.size(); i++) {
+            TrackIndex track = tracks.get(i);
+            SampleTable table = track.getSampleTable();
+            int start = cutPoints.getStartSample(i);
+            long endUnits = track.toUnits(endUs);
+            int end = table.getSampleCount() == 0 || endUnits >= table.getDecodingTime(table.getSampleCount())
+                    ? table.getSampleCount() : table.getSampleAtTime(endUnits);
+            plan.mStartSamples[i] = start;
+            plan.mEndSamples[i] = Math.max(start, end);
+        }
+        if (interleaveUs > 0) {
+            plan.planInterleavedChunks(interleaveUs);
+        } else {
+            plan.planChunks();
+        }
+        plan.mCreateTimeNs = System.nanoTime() - createStart;
+        return plan;
+    }
+
+    /**
+     * Keeps the chunk layout of the source: every kept source chunk becomes an output
+     * chunk, and chunks are written in source file order. Chunks that follow each other
+     * in the source are merged into a single copy range.
+     */
+    private void planChunks() {
+        List<TrackIndex> tracks = mIndex.getTracks();
+        int[] chunks = new int[tracks.size()];
+        int[] lastChunks = new int[tracks.size()];
+        for (int i = 0; i < tracks.size(); i++) {
+            SampleTable table = tracks.get(i).getSampleTable();
+            if (mStartSamples[i] < mEndSamples[i]) {
+                chunks[i] = table.getChunkForSample(mStartSamples[i]);
+                lastChunks[i] = table.getChunkForSample(mEndSamples[i] - 1);
+            } else {
+                chunks[i] = 0;
+                lastChunks[i] = -1;
+            }
+        }
+
+        while (true) {
+            int track = -1;
+            long trackOffset = Long.MAX_VALUE;
+            for (int i = 0; i < tracks.size(); i++) {
+                if (chunks[i] <= lastChunks[i]) {
+                    long offset = tracks.get(i).getSampleTable().getChunkOffset(chunks[i]);
+                    if (offset < trackOffset) {
+                        track = i;
+                        trackOffset = offset;
+                    }
+                }
+            }
+            if (track < 0) {
+                break;
+            }
+
+            SampleTable table = tracks.get(track).getSampleTable();
+            int chunk = chunks[track]++;
+            int first = Math.max(mStartSamples[track], table.getChunkFirstSample(chunk));
+            int end = Math.min(mEndSamples[track], table.getChunkFirstSample(chunk) + table.getChunkSampleCount(chunk));
+            if (first < end) {
+                addChunk(track, first, end - first);
+            }
+        }
+    }
+
+    /**
+     * Cuts the kept samples of every track into chunks of at most <code>interleaveUs</code>
+     * on a grid starting at the cut, and writes them by start time, so that the samples of
+     * all the tracks for a moment are close to each other in the output.
+     */
+    private void planInterleavedChunks(long interleaveUs) {
+        List<TrackIndex> tracks = mIndex.getTracks();
+        int[] nextSamples = mStartSamples.clone();
+
+        while (true) {
+            int track = -1;
+            long trackTimeUs = Long.MAX_VALUE;
+            for (int i = 0; i < tracks.size(); i++) {
+                if (nextSamples[i] < mEndSamples[i]) {
+                    TrackIndex candidate = tracks.get(i);
+                    long timeUs = candidate.toUs(candidate.getSampleTable().getDecodingTime(nextSamples[i]));
+                    if (timeUs < trackTimeUs) {
+                        track = i;
+                        trackTimeUs = timeUs;
+                    }
+                }
+            }
+            if (track < 0) {
+                break;
+            }
+
+            TrackIndex trackIndex = tracks.get(track);
+            SampleTable table = trackIndex.getSampleTable();
+            long slot = Math.max(0, trackTimeUs - mStartUs) / interleaveUs;
+            long limit = trackIndex.toUnits(mStartUs + (slot + 1) * interleaveUs);
+            int first = nextSamples[track];
+            int description = table.getSampleDescriptionIndex(table.getChunkForSample(first));
+            int end = first + 1;
+            while (end < mEndSamples[track] && table.getDecodingTime(end) < limit
+                    && table.getSampleDescriptionIndex(table.getChunkForSample(end)) == description) {
+                end++;
+            }
+            addChunk(track, first, end - first);
+            nextSamples[track] = end;
+        }
+    }
+
+    private void addChunk(int track, int firstSample, int sampleCount) {
+        SampleTable table = mIndex.getTracks().get(track).getSampleTable();
+        long size = 0;
+        for (int i = firstSample; i < firstSample + sampleCount; i++) {
+            size += table.getSize(i);
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Chunk too large: " + size);
+        }
+        mChunkTracks.add(track);
+        mChunkFirstSamples.add(firstSample);
+        mChunkSampleCounts.add(sampleCount);
+        mChunkSizes.add((int) size);
+
+        mChunkFirstPieces.add(mPieceOffsets.size());
+        int sourceChunk = table.getChunkForSample(firstSample);
+        long offset = table.getSampleOffset(firstSample);
+        long pieceOffset = offset;
+        for (int i = firstSample; i < firstSample + sampleCount; i++) {
+            if (i > firstSample && table.getChunkForSample(i) != sourceChunk) {
+                sourceChunk = table.getChunkForSample(i);
+                if (table.getChunkOffset(sourceChunk) != offset) {
+                    addPiece(pieceOffset, offset - pieceOffset);
+                    offset = table.getChunkOffset(sourceChunk);
+                    pieceOffset = offset;
+                }
+            }
+            offset += table.getSize(i);
+        }
+        addPiece(pieceOffset, offset - pieceOffset);
+    }
+
+    private void addPiece(long offset, long size) {
+        mPieceOffsets.add(offset);
+        mPieceSizes.add(size);
+        int range = mRangeOffsets.size() - 1;
+        if (range >= 0 && mRangeOffsets.get(range) + mRangeSizes.get(range) == offset) {
+            mRangeSizes.set(range, mRangeSizes.get(range) + size);
+        } else {
+            mRangeOffsets.add(offset);
+            mRangeSizes.add(size);
+        }
+    }
+
+    /**
+     * @return the index the plan is made of, for a fragmented file an index of the
+     * fragments around the range
+     */
+    @NonNull
+    public Mp4Index getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * @return the start of the trim after moving it to a sync sample, in microseconds
+     */
+    public long getStartUs() {
+        return mTimeOffsetUs + mStartUs;
+    }
+
+    /**
+     * @return the end of the trim after moving it to a sync sample, in microseconds
+     */
+    public long getEndUs() {
+        return mTimeOffsetUs + mEndUs;
+    }
+
+    /**
+     * @return the time spent creating this plan, in nanoseconds
+     */
+    long getCreateTimeNs() {
+        return mCreateTimeNs;
+    }
+
+    public int getStartSample(int track) {
+        return mStartSamples[track];
+    }
+
+    /**
+     * @return the first sample after the kept range of <code>track</code>
+     */
+    public int getEndSample(int track) {
+        return mEndSamples[track];
+    }
+
+    public int getChunkCount() {
+        return mChunkTracks.size();
+    }
+
+    public int getChunkTrack(int chunk) {
+        return mChunkTracks.get(chunk);
+    }
+
+    public int getChunkFirstSample(int chunk) {
+        return mChunkFirstSamples.get(chunk);
+    }
+
+    public int getChunkSampleCount(int chunk) {
+        return mChunkSampleCounts.get(chunk);
+    }
+
+    /**
+     * @return the size of the samples of <code>chunk</code>, in bytes
+     */
+    public int getChunkSize(int chunk) {
+        return mChunkSizes.get(chunk);
+    }
+
+    /**
+     * @return the first of the contiguous source byte ranges holding <code>chunk</code>
+     */
+    public int getChunkFirstPiece(int chunk) {
+        return mChunkFirstPieces.get(chunk);
+    }
+
+    /**
+     * @return the number of contiguous source byte ranges holding <code>chunk</code>
+     */
+    public int getChunkPieceCount(int chunk) {
+        int end = chunk + 1 < mChunkFirstPieces.size() ? mChunkFirstPieces.get(chunk + 1) : mPieceOffsets.size();
+        return end - mChunkFirstPieces.get(chunk);
+    }
+
+    public long getPieceOffset(int piece) {
+        return mPieceOffsets.get(piece);
+    }
+
+    public long getPieceSize(int piece) {
+        return mPieceSizes.get(piece);
+    }
+
+    /**
+     * @return the number of contiguous source byte ranges holding the output chunks
+     */
+    public int getCopyRangeCount() {
+        return mRangeOffsets.size();
+    }
+
+    public long getCopyRangeOffset(int range) {
+        return mRangeOffsets.get(range);
+    }
+
+    public long getCopyRangeSize(int range) {
+        return mRangeSizes.get(range);
+    }
+
+    /**
+     * @return the size of all the kept samples, in bytes
+     */
+    public long getDataSize() {
+        long size = 0;
+        for (int i = 0; i < mChunkSizes.size(); i++) {
+            size += mChunkSizes.get(i);
+        }
+        return size;
+    }
+}
@@ -86,15 +86,16 @@ public final class BackgroundExecutor {
      *                                  executor)
      */
     public static synchronized void execute(Task task) {
-        Future<?> future = null;
+        if (task.id != null || task.serial != null) {
+            /*
+             * keep task before submitting it: it may start running at once, and
+             * must be found by cancelAll() while it runs
+             */
+            TASKS.add(task);
+        }
         if (task.serial == null || !hasSerialRunning(task.serial)) {
             task.executionAsked = true;
-            future = directExecute(task, task.remainingDelay);
-        }
-        if ((task.id != null || task.serial != null) && !task.managed.get()) {
-            /* keep task */
-            task.future = future;
-            TASKS.add(task);
+            task.future = directExecute(task, task.remainingDelay);
         }
     }
 
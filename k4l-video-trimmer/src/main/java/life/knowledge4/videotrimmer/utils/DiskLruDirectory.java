@@ -0,0 +1,282 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.utils;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A directory of files named after their key, of which the least recently used are deleted
+ * when they take more than a size limit. The last use of a file is its modification time,
+ * so the order survives the process.
+ * <p>
+ * Files are written aside with {@link #getPartialFile(String)} and moved in with
+ * {@link #put(String, File)}. Files read outside of the lock are pinned with
+ * {@link #acquire(String)} so that eviction leaves them alone until they are released.
+ * <p>
+ * There is one instance per directory in the process, see {@link #open(File, String, long)},
+ * so that caches created again over the same directory share its state and lock.
+ */
+final class DiskLruDirectory {
+
+    private static final String TAG = DiskLruDirectory.class.getSimpleName();
+    private static final String PARTIAL_EXTENSION = ".partial";
+
+    // by absolute path
+    private static final Map<String, DiskLruDirectory> DIRECTORIES = new HashMap<>();
+
+    private final File mDirectory;
+    private final String mExtension;
+    private long mMaxBytes;
+
+    // files by key, least recently used first
+    private LinkedHashMap<String, Entry> mEntries;
+    private long mSizeBytes;
+    // how many readers hold each file, by key
+    private final Map<String, Integer> mPins = new HashMap<>();
+
+    /**
+     * Reads the directory again, as a new process would. Caches use {@link #open} instead.
+     *
+     * @param directory where the files are kept, used by this cache only
+     * @param extension the extension of the files, after their key
+     * @param maxBytes  the most bytes the files may take
+     */
+    DiskLruDirectory(@NonNull File directory, @NonNull String extension, long maxBytes) {
+        mDirectory = directory;
+        mExtension = extension;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @param directory where the files are kept, used by one kind of cache only
+     * @param extension the extension of the files, after their key
+     * @param maxBytes  the most bytes the files may take, which replaces the limit of the
+     *                  directory if it is open already
+     * @return the instance for <code>directory</code>
+     */
+    @NonNull
+    static DiskLruDirectory open(@NonNull File directory, @NonNull String extension, long maxBytes) {
+        String path = directory.getAbsolutePath();
+        synchronized (DIRECTORIES) {
+            DiskLruDirectory lru = DIRECTORIES.get(path);
+            if (lru == null || !lru.mExtension.equals(extension)) {
+                lru = new DiskLruDirectory(directory, extension, maxBytes);
+                DIRECTORIES.put(path, lru);
+            } else {
+                lru.setMaxBytes(maxBytes);
+            }
+            return lru;
+        }
+    }
+
+    /**
+     * @return the SHA-1 of <code>job</code> in hexadecimal, usable as a file name
+     */
+    @NonNull
+    static String hash(@NonNull String job) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(job.getBytes(Charset.forName("UTF-8")));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the directory fits in <code>maxBytes</code>.
+     */
+    synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        if (mEntries != null) {
+            trimToSize(null);
+        }
+    }
+
+    /**
+     * @return the file for <code>key</code>, marked as just used, or null
+     */
+    @Nullable
+    synchronized File get(@NonNull String key) {
+        load();
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.mFile.isFile()) {
+            remove(key);
+            return null;
+        }
+        entry.mFile.setLastModified(System.currentTimeMillis());
+        return entry.mFile;
+    }
+
+    /**
+     * @return the file for <code>key</code>, marked as just used and pinned until
+     * {@link #release(String)}, or null
+     */
+    @Nullable
+    synchronized File acquire(@NonNull String key) {
+        File file = get(key);
+        if (file != null) {
+            Integer pins = mPins.get(key);
+            mPins.put(key, pins != null ? pins + 1 : 1);
+        }
+        return file;
+    }
+
+    /**
+     * Unpins the file for <code>key</code> acquired before, then deletes the least recently
+     * used files until the directory fits in its size limit.
+     */
+    synchronized void release(@NonNull String key) {
+        load();
+        Integer pins = mPins.remove(key);
+        if (pins != null && pins > 1) {
+            mPins.put(key, pins - 1);
+        }
+        trimToSize(null);
+    }
+
+    /**
+     * Forgets the file for <code>key</code>, for example when it turned out to be unreadable.
+     */
+    synchronized void remove(@NonNull String key) {
+        load();
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mSizeBytes -= entry.mSizeBytes;
+        }
+    }
+
+    /**
+     * @param name the key, followed by anything telling concurrent writers of it apart
+     * @return a hidden file of the directory to write to before {@link #put}
+     */
+    @NonNull
+    synchronized File getPartialFile(@NonNull String name) {
+        // reading the directory deletes the partial files found, not this one
+        load();
+        mDirectory.mkdirs();
+        return new File(mDirectory, "." + name + PARTIAL_EXTENSION);
+    }
+
+    /**
+     * Moves <code>partial</code> in as the file for <code>key</code>, then deletes the least
+     * recently used files until the directory fits in its size limit.
+     *
+     * @return the file for <code>key</code>, or null if <code>partial</code> could not be moved
+     */
+    @Nullable
+    synchronized File put(@NonNull String key, @NonNull File partial) {
+        load();
+        File file = new File(mDirectory, key + mExtension);
+        if (!partial.equals(file) && !partial.renameTo(file)) {
+            Log.w(TAG, "Could not move " + partial + " to " + file);
+            return null;
+        }
+        remove(key);
+        file.setLastModified(System.currentTimeMillis());
+        add(key, file);
+        trimToSize(key);
+        return file;
+    }
+
+    private void trimToSize(@Nullable String keep) {
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mSizeBytes > mMaxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> next = it.next();
+            if (next.getKey().equals(keep) || mPins.containsKey(next.getKey())) {
+                continue;
+            }
+            Entry entry = next.getValue();
+            if (entry.mFile.delete() || !entry.mFile.exists()) {
+                it.remove();
+                mSizeBytes -= entry.mSizeBytes;
+                Log.d(TAG, "Evicted " + entry.mFile);
+            }
+        }
+    }
+
+    private void add(@NonNull String key, @NonNull File file) {
+        Entry entry = new Entry(file);
+        mEntries.put(key, entry);
+        mSizeBytes += entry.mSizeBytes;
+    }
+
+    private void load() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        mSizeBytes = 0;
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(mExtension) && !name.startsWith(".")) {
+                add(name.substring(0, name.length() - mExtension.length()), file);
+            } else if (name.endsWith(PARTIAL_EXTENSION)) {
+                // left behind by a process that died while writing
+                file.delete();
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final File mFile;
+        private final long mSizeBytes;
+
+        Entry(@NonNull File file) {
+            mFile = file;
+            mSizeBytes = file.length();
+        }
+    }
+}
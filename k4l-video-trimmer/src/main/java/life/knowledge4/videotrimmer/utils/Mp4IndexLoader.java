@@ -0,0 +1,191 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.utils;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+
+import life.knowledge4.videotrimmer.mp4.Mp4Index;
+
+/**
+ * Loads the {@link Mp4Index} of a file once. The index can be built ahead of time by
+ * a low priority background task, and whoever needs it first either waits for that
+ * task or builds it on its own thread if the task has not started.
+ * <p>
+ * A loader of a file that is still being recorded follows it: {@link #refresh()} adds
+ * the fragments written since the index was built.
+ */
+public final class Mp4IndexLoader {
+
+    private static final String TAG = Mp4IndexLoader.class.getSimpleName();
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_LOADING = 1;
+    private static final int STATE_DONE = 2;
+
+    private final File mFile;
+    private final boolean mFollow;
+    private final String mTaskId;
+
+    private int mState = STATE_IDLE;
+    private Mp4Index mIndex;
+    private IOException mError;
+
+    public Mp4IndexLoader(@NonNull File file) {
+        this(file, false);
+    }
+
+    /**
+     * @param follow whether the file is still being written, see {@link Mp4Index#follow(File)}
+     */
+    public Mp4IndexLoader(@NonNull File file, boolean follow) {
+        mFile = file;
+        mFollow = follow;
+        mTaskId = TAG + "@" + Integer.toHexString(System.identityHashCode(this));
+    }
+
+    @NonNull
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Starts building the index in the background, at background thread priority.
+     */
+    public void preload() {
+        BackgroundExecutor.execute(new BackgroundExecutor.Task(mTaskId, 0L, "") {
+            @Override
+            public void execute() {
+                int priority = Process.getThreadPriority(Process.myTid());
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    load(false);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not index " + mFile, e);
+                } finally {
+                    Process.setThreadPriority(priority);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops a background build. A later {@link #get()} builds the index itself.
+     */
+    public void cancel() {
+        BackgroundExecutor.cancelAll(mTaskId, true);
+    }
+
+    /**
+     * @return the index, waiting for the background build if it is running
+     * @throws IOException if the file could not be indexed
+     */
+    @NonNull
+    public Mp4Index get() throws IOException {
+        Mp4Index index = load(true);
+        if (index == null) {
+            throw new IllegalStateException("Index of " + mFile + " not loaded");
+        }
+        return index;
+    }
+
+    /**
+     * Indexes what was written to the file since the index was built, and keeps the new
+     * index for the next {@link #get()}.
+     *
+     * @return the new index
+     */
+    @NonNull
+    public Mp4Index refresh() throws IOException {
+        Mp4Index index = get();
+        Mp4Index refreshed = index.refresh();
+        synchronized (this) {
+            // a concurrent refresh may have read further already
+            if (mIndex == index) {
+                mIndex = refreshed;
+            }
+            return mIndex;
+        }
+    }
+
+    /**
+     * @return whether the index has been built
+     */
+    public synchronized boolean isLoaded() {
+        return mState == STATE_DONE && mIndex != null;
+    }
+
+    private Mp4Index load(boolean wait) throws IOException {
+        synchronized (this) {
+            while (mState == STATE_LOADING) {
+                if (!wait) {
+                    return null;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the index of " + mFile);
+                }
+            }
+            if (mState == STATE_DONE) {
+                if (mError != null) {
+                    throw mError;
+                }
+                return mIndex;
+            }
+            mState = STATE_LOADING;
+        }
+
+        Mp4Index index = null;
+        IOException error = null;
+        boolean cancelled = false;
+        try {
+            index = mFollow ? Mp4Index.follow(mFile) : Mp4Index.parse(mFile);
+        } catch (ClosedByInterruptException | InterruptedIOException e) {
+            cancelled = true;
+            error = e;
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            synchronized (this) {
+                // a cancelled build leaves the work to the next caller
+                mState = cancelled || (index == null && error == null) ? STATE_IDLE : STATE_DONE;
+                mIndex = index;
+                mError = cancelled ? null : error;
+                notifyAll();
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return index;
+    }
+}
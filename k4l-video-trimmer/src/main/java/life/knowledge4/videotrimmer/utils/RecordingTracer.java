@@ -0,0 +1,167 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.utils;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import life.knowledge4.videotrimmer.interfaces.Tracer;
+
+/**
+ * Keeps the sections and counters it receives in memory, so that tests can check
+ * which phases ran and how long they took without a device.
+ */
+public final class RecordingTracer implements Tracer {
+
+    public static final class Section {
+        private final String mName;
+        private final String mThread;
+        private final int mDepth;
+        private final long mStartNs;
+        private long mEndNs = -1;
+
+        Section(@NonNull String name, @NonNull String thread, int depth, long startNs) {
+            mName = name;
+            mThread = thread;
+            mDepth = depth;
+            mStartNs = startNs;
+        }
+
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        @NonNull
+        public String getThread() {
+            return mThread;
+        }
+
+        /**
+         * @return the number of sections open on the same thread when this one began
+         */
+        public int getDepth() {
+            return mDepth;
+        }
+
+        public long getStartNs() {
+            return mStartNs;
+        }
+
+        /**
+         * @return the duration of the section, or -1 while it is open
+         */
+        public long getDurationNs() {
+            return mEndNs < 0 ? -1 : mEndNs - mStartNs;
+        }
+    }
+
+    private final List<Section> mSections = new ArrayList<>();
+    private final Map<String, Long> mCounters = new HashMap<>();
+    private final ThreadLocal<Deque<Section>> mOpenSections = new ThreadLocal<Deque<Section>>() {
+        @Override
+        protected Deque<Section> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+
+    @Override
+    public void beginSection(String name) {
+        Deque<Section> open = mOpenSections.get();
+        Section section = new Section(name, Thread.currentThread().getName(), open.size(), System.nanoTime());
+        open.push(section);
+        synchronized (this) {
+            mSections.add(section);
+        }
+    }
+
+    @Override
+    public void endSection() {
+        Section section = mOpenSections.get().poll();
+        if (section == null) {
+            throw new IllegalStateException("No section to end on " + Thread.currentThread().getName());
+        }
+        long endNs = System.nanoTime();
+        synchronized (this) {
+            section.mEndNs = endNs;
+        }
+    }
+
+    @Override
+    public synchronized void setCounter(String name, long value) {
+        mCounters.put(name, value);
+    }
+
+    /**
+     * @return the sections begun so far, in the order they began
+     */
+    @NonNull
+    public synchronized List<Section> getSections() {
+        return new ArrayList<>(mSections);
+    }
+
+    @NonNull
+    public synchronized List<Section> getSections(@NonNull String name) {
+        List<Section> sections = new ArrayList<>();
+        for (Section section : mSections) {
+            if (section.mName.equals(name)) {
+                sections.add(section);
+            }
+        }
+        return sections;
+    }
+
+    /**
+     * @return the summed duration of the ended sections named <code>name</code>
+     */
+    public synchronized long getTotalTimeNs(@NonNull String name) {
+        long total = 0;
+        for (Section section : mSections) {
+            if (section.mName.equals(name) && section.mEndNs >= 0) {
+                total += section.mEndNs - section.mStartNs;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the last value of the counter, or null if it was never set
+     */
+    @Nullable
+    public synchronized Long getCounter(@NonNull String name) {
+        return mCounters.get(name);
+    }
+
+    public synchronized void clear() {
+        mSections.clear();
+        mCounters.clear();
+    }
+}
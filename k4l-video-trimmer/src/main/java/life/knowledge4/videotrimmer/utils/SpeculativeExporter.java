@@ -0,0 +1,313 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.utils;
+
+import android.net.Uri;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.HashSet;
+import java.util.Set;
+
+import life.knowledge4.videotrimmer.interfaces.OnTrimMetricsListener;
+import life.knowledge4.videotrimmer.interfaces.OnTrimVideoListener;
+import life.knowledge4.videotrimmer.mp4.InsufficientSpaceException;
+import life.knowledge4.videotrimmer.mp4.Mp4Index;
+import life.knowledge4.videotrimmer.mp4.Mp4Writer;
+import life.knowledge4.videotrimmer.mp4.TrimMetrics;
+import life.knowledge4.videotrimmer.mp4.TrimOptions;
+import life.knowledge4.videotrimmer.mp4.TrimPlan;
+
+/**
+ * Exports the selected range ahead of time, while the user is not touching it, so
+ * that saving the same range can hand out the finished file right away.
+ * <p>
+ * Exports are thrown away as soon as the range changes. The bytes written by exports
+ * that are thrown away are counted, and no new export starts once they would go over
+ * the I/O budget.
+ * <p>
+ * Exports are written next to the output, so that handing one out is a rename, to hidden
+ * files that the first export of the process to a folder deletes when a previous process
+ * left them behind.
+ */
+public final class SpeculativeExporter {
+
+    private static final String TAG = SpeculativeExporter.class.getSimpleName();
+
+    private static final int STATE_NONE = 0;
+    private static final int STATE_PENDING = 1;
+    private static final int STATE_RUNNING = 2;
+    private static final int STATE_DONE = 3;
+
+    private static final String FILE_PREFIX = ".speculative-";
+    // folders cleaned of the exports of previous processes
+    private static final Set<String> CLEANED_FOLDERS = new HashSet<>();
+
+    private final String mTaskId;
+    private final long mBudgetBytes;
+    private long mWastedBytes;
+
+    private int mGeneration;
+    private int mState = STATE_NONE;
+    private Mp4IndexLoader mIndexLoader;
+    private File mFile;
+    private long mStartUs;
+    private long mEndUs;
+    private long mInterleaveMs;
+    private String mDigestAlgorithm;
+    private TrimMetrics mMetrics;
+
+    /**
+     * @param budgetBytes the most bytes that exports thrown away may write
+     */
+    public SpeculativeExporter(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+        mTaskId = TAG + "@" + Integer.toHexString(System.identityHashCode(this));
+    }
+
+    /**
+     * @return the bytes written so far by exports that were thrown away
+     */
+    public synchronized long getWastedBytes() {
+        return mWastedBytes;
+    }
+
+    /**
+     * Replaces the current export with one of the given range, started after
+     * <code>delayMs</code> unless the range changes in between.
+     *
+     * @param dst the destination folder, where the export is written to a hidden file
+     */
+    public void schedule(@NonNull final Mp4IndexLoader indexLoader, @NonNull String dst, final long startMs, final long endMs, @NonNull TrimOptions options, long delayMs) {
+        final long interleaveMs = options.getInterleaveDurationMs();
+        final String digestAlgorithm = options.getDigestAlgorithm();
+        final int generation;
+        final File file;
+        discardLeftovers(dst);
+        synchronized (this) {
+            discard();
+            if (mWastedBytes >= mBudgetBytes) {
+                return;
+            }
+            generation = mGeneration;
+            file = new File(dst, FILE_PREFIX + Integer.toHexString(System.identityHashCode(this)) + "-" + generation + ".mp4");
+            mState = STATE_PENDING;
+            mIndexLoader = indexLoader;
+            mFile = file;
+            mInterleaveMs = interleaveMs;
+            mDigestAlgorithm = digestAlgorithm;
+            mMetrics = null;
+        }
+
+        BackgroundExecutor.execute(new BackgroundExecutor.Task(mTaskId, delayMs, "") {
+            @Override
+            public void execute() {
+                int priority = Process.getThreadPriority(Process.myTid());
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    export(generation, indexLoader, file, startMs, endMs, interleaveMs, digestAlgorithm);
+                } finally {
+                    Process.setThreadPriority(priority);
+                }
+            }
+        });
+    }
+
+    private void export(int generation, @NonNull Mp4IndexLoader indexLoader, @NonNull File file, long startMs, long endMs, long interleaveMs, String digestAlgorithm) {
+        Mp4Writer writer = null;
+        boolean done = false;
+        try {
+            Mp4Index index = indexLoader.get();
+            if (index.isFragmented() && !index.hasFragmentIndex()) {
+                return;
+            }
+            TrimPlan plan = TrimPlan.create(index, startMs, endMs, interleaveMs * 1000);
+            synchronized (this) {
+                if (generation != mGeneration || mWastedBytes + plan.getDataSize() > mBudgetBytes) {
+                    return;
+                }
+                mState = STATE_RUNNING;
+                mStartUs = plan.getStartUs();
+                mEndUs = plan.getEndUs();
+            }
+            file.getParentFile().mkdirs();
+            writer = new Mp4Writer(plan);
+            writer.setVerify(digestAlgorithm);
+            writer.write(file);
+            synchronized (this) {
+                mMetrics = writer.getMetrics();
+            }
+            done = true;
+        } catch (InterruptedIOException | ClosedByInterruptException e) {
+            // cancelled
+        } catch (InsufficientSpaceException e) {
+            Log.d(TAG, "Speculative export skipped: " + e.getMessage());
+        } catch (IOException e) {
+            Log.w(TAG, "Speculative export failed", e);
+        } finally {
+            synchronized (this) {
+                boolean current = generation == mGeneration && mState != STATE_NONE;
+                if (done && current) {
+                    mState = STATE_DONE;
+                } else {
+                    // the output is preallocated, only the writer knows how much of it was written
+                    if (writer != null) {
+                        mWastedBytes += writer.getMetrics().getBytesWritten();
+                    }
+                    file.delete();
+                    if (current) {
+                        mState = STATE_NONE;
+                    }
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until no export is scheduled or running.
+     *
+     * @return false if there still is one after <code>timeoutMs</code>
+     */
+    synchronized boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (mState == STATE_PENDING || mState == STATE_RUNNING) {
+            long remainingMs = deadline - System.currentTimeMillis();
+            if (remainingMs <= 0) {
+                return false;
+            }
+            wait(remainingMs);
+        }
+        return true;
+    }
+
+    /**
+     * Throws away the current export, stopping it if it is running.
+     */
+    public synchronized void cancel() {
+        discard();
+    }
+
+    /**
+     * Hands the export to <code>callback</code> if it is of the same source and, once
+     * moved to sync samples, of the same range and layout. Waits for the export to finish if
+     * it is running. Any other export is thrown away.
+     *
+     * @param dst   the destination folder
+     * @param cache where to keep a copy of the export, or null
+     * @return whether the export was handed out, otherwise the caller has to trim
+     */
+    public boolean deliver(@NonNull Mp4IndexLoader indexLoader, @NonNull String dst, long startMs, long endMs, @NonNull TrimOptions options, @Nullable TrimResultCache cache, @NonNull OnTrimVideoListener callback) throws IOException {
+        Mp4Index index = indexLoader.get();
+        TrimPlan plan = index.isFragmented() && !index.hasFragmentIndex() ? null : TrimPlan.create(index, startMs, endMs);
+
+        File file;
+        TrimMetrics metrics;
+        synchronized (this) {
+            if (plan == null || indexLoader != mIndexLoader || mState == STATE_PENDING
+                    || plan.getStartUs() != mStartUs || plan.getEndUs() != mEndUs
+                    || options.getInterleaveDurationMs() != mInterleaveMs
+                    || !equals(options.getDigestAlgorithm(), mDigestAlgorithm)) {
+                discard();
+                return false;
+            }
+            while (mState == STATE_RUNNING) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the speculative export");
+                }
+            }
+            if (mState != STATE_DONE) {
+                return false;
+            }
+            file = mFile;
+            metrics = mMetrics;
+            mState = STATE_NONE;
+            mGeneration++;
+        }
+
+        File result = TrimVideoUtils.getOutputFile(dst);
+        if (!file.renameTo(result)) {
+            Log.w(TAG, "Could not move " + file + " to " + result);
+            file.delete();
+            return false;
+        }
+        if (cache != null) {
+            cache.put(TrimResultCache.getKey(plan, options), result);
+        }
+        OnTrimMetricsListener metricsListener = options.getMetricsListener();
+        if (metricsListener != null && metrics != null) {
+            metricsListener.onTrimMetrics(metrics);
+        }
+        callback.getResult(Uri.parse(result.toString()));
+        return true;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Deletes the exports left in <code>dst</code> by a process that died, or quit without
+     * handing them out, the first time this process exports there.
+     */
+    private static void discardLeftovers(@NonNull String dst) {
+        File folder = new File(dst);
+        synchronized (CLEANED_FOLDERS) {
+            if (!CLEANED_FOLDERS.add(folder.getAbsolutePath())) {
+                return;
+            }
+        }
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(FILE_PREFIX)) {
+                Log.d(TAG, "Deleting the leftover export " + file);
+                file.delete();
+            }
+        }
+    }
+
+    private void discard() {
+        mGeneration++;
+        if (mState == STATE_PENDING || mState == STATE_RUNNING) {
+            BackgroundExecutor.cancelAll(mTaskId, true);
+        }
+        if (mState == STATE_DONE) {
+            mWastedBytes += mMetrics.getBytesWritten();
+            mFile.delete();
+        }
+        mState = STATE_NONE;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Keeps the thumbnails of the timeline, keyed by the identity of the video, the time of
+ * the frame and the thumbnail size.
+ * <p>
+ * Thumbnails are kept in memory, in a cache shared by the whole process and sized in bytes,
+ * and optionally compressed in a directory so that they survive the process. When the
+ * directory takes more than its size limit, the least recently used thumbnails are deleted.
+ * <p>
+ * The bitmaps handed out are shared and must not be recycled.
+ */
+public final class ThumbnailCache {
+
+    private static final String TAG = ThumbnailCache.class.getSimpleName();
+    private static final String EXTENSION = ".jpg";
+    private static final int QUALITY = 85;
+
+    // an eighth of the heap, as recommended for bitmap caches
+    private static final LruCache<String, Bitmap> MEMORY = new LruCache<String, Bitmap>(
+            (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8)) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+
+    private final DiskLruDirectory mDirectory;
+
+    /**
+     * @param directory where the thumbnails are kept, used by this cache only, or null to
+     *                  keep them in memory only
+     * @param maxBytes  the most bytes the thumbnails may take in <code>directory</code>
+     */
+    public ThumbnailCache(@Nullable File directory, long maxBytes) {
+        mDirectory = directory != null ? DiskLruDirectory.open(directory, EXTENSION, maxBytes) : null;
+    }
+
+    /**
+     * @return the identity of the video at <code>source</code>, which changes when a
+     * local file is modified
+     */
+    @NonNull
+    public static String getSourceKey(@NonNull Uri source) {
+        String scheme = source.getScheme();
+        if (scheme == null || "file".equals(scheme)) {
+            File file = new File(source.getPath());
+            return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+        }
+        return source.toString();
+    }
+
+    /**
+     * @param sourceKey the identity of the video, see {@link #getSourceKey(Uri)}
+     * @return the key of the thumbnail of the frame at <code>timeUs</code>
+     */
+    @NonNull
+    public static String getKey(@NonNull String sourceKey, long timeUs, int width, int height) {
+        return DiskLruDirectory.hash(sourceKey + ":" + timeUs + ":" + width + "x" + height);
+    }
+
+    /**
+     * @return the thumbnail for <code>key</code>, from memory or else from disk, or null
+     */
+    @Nullable
+    public Bitmap get(@NonNull String key) {
+        Bitmap bitmap = MEMORY.get(key);
+        if (bitmap != null || mDirectory == null) {
+            return bitmap;
+        }
+
+        File file = mDirectory.get(key);
+        if (file == null) {
+            return null;
+        }
+        bitmap = BitmapFactory.decodeFile(file.getPath());
+        if (bitmap == null) {
+            mDirectory.remove(key);
+            return null;
+        }
+        MEMORY.put(key, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * @return the thumbnail for <code>key</code> if it is in memory, or null. Never reads
+     * the disk, so it suits the UI thread
+     */
+    @Nullable
+    public Bitmap getFromMemory(@NonNull String key) {
+        return MEMORY.get(key);
+    }
+
+    /**
+     * Keeps <code>bitmap</code> as the thumbnail for <code>key</code>. Writing it to disk
+     * compresses it, so this is best called off the UI thread.
+     */
+    public void put(@NonNull String key, @NonNull Bitmap bitmap) {
+        MEMORY.put(key, bitmap);
+        if (mDirectory == null) {
+            return;
+        }
+
+        File partial = mDirectory.getPartialFile(key + "-" + Thread.currentThread().getId());
+        try {
+            FileOutputStream out = new FileOutputStream(partial);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + partial, e);
+            partial.delete();
+            return;
+        }
+
+        if (mDirectory.put(key, partial) == null) {
+            partial.delete();
+        }
+    }
+}
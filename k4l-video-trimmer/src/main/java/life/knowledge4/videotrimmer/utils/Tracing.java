@@ -0,0 +1,79 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.utils;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import life.knowledge4.videotrimmer.interfaces.Tracer;
+
+/**
+ * Holds the {@link Tracer} the library reports its phases to. Nothing is traced
+ * until a tracer is set.
+ */
+public final class Tracing {
+
+    public static final String SECTION_PARSE = "K4L:parse";
+    public static final String SECTION_INDEX = "K4L:index";
+    public static final String SECTION_CUT_POINTS = "K4L:cutPoints";
+    public static final String SECTION_WRITE = "K4L:write";
+    public static final String SECTION_FRAME = "K4L:frame";
+    public static final String SECTION_PROGRESS = "K4L:progress";
+
+    public static final String COUNTER_BYTES_WRITTEN = "K4L:bytesWritten";
+    public static final String COUNTER_FRAMES = "K4L:frames";
+    public static final String COUNTER_POSITION_MS = "K4L:positionMs";
+
+    private static final Tracer NO_OP = new Tracer() {
+        @Override
+        public void beginSection(String name) {
+        }
+
+        @Override
+        public void endSection() {
+        }
+
+        @Override
+        public void setCounter(String name, long value) {
+        }
+    };
+
+    private static volatile Tracer sTracer = NO_OP;
+
+    private Tracing() {
+        // should not be instantiated
+    }
+
+    /**
+     * @param tracer the tracer to report to, or null to stop tracing
+     */
+    public static void setTracer(@Nullable Tracer tracer) {
+        sTracer = tracer != null ? tracer : NO_OP;
+    }
+
+    @NonNull
+    public static Tracer getTracer() {
+        return sTracer;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.utils;
+
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+import life.knowledge4.videotrimmer.mp4.Mp4Index;
+import life.knowledge4.videotrimmer.mp4.Mp4Writer;
+import life.knowledge4.videotrimmer.mp4.TrimMetrics;
+import life.knowledge4.videotrimmer.mp4.TrimOptions;
+import life.knowledge4.videotrimmer.mp4.TrimPlan;
+
+/**
+ * Keeps the results of trims in a directory, named after what they contain: the
+ * identity of the source, the range once moved to sync samples and the options
+ * changing the output. Trimming the same thing again hands out the kept file.
+ * <p>
+ * Files move in and out as hard links from Android 5.0, when the cache and the output are
+ * on the same file system, so that keeping and handing out a result writes nothing. Otherwise
+ * they are copied, which is sequential I/O instead of reads scattered over the source.
+ * <p>
+ * When the results take more than the size limit, the least recently used ones are
+ * deleted. The last use of a result is its modification time, so the order survives
+ * the process.
+ */
+public final class TrimResultCache {
+
+    private static final String TAG = TrimResultCache.class.getSimpleName();
+    private static final String EXTENSION = ".mp4";
+
+    private final DiskLruDirectory mDirectory;
+
+    /**
+     * @param directory where the results are kept, used by this cache only
+     * @param maxBytes  the most bytes the results may take
+     */
+    public TrimResultCache(@NonNull File directory, long maxBytes) {
+        mDirectory = DiskLruDirectory.open(directory, EXTENSION, maxBytes);
+    }
+
+    /**
+     * @return the key of the result of <code>plan</code> with <code>options</code>
+     */
+    @NonNull
+    public static String getKey(@NonNull TrimPlan plan, @NonNull TrimOptions options) {
+        Mp4Index index = plan.getIndex();
+        String job = index.getFile().getAbsolutePath() + ":" + index.getLength() + ":" + index.getLastModified()
+                + ":" + plan.getStartUs() + ":" + plan.getEndUs() + ":" + options.getInterleaveDurationMs();
+        return DiskLruDirectory.hash(job);
+    }
+
+    /**
+     * Hands out the kept result for <code>key</code> as <code>dst</code> and marks it as just
+     * used. The result is pinned meanwhile, so that puts cannot evict it, and <code>dst</code>
+     * belongs to the caller, later puts never delete it.
+     *
+     * @param digestAlgorithm see {@link TrimOptions#setDigestAlgorithm(String)}, or null
+     * @return the metrics of handing it out, or null if no result is kept for <code>key</code>
+     */
+    @Nullable
+    public TrimMetrics get(@NonNull String key, @NonNull File dst, @Nullable String digestAlgorithm) throws IOException {
+        File file = mDirectory.acquire(key);
+        if (file == null) {
+            return null;
+        }
+        try {
+            if (link(file, dst)) {
+                return Mp4Writer.digest(dst, digestAlgorithm);
+            }
+            return Mp4Writer.copy(file, dst, digestAlgorithm);
+        } finally {
+            mDirectory.release(key);
+        }
+    }
+
+    /**
+     * Keeps <code>result</code> as the result for <code>key</code>, then deletes the least
+     * recently used results until the cache fits in its size limit. The caller keeps
+     * <code>result</code>, which later puts never delete.
+     *
+     * @return whether the result is kept
+     */
+    public boolean put(@NonNull String key, @NonNull File result) {
+        File partial = mDirectory.getPartialFile(key + "-" + Thread.currentThread().getId());
+        if (!link(result, partial)) {
+            try {
+                Mp4Writer.copy(result, partial, null);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not keep " + result, e);
+                return false;
+            }
+        }
+        if (mDirectory.put(key, partial) == null) {
+            partial.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether <code>dst</code> is now a hard link to <code>src</code>
+     */
+    private static boolean link(@NonNull File src, @NonNull File dst) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        try {
+            Os.link(src.getPath(), dst.getPath());
+            return true;
+        } catch (ErrnoException e) {
+            // another file system, or one without links
+            Log.d(TAG, "Could not link " + src + " to " + dst + ": " + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -25,9 +25,11 @@ package life.knowledge4.videotrimmer.utils;
 
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.coremedia.iso.boxes.Container;
+import com.googlecode.mp4parser.DataSource;
 import com.googlecode.mp4parser.FileDataSourceViaHeapImpl;
 import com.googlecode.mp4parser.authoring.Movie;
 import com.googlecode.mp4parser.authoring.Track;
@@ -39,6 +41,8 @@ import com.googlecode.mp4parser.authoring.tracks.CroppedTrack;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
@@ -48,13 +52,59 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 
+import life.knowledge4.videotrimmer.interfaces.OnTrimMetricsListener;
 import life.knowledge4.videotrimmer.interfaces.OnTrimVideoListener;
+import life.knowledge4.videotrimmer.interfaces.Tracer;
+import life.knowledge4.videotrimmer.mp4.InsufficientSpaceException;
+import life.knowledge4.videotrimmer.mp4.Mp4Index;
+import life.knowledge4.videotrimmer.mp4.Mp4Writer;
+import life.knowledge4.videotrimmer.mp4.TrimJournal;
+import life.knowledge4.videotrimmer.mp4.TrimMetrics;
+import life.knowledge4.videotrimmer.mp4.TrimOptions;
+import life.knowledge4.videotrimmer.mp4.TrimPlan;
 
 public class TrimVideoUtils {
 
     private static final String TAG = TrimVideoUtils.class.getSimpleName();
 
+    private static final String JOURNAL_PREFIX = ".MP4_";
+    private static final String JOURNAL_SUFFIX = ".journal";
+
     public static void startTrim(@NonNull File src, @NonNull String dst, long startMs, long endMs, @NonNull OnTrimVideoListener callback) throws IOException {
+        startTrim(new Mp4IndexLoader(src), dst, startMs, endMs, callback);
+    }
+
+    /**
+     * Same as {@link #startTrim(File, String, long, long, OnTrimVideoListener)}, reusing the
+     * index of the source if the loader has already built it.
+     */
+    public static void startTrim(@NonNull Mp4IndexLoader src, @NonNull String dst, long startMs, long endMs, @NonNull OnTrimVideoListener callback) throws IOException {
+        startTrim(src, dst, startMs, endMs, new TrimOptions(), callback);
+    }
+
+    public static void startTrim(@NonNull Mp4IndexLoader src, @NonNull String dst, long startMs, long endMs, @NonNull TrimOptions options, @NonNull OnTrimVideoListener callback) throws IOException {
+        startTrim(src, dst, startMs, endMs, options, null, callback);
+    }
+
+    /**
+     * @param cache where copies of the results are kept and looked up, or null. The result
+     *              is always a new file in <code>dst</code>
+     */
+    public static void startTrim(@NonNull Mp4IndexLoader src, @NonNull String dst, long startMs, long endMs, @NonNull TrimOptions options, @Nullable TrimResultCache cache, @NonNull OnTrimVideoListener callback) throws IOException {
+        Mp4Index index = src.get();
+        if (index.isFragmented() && !index.hasFragmentIndex()) {
+            genVideoUsingMp4Parser(src.getFile(), getOutputFile(dst), startMs, endMs, options, callback);
+        } else {
+            genVideoUsingSampleTables(index, dst, startMs, endMs, options, cache, callback);
+        }
+    }
+
+    /**
+     * @param dst the destination folder
+     * @return a new file in <code>dst</code>, named after the current time
+     */
+    @NonNull
+    static File getOutputFile(@NonNull String dst) {
         final String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
         final String fileName = "MP4_" + timeStamp + ".mp4";
         final String filePath = dst + fileName;
@@ -62,13 +112,147 @@ public class TrimVideoUtils {
         File file = new File(filePath);
         file.getParentFile().mkdirs();
         Log.d(TAG, "Generated file path " + filePath);
-        genVideoUsingMp4Parser(src, file, startMs, endMs, callback);
+        return file;
     }
 
-    private static void genVideoUsingMp4Parser(@NonNull File src, @NonNull File dst, long startMs, long endMs, @NonNull OnTrimVideoListener callback) throws IOException {
+    private static void genVideoUsingSampleTables(@NonNull Mp4Index index, @NonNull String dst, long startMs, long endMs, @NonNull TrimOptions options, @Nullable TrimResultCache cache, @NonNull OnTrimVideoListener callback) throws IOException {
+        // NOTE: Works on the sample tables as they are stored in the file instead of the
+        // expanded arrays of mp4parser tracks, so that multi-hour movies fit in memory.
+        TrimPlan plan = TrimPlan.create(index, startMs, endMs, options.getInterleaveDurationMs() * 1000);
+        Log.d(TAG, "Sample tables use " + index.getSampleTablesSizeInBytes() + " bytes, trimming "
+                + plan.getStartUs() + "us to " + plan.getEndUs() + "us, " + plan.getChunkCount() + " chunks in "
+                + plan.getCopyRangeCount() + " copy ranges" + (index.isFragmented() ? ", " + index.getFragmentCount() + " fragments in the source" : ""));
+
+        String key = TrimResultCache.getKey(plan, options);
+        if (cache != null) {
+            File file = getOutputFile(dst);
+            TrimMetrics metrics;
+            try {
+                metrics = cache.get(key, file, options.getDigestAlgorithm());
+            } catch (InsufficientSpaceException e) {
+                onInsufficientSpace(e, callback);
+                return;
+            }
+            if (metrics != null) {
+                Log.d(TAG, "Handed out the kept result as " + file + ": " + metrics);
+                onTrimmed(file, metrics, options, callback);
+                return;
+            }
+        }
+
+        Mp4Writer writer = new Mp4Writer(plan);
+        writer.setVerify(options.getDigestAlgorithm());
+        File file = null;
+        File journalFile = null;
+        if (options.isResumable()) {
+            journalFile = new File(dst, JOURNAL_PREFIX + key + JOURNAL_SUFFIX);
+            TrimJournal journal = TrimJournal.read(journalFile);
+            if (journal != null) {
+                file = new File(journal.getOutputPath());
+                Log.d(TAG, "Resuming " + file + " after " + journal.getCompletedChunks() + " chunks");
+            }
+            writer.setJournal(journalFile);
+        }
+        if (file == null) {
+            file = getOutputFile(dst);
+        }
+
+        try {
+            writer.write(file);
+        } catch (InsufficientSpaceException e) {
+            onInsufficientSpace(e, callback);
+            return;
+        } catch (InterruptedIOException | ClosedByInterruptException e) {
+            // the journal and partial output are kept for the next attempt
+            throw e;
+        } catch (IOException e) {
+            if (journalFile != null) {
+                // the same trim would fail again, do not leave the reserved output behind
+                file.delete();
+                journalFile.delete();
+            }
+            throw e;
+        }
+        if (cache != null) {
+            cache.put(key, file);
+        }
+
+        TrimMetrics metrics = writer.getMetrics();
+        Log.d(TAG, "Trimmed into " + file + ": " + metrics);
+        onTrimmed(file, metrics, options, callback);
+    }
+
+    private static void onTrimmed(@NonNull File file, @NonNull TrimMetrics metrics, @NonNull TrimOptions options, OnTrimVideoListener callback) {
+        OnTrimMetricsListener metricsListener = options.getMetricsListener();
+        if (metricsListener != null)
+            metricsListener.onTrimMetrics(metrics);
+
+        if (callback != null)
+            callback.getResult(Uri.parse(file.toString()));
+    }
+
+    private static void onInsufficientSpace(@NonNull InsufficientSpaceException e, OnTrimVideoListener callback) {
+        Log.w(TAG, e.getMessage());
+        if (callback != null)
+            callback.onError("Not enough space to save the video, " + e.getRequiredBytes() + " bytes needed");
+    }
+
+    /**
+     * Deletes the partial outputs and journals that interrupted resumable trims left in
+     * <code>dst</code>, for when the user gives up on them. Must not run while a trim
+     * into <code>dst</code> is running.
+     *
+     * @param dst the destination folder
+     * @return the number of trims discarded
+     */
+    public static int discardResumableTrims(@NonNull String dst) {
+        File[] files = new File(dst).listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int discarded = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(JOURNAL_PREFIX)) {
+                continue;
+            }
+            if (name.endsWith(JOURNAL_SUFFIX)) {
+                TrimJournal journal = TrimJournal.read(file);
+                if (journal != null) {
+                    new File(journal.getOutputPath()).delete();
+                }
+                file.delete();
+                discarded++;
+            } else if (name.endsWith(JOURNAL_SUFFIX + ".tmp")) {
+                file.delete();
+            }
+        }
+        Log.d(TAG, "Discarded " + discarded + " interrupted trims in " + dst);
+        return discarded;
+    }
+
+    private static void genVideoUsingMp4Parser(@NonNull File src, @NonNull File dst, long startMs, long endMs, @NonNull TrimOptions options, @NonNull OnTrimVideoListener callback) throws IOException {
         // NOTE: Switched to using FileDataSourceViaHeapImpl since it does not use memory mapping (VM).
         // Otherwise we get OOM with large movie files.
-        Movie movie = MovieCreator.build(new FileDataSourceViaHeapImpl(src.getAbsolutePath()));
+        DataSource source = new FileDataSourceViaHeapImpl(src.getAbsolutePath());
+        try {
+            genVideoUsingMp4Parser(source, dst, startMs, endMs, options, callback);
+        } finally {
+            // the tracks of the movie read their samples from the source until it is written
+            source.close();
+        }
+    }
+
+    private static void genVideoUsingMp4Parser(@NonNull DataSource src, @NonNull File dst, long startMs, long endMs, @NonNull TrimOptions options, @NonNull OnTrimVideoListener callback) throws IOException {
+        Tracer tracer = Tracing.getTracer();
+        long parseStart = System.nanoTime();
+        Movie movie;
+        tracer.beginSection(Tracing.SECTION_PARSE);
+        try {
+            movie = MovieCreator.build(src);
+        } finally {
+            tracer.endSection();
+        }
 
         List<Track> tracks = movie.getTracks();
         movie.setTracks(new LinkedList<Track>());
@@ -77,24 +261,24 @@ public class TrimVideoUtils {
         double startTime1 = startMs / 1000;
         double endTime1 = endMs / 1000;
 
-        boolean timeCorrected = false;
-
         // Here we try to find a track that has sync samples. Since we can only start decoding
         // at such a sample we SHOULD make sure that the start of the new fragment is exactly
-        // such a frame
-        for (Track track : tracks) {
-            if (track.getSyncSamples() != null && track.getSyncSamples().length > 0) {
-                if (timeCorrected) {
-                    // This exception here could be a false positive in case we have multiple tracks
-                    // with sync samples at exactly the same positions. E.g. a single movie containing
-                    // multiple qualities of the same video (Microsoft Smooth Streaming file)
-
-                    throw new RuntimeException("The startTime has already been corrected by another track with SyncSample. Not Supported.");
+        // such a frame. The first such track is the reference, other tracks with sync samples
+        // start at their own sync sample before its cut, see CutPointResolver
+        Track reference = null;
+        long cutPointStart = System.nanoTime();
+        tracer.beginSection(Tracing.SECTION_CUT_POINTS);
+        try {
+            for (Track track : tracks) {
+                if (track.getSyncSamples() != null && track.getSyncSamples().length > 0) {
+                    startTime1 = correctTimeToSyncSample(track, startTime1, false);
+                    endTime1 = correctTimeToSyncSample(track, endTime1, true);
+                    reference = track;
+                    break;
                 }
-                startTime1 = correctTimeToSyncSample(track, startTime1, false);
-                endTime1 = correctTimeToSyncSample(track, endTime1, true);
-                timeCorrected = true;
             }
+        } finally {
+            tracer.endSection();
         }
 
         for (Track track : tracks) {
@@ -120,25 +304,50 @@ public class TrimVideoUtils {
                 currentTime += (double) delta / (double) track.getTrackMetaData().getTimescale();
                 currentSample++;
             }
+            long[] syncSamples = track.getSyncSamples();
+            if (track != reference && syncSamples != null && syncSamples.length > 0) {
+                // sync samples start with 1
+                int sync = Arrays.binarySearch(syncSamples, startSample1 + 1);
+                if (sync < 0) {
+                    sync = Math.max(0, -sync - 2);
+                }
+                startSample1 = syncSamples[sync] - 1;
+            }
             movie.addTrack(new AppendTrack(new CroppedTrack(track, startSample1, endSample1)));
         }
 
+        long writeStart = System.nanoTime();
         dst.getParentFile().mkdirs();
 
         if (!dst.exists()) {
             dst.createNewFile();
         }
 
-        Container out = new DefaultMp4Builder().build(movie);
+        tracer.beginSection(Tracing.SECTION_WRITE);
+        try {
+            Container out = new DefaultMp4Builder().build(movie);
 
-        FileOutputStream fos = new FileOutputStream(dst);
-        FileChannel fc = fos.getChannel();
-        out.writeContainer(fc);
+            FileOutputStream fos = new FileOutputStream(dst);
+            try {
+                FileChannel fc = fos.getChannel();
+                try {
+                    out.writeContainer(fc);
+                } finally {
+                    fc.close();
+                }
+            } finally {
+                fos.close();
+            }
+        } finally {
+            tracer.endSection();
+        }
+        tracer.setCounter(Tracing.COUNTER_BYTES_WRITTEN, dst.length());
 
-        fc.close();
-        fos.close();
-        if (callback != null)
-            callback.getResult(Uri.parse(dst.toString()));
+        // mp4parser does its own I/O, only its times and output size are known
+        TrimMetrics metrics = TrimMetrics.fromMp4Parser(cutPointStart - parseStart, writeStart - cutPointStart,
+                System.nanoTime() - writeStart, dst.length());
+        Log.d(TAG, "Trimmed into " + dst + " with mp4parser: " + metrics);
+        onTrimmed(dst, metrics, options, callback);
     }
 
     private static double correctTimeToSyncSample(@NonNull Track track, double cutHere, boolean next) {
@@ -0,0 +1,81 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.view;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thumbnails extracted but not drawn yet, handed from the workers to the UI thread.
+ * Thumbnails ready before the UI thread gets to them are taken together, and only those of
+ * the newest layout are kept.
+ */
+final class PendingThumbnails<T> {
+
+    private final Map<Integer, T> mThumbnails = new LinkedHashMap<>();
+    private int mLayout;
+    private boolean mTakePosted;
+
+    /**
+     * Queues the thumbnail of <code>slot</code>, unless a newer layout was queued already.
+     *
+     * @return whether the caller has to post a {@link #take(int)} to the UI thread, which
+     * is once until it runs
+     */
+    synchronized boolean put(int layout, int slot, @NonNull T thumbnail) {
+        if (layout < mLayout) {
+            return false;
+        }
+        if (layout > mLayout) {
+            mThumbnails.clear();
+            mLayout = layout;
+        }
+        mThumbnails.put(slot, thumbnail);
+        if (mTakePosted) {
+            return false;
+        }
+        mTakePosted = true;
+        return true;
+    }
+
+    /**
+     * @param layout the layout on screen
+     * @return the queued thumbnails by slot, or null if they are of another layout, in which
+     * case a newer extraction is running and they are dropped
+     */
+    @Nullable
+    synchronized Map<Integer, T> take(int layout) {
+        mTakePosted = false;
+        if (layout != mLayout) {
+            mThumbnails.clear();
+            return null;
+        }
+        Map<Integer, T> thumbnails = new LinkedHashMap<>(mThumbnails);
+        mThumbnails.clear();
+        return thumbnails;
+    }
+}
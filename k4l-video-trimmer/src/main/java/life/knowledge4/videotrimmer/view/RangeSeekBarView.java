@@ -31,6 +31,7 @@ import android.support.annotation.NonNull;
 import android.support.v4.content.ContextCompat;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.View;
 
 import java.util.ArrayList;
@@ -38,14 +39,19 @@ import java.util.List;
 
 import life.knowledge4.videotrimmer.R;
 import life.knowledge4.videotrimmer.interfaces.OnRangeSeekBarListener;
+import life.knowledge4.videotrimmer.interfaces.OnRangeSeekBarZoomListener;
 
 public class RangeSeekBarView extends View {
 
     private static final String TAG = RangeSeekBarView.class.getSimpleName();
 
+    // the visible part of the timeline is at least this fraction of the video
+    private static final float MAX_ZOOM = 128;
+
     private int mHeightTimeLine;
     private List<Thumb> mThumbs;
     private List<OnRangeSeekBarListener> mListeners;
+    private List<OnRangeSeekBarZoomListener> mZoomListeners;
     private float mMaxWidth;
     private float mThumbWidth;
     private float mThumbHeight;
@@ -55,6 +61,14 @@ public class RangeSeekBarView extends View {
     private float mScaleRangeMax;
     private boolean mFirstRun;
 
+    // visible part of the timeline, on the scale of the thumb values
+    private boolean mZoomEnabled;
+    private float mWindowStart;
+    private float mWindowEnd;
+    private ScaleGestureDetector mScaleDetector;
+    private boolean mPanning;
+    private float mLastPanX;
+
     private final Paint mShadow = new Paint();
     private final Paint mLine = new Paint();
 
@@ -73,6 +87,15 @@ public class RangeSeekBarView extends View {
         mThumbHeight = Thumb.getHeightBitmap(mThumbs);
 
         mScaleRangeMax = 100;
+        mWindowStart = 0;
+        mWindowEnd = mScaleRangeMax;
+        mScaleDetector = new ScaleGestureDetector(getContext(), new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                zoom(detector.getScaleFactor(), detector.getFocusX());
+                return true;
+            }
+        });
         mHeightTimeLine = getContext().getResources().getDimensionPixelOffset(R.dimen.frames_video_height);
 
         setFocusable(true);
@@ -92,6 +115,8 @@ public class RangeSeekBarView extends View {
     }
 
     public void initMaxWidth() {
+        // the maximum width is measured zoomed out
+        setWindow(0, mScaleRangeMax);
         mMaxWidth = mThumbs.get(1).getPos() - mThumbs.get(0).getPos();
 
         onSeekStop(this, 0, mThumbs.get(0).getVal());
@@ -142,13 +167,29 @@ public class RangeSeekBarView extends View {
         final float coordinate = ev.getX();
         final int action = ev.getAction();
 
+        if (mZoomEnabled) {
+            mScaleDetector.onTouchEvent(ev);
+            if (mScaleDetector.isInProgress() || ev.getPointerCount() > 1) {
+                // a second finger turns a drag into a pinch
+                if (currentThumb != -1) {
+                    onSeekStop(this, currentThumb, mThumbs.get(currentThumb).getVal());
+                    currentThumb = -1;
+                }
+                mPanning = false;
+                return true;
+            }
+        }
+
         switch (action) {
             case MotionEvent.ACTION_DOWN: {
                 // Remember where we started
                 currentThumb = getClosestThumb(coordinate);
 
                 if (currentThumb == -1) {
-                    return false;
+                    // away from the thumbs, a drag scrolls the timeline
+                    mPanning = mZoomEnabled;
+                    mLastPanX = coordinate;
+                    return mPanning;
                 }
 
                 mThumb = mThumbs.get(currentThumb);
@@ -159,6 +200,7 @@ public class RangeSeekBarView extends View {
             case MotionEvent.ACTION_UP: {
 
                 if (currentThumb == -1) {
+                    mPanning = false;
                     return false;
                 }
 
@@ -168,6 +210,14 @@ public class RangeSeekBarView extends View {
             }
 
             case MotionEvent.ACTION_MOVE: {
+                if (currentThumb == -1) {
+                    if (mPanning) {
+                        pan(coordinate - mLastPanX);
+                        mLastPanX = coordinate;
+                    }
+                    return mPanning;
+                }
+
                 mThumb = mThumbs.get(currentThumb);
                 mThumb2 = mThumbs.get(currentThumb == 0 ? 1 : 0);
                 // Calculate the distance moved
@@ -215,19 +265,76 @@ public class RangeSeekBarView extends View {
     }
 
     private void checkPositionThumb(@NonNull Thumb mThumbLeft, @NonNull Thumb mThumbRight, float dx, boolean isLeftMove) {
+        // the maximum width grows with the zoom
+        float maxWidth = mMaxWidth * mScaleRangeMax / (mWindowEnd - mWindowStart);
         if (isLeftMove && dx < 0) {
-            if ((mThumbRight.getPos() - (mThumbLeft.getPos() + dx)) > mMaxWidth) {
-                mThumbRight.setPos(mThumbLeft.getPos() + dx + mMaxWidth);
+            if ((mThumbRight.getPos() - (mThumbLeft.getPos() + dx)) > maxWidth) {
+                mThumbRight.setPos(mThumbLeft.getPos() + dx + maxWidth);
                 setThumbPos(1, mThumbRight.getPos());
             }
         } else if (!isLeftMove && dx > 0) {
-            if (((mThumbRight.getPos() + dx) - mThumbLeft.getPos()) > mMaxWidth) {
-                mThumbLeft.setPos(mThumbRight.getPos() + dx - mMaxWidth);
+            if (((mThumbRight.getPos() + dx) - mThumbLeft.getPos()) > maxWidth) {
+                mThumbLeft.setPos(mThumbRight.getPos() + dx - maxWidth);
                 setThumbPos(0, mThumbLeft.getPos());
             }
         }
     }
 
+    /**
+     * Zooms the timeline by <code>scaleFactor</code>, keeping the time under <code>focusX</code> in place.
+     */
+    private void zoom(float scaleFactor, float focusX) {
+        float span = mWindowEnd - mWindowStart;
+        float newSpan = Math.max(mScaleRangeMax / MAX_ZOOM, Math.min(mScaleRangeMax, span / scaleFactor));
+        float fraction = getTimeLineFraction(focusX);
+        float focus = mWindowStart + fraction * span;
+        setWindow(focus - fraction * newSpan, focus - fraction * newSpan + newSpan);
+    }
+
+    private void pan(float dx) {
+        float span = mWindowEnd - mWindowStart;
+        float dv = -dx * span / (mViewWidth - 2 * mThumbWidth);
+        setWindow(mWindowStart + dv, mWindowEnd + dv);
+    }
+
+    /**
+     * @return where <code>x</code> is on the timeline, which lies between the thumbs at both ends, from 0 to 1
+     */
+    private float getTimeLineFraction(float x) {
+        float width = mViewWidth - 2 * mThumbWidth;
+        return width > 0 ? Math.max(0, Math.min(1, (x - mThumbWidth) / width)) : 0;
+    }
+
+    /**
+     * Shows the part of the timeline between <code>start</code> and <code>end</code>, moved
+     * inside the timeline if needed, and moves the thumbs with it.
+     */
+    private void setWindow(float start, float end) {
+        float span = end - start;
+        start = Math.max(0, Math.min(mScaleRangeMax - span, start));
+        if (start == mWindowStart && start + span == mWindowEnd) {
+            return;
+        }
+        mWindowStart = start;
+        mWindowEnd = start + span;
+        for (int i = 0; i < mThumbs.size(); i++) {
+            calculateThumbPos(i);
+        }
+        invalidate();
+        onZoom(this, mWindowStart, mWindowEnd);
+    }
+
+    /**
+     * Lets the user zoom the timeline with two fingers, and scroll it once zoomed by dragging
+     * away from the thumbs. Disabled by default
+     */
+    public void setZoomEnabled(boolean enabled) {
+        mZoomEnabled = enabled;
+        if (!enabled) {
+            setWindow(0, mScaleRangeMax);
+        }
+    }
+
     private int getUnstuckFrom(int index) {
         int unstuck = 0;
         float lastVal = mThumbs.get(index).getVal();
@@ -241,16 +348,20 @@ public class RangeSeekBarView extends View {
 
     private float pixelToScale(int index, float pixelValue) {
         float scale = (pixelValue * 100) / mPixelRangeMax;
+        float windowScale;
         if (index == 0) {
             float pxThumb = (scale * mThumbWidth) / 100;
-            return scale + (pxThumb * 100) / mPixelRangeMax;
+            windowScale = scale + (pxThumb * 100) / mPixelRangeMax;
         } else {
             float pxThumb = ((100 - scale) * mThumbWidth) / 100;
-            return scale - (pxThumb * 100) / mPixelRangeMax;
+            windowScale = scale - (pxThumb * 100) / mPixelRangeMax;
         }
+        // the pixels show the zoomed window only
+        return mWindowStart + windowScale * (mWindowEnd - mWindowStart) / 100;
     }
 
-    private float scaleToPixel(int index, float scaleValue) {
+    private float scaleToPixel(int index, float value) {
+        float scaleValue = (value - mWindowStart) * 100 / (mWindowEnd - mWindowStart);
         float px = (scaleValue * mPixelRangeMax) / 100;
         if (index == 0) {
             float pxThumb = (scaleValue * mThumbWidth) / 100;
@@ -351,6 +462,24 @@ public class RangeSeekBarView extends View {
         mListeners.add(listener);
     }
 
+    public void addOnRangeSeekBarZoomListener(OnRangeSeekBarZoomListener listener) {
+
+        if (mZoomListeners == null) {
+            mZoomListeners = new ArrayList<>();
+        }
+
+        mZoomListeners.add(listener);
+    }
+
+    private void onZoom(RangeSeekBarView rangeSeekBarView, float windowStart, float windowEnd) {
+        if (mZoomListeners == null)
+            return;
+
+        for (OnRangeSeekBarZoomListener item : mZoomListeners) {
+            item.onZoom(rangeSeekBarView, windowStart, windowEnd);
+        }
+    }
+
     private void onCreate(RangeSeekBarView rangeSeekBarView, int index, float value) {
         if (mListeners == null)
             return;
@@ -0,0 +1,195 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.view;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Extracts frames of a video at the smallest size that covers the thumbnails they become,
+ * keeping their aspect ratio. The thumbnail is the center of the frame, see
+ * {@link #getCropRect(int, int, int, int, Rect)}.
+ * <p>
+ * From Android 8.1 the frames are decoded at that size. Before that the retriever only
+ * hands out full resolution frames, which are scaled down and recycled at once, so that at
+ * most one full frame per retriever is alive.
+ */
+final class ThumbnailRetriever {
+
+    private static final String TAG = ThumbnailRetriever.class.getSimpleName();
+
+    // MediaMetadataRetriever#getScaledFrameAtTime, newer than the SDK the library compiles against
+    private static final int VERSION_SCALED_FRAME = 27;
+    private static Method sGetScaledFrameAtTime;
+    private static boolean sGetScaledFrameAtTimeResolved;
+
+    private final MediaMetadataRetriever mRetriever = new MediaMetadataRetriever();
+    private final Canvas mCanvas = new Canvas();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mDst = new Rect();
+    private final long mDurationUs;
+    private final int mFrameWidth;
+    private final int mFrameHeight;
+
+    ThumbnailRetriever(@NonNull Context context, @NonNull Uri uri) {
+        try {
+            mRetriever.setDataSource(context, uri);
+        } catch (RuntimeException e) {
+            mRetriever.release();
+            throw e;
+        }
+        mDurationUs = parseLong(mRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)) * 1000;
+        int width = (int) parseLong(mRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+        int height = (int) parseLong(mRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+        int rotation = (int) parseLong(mRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
+        // frames come out rotated
+        mFrameWidth = rotation % 180 == 0 ? width : height;
+        mFrameHeight = rotation % 180 == 0 ? height : width;
+    }
+
+    long getDurationUs() {
+        return mDurationUs;
+    }
+
+    /**
+     * @return the sync frame closest to <code>timeUs</code>, or the one before it if the
+     * closest could not be decoded, scaled to just cover <code>width</code> by
+     * <code>height</code>, or null if there is no frame
+     */
+    @Nullable
+    Bitmap getThumbnail(long timeUs, int width, int height) {
+        Bitmap frame = getFrame(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC, width, height);
+        if (frame == null) {
+            // seen past the last sync frame, and with some codecs
+            frame = getFrame(timeUs, MediaMetadataRetriever.OPTION_PREVIOUS_SYNC, width, height);
+        }
+        if (frame == null) {
+            Log.d(TAG, "No frame at " + timeUs + "us");
+            return null;
+        }
+        int[] size = getScaledSize(frame.getWidth(), frame.getHeight(), width, height);
+        if (size[0] >= frame.getWidth()) {
+            // scaled by the retriever, or no bigger than the thumbnail
+            return frame;
+        }
+
+        Bitmap thumbnail = Bitmap.createBitmap(size[0], size[1], frame.getConfig() != null ? frame.getConfig() : Bitmap.Config.ARGB_8888);
+        mDst.set(0, 0, size[0], size[1]);
+        mCanvas.setBitmap(thumbnail);
+        mCanvas.drawBitmap(frame, null, mDst, mPaint);
+        mCanvas.setBitmap(null);
+        frame.recycle();
+        return thumbnail;
+    }
+
+    @Nullable
+    private Bitmap getFrame(long timeUs, int option, int width, int height) {
+        Method getScaledFrameAtTime = getScaledFrameAtTimeMethod();
+        if (getScaledFrameAtTime != null && mFrameWidth > 0 && mFrameHeight > 0) {
+            int[] size = getScaledSize(mFrameWidth, mFrameHeight, width, height);
+            if (size[0] < mFrameWidth) {
+                try {
+                    return (Bitmap) getScaledFrameAtTime.invoke(mRetriever, timeUs, option, size[0], size[1]);
+                } catch (IllegalAccessException | InvocationTargetException e) {
+                    Log.w(TAG, "Could not get a scaled frame", e);
+                }
+            }
+        }
+        return mRetriever.getFrameAtTime(timeUs, option);
+    }
+
+    /**
+     * @return the width and height of a frame of <code>frameWidth</code> by
+     * <code>frameHeight</code> scaled to just cover <code>width</code> by <code>height</code>,
+     * keeping its aspect ratio
+     */
+    @NonNull
+    static int[] getScaledSize(int frameWidth, int frameHeight, int width, int height) {
+        // the side scaled the most fits exactly, the other one is rounded up, in integers
+        // so that a float error never adds a row
+        if ((long) width * frameHeight >= (long) height * frameWidth) {
+            return new int[]{width, (int) (((long) frameHeight * width + frameWidth - 1) / frameWidth)};
+        }
+        return new int[]{(int) (((long) frameWidth * height + frameHeight - 1) / frameHeight), height};
+    }
+
+    /**
+     * Sets <code>crop</code> to the center of a bitmap of <code>bitmapWidth</code> by
+     * <code>bitmapHeight</code> that has the aspect ratio of <code>width</code> by
+     * <code>height</code>.
+     */
+    static void getCropRect(int bitmapWidth, int bitmapHeight, int width, int height, @NonNull Rect crop) {
+        int cropWidth = bitmapWidth;
+        int cropHeight = bitmapHeight;
+        if ((long) width * bitmapHeight >= (long) height * bitmapWidth) {
+            cropHeight = (int) ((long) height * bitmapWidth / width);
+        } else {
+            cropWidth = (int) ((long) width * bitmapHeight / height);
+        }
+        crop.left = (bitmapWidth - cropWidth) / 2;
+        crop.top = (bitmapHeight - cropHeight) / 2;
+        crop.right = crop.left + cropWidth;
+        crop.bottom = crop.top + cropHeight;
+    }
+
+    void release() {
+        mRetriever.release();
+    }
+
+    @Nullable
+    private static synchronized Method getScaledFrameAtTimeMethod() {
+        if (!sGetScaledFrameAtTimeResolved) {
+            sGetScaledFrameAtTimeResolved = true;
+            if (Build.VERSION.SDK_INT >= VERSION_SCALED_FRAME) {
+                try {
+                    sGetScaledFrameAtTime = MediaMetadataRetriever.class.getMethod("getScaledFrameAtTime",
+                            long.class, int.class, int.class, int.class);
+                } catch (NoSuchMethodException e) {
+                    Log.w(TAG, "No scaled frames on this device", e);
+                }
+            }
+        }
+        return sGetScaledFrameAtTime;
+    }
+
+    private static long parseLong(@Nullable String value) {
+        try {
+            return value != null ? Long.parseLong(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.view;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Where the thumbnails of the timeline are taken from, apart from the view drawing them.
+ */
+final class ThumbnailSlots {
+
+    private ThumbnailSlots() {
+    }
+
+    /**
+     * @param thumbSize the width of a thumbnail, which is square
+     * @return the number of slots of the level of detail of the window from
+     * <code>windowStart</code> to <code>windowEnd</code>, from 0 to 1: the fewest slots,
+     * doubling from one level to the next, that are at most as wide as a thumbnail
+     */
+    static int getTileCount(int width, int thumbSize, float windowStart, float windowEnd) {
+        final int numThumbs = (int) Math.ceil(((float) width) / thumbSize);
+        double zoom = 1.0 / (windowEnd - windowStart);
+        int level = Math.max(0, (int) Math.ceil(Math.log(zoom) / Math.log(2) - 0.01));
+        return numThumbs << level;
+    }
+
+    /**
+     * @return the first slot, out of <code>tileCount</code>, shown by a window starting at
+     * <code>windowStart</code>
+     */
+    static int getFirstVisibleTile(float windowStart, int tileCount) {
+        return Math.max(0, (int) (windowStart * tileCount));
+    }
+
+    /**
+     * @return the slot after the last one, out of <code>tileCount</code>, shown by a window
+     * ending at <code>windowEnd</code>
+     */
+    static int getLastVisibleTile(float windowEnd, int tileCount) {
+        return Math.min(tileCount, (int) Math.ceil(windowEnd * tileCount));
+    }
+
+    /**
+     * @param syncTimesUs the key frame times of the video, or null if unknown
+     * @return the time of the frame of every thumbnail: evenly spaced, or moved to the key
+     * frames of the video when they are known
+     */
+    @NonNull
+    static long[] getTimesUs(int numThumbs, long interval, @Nullable long[] syncTimesUs) {
+        long[] times = new long[numThumbs];
+        for (int i = 0; i < numThumbs; i++) {
+            times[i] = i * interval;
+        }
+        if (syncTimesUs != null && syncTimesUs.length > 0) {
+            alignToKeyFrames(times, syncTimesUs, interval);
+        }
+        return times;
+    }
+
+    /**
+     * Moves every time to the closest key frame not taken by the time before it. When the
+     * key frames run out, a time takes the key frame of the time before it.
+     */
+    static void alignToKeyFrames(@NonNull long[] times, @NonNull long[] syncTimes, long interval) {
+        int last = -1;
+        for (int i = 0; i < times.length; i++) {
+            int closest = Arrays.binarySearch(syncTimes, times[i]);
+            if (closest < 0) {
+                int next = -closest - 1;
+                closest = next == syncTimes.length
+                        || (next > 0 && times[i] - syncTimes[next - 1] <= syncTimes[next] - times[i]) ? next - 1 : next;
+            }
+            if (closest <= last) {
+                // a later key frame still in this slot, or else the one of the slot before
+                closest = last + 1 < syncTimes.length && syncTimes[last + 1] < times[i] + interval ? last + 1 : last;
+            }
+            times[i] = syncTimes[closest];
+            last = closest;
+        }
+    }
+
+    /**
+     * @return the slots extracted by <code>worker</code> out of <code>workers</code>: a part of
+     * the visible slots, then a part of the prefetched ones, so that each worker decodes
+     * forward through both and the visible slots come first
+     */
+    @NonNull
+    static int[] getWorkerTiles(@NonNull int[] visible, @NonNull int[] prefetch, int worker, int workers) {
+        return concat(slice(visible, worker, workers), slice(prefetch, worker, workers));
+    }
+
+    @NonNull
+    static int[] concat(@NonNull int[] a, @NonNull int[] b) {
+        int[] tiles = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, tiles, a.length, b.length);
+        return tiles;
+    }
+
+    @NonNull
+    private static int[] slice(@NonNull int[] tiles, int part, int parts) {
+        return Arrays.copyOfRange(tiles, tiles.length * part / parts, tiles.length * (part + 1) / parts);
+    }
+}
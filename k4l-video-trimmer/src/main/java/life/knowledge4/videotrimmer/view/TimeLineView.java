@@ -26,22 +26,86 @@ package life.knowledge4.videotrimmer.view;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.media.MediaMetadataRetriever;
+import android.graphics.Color;
+import android.graphics.Rect;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Process;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.AttributeSet;
-import android.util.LongSparseArray;
+import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import life.knowledge4.videotrimmer.R;
+import life.knowledge4.videotrimmer.interfaces.Tracer;
+import life.knowledge4.videotrimmer.mp4.TrackIndex;
 import life.knowledge4.videotrimmer.utils.BackgroundExecutor;
+import life.knowledge4.videotrimmer.utils.Mp4IndexLoader;
+import life.knowledge4.videotrimmer.utils.ThumbnailCache;
+import life.knowledge4.videotrimmer.utils.Tracing;
 import life.knowledge4.videotrimmer.utils.UiThreadExecutor;
 
 public class TimeLineView extends View {
 
+    private static final String TAG = TimeLineView.class.getSimpleName();
+
+    // strips of detached views, handed to the next view instead of allocating new ones, UI thread only
+    private static final int STRIP_POOL_SIZE = 2;
+    private static final List<Bitmap> STRIP_POOL = new ArrayList<>();
+
+    // zooming asks for thumbnails this long after the last change, so that a pinch asks once
+    private static final long TILE_REQUEST_DELAY_MS = 100;
+
+    private final String mTaskId = TAG + "@" + Integer.toHexString(System.identityHashCode(this));
     private Uri mVideoUri;
     private int mHeightView;
-    private LongSparseArray<Bitmap> mBitmapList = null;
+    private ThumbnailCache mThumbnailCache = new ThumbnailCache(null, 0);
+    private int mParallelism = 1;
+    private volatile Mp4IndexLoader mIndexLoader;
+    // key frame times of the first video track, read once per video when its index is ready
+    private volatile long[] mSyncTimesUs;
+
+    // every thumbnail is drawn into one strip, drawn with a single call
+    private Bitmap mStrip;
+    private final Canvas mStripCanvas = new Canvas();
+    private final Rect mStripBounds = new Rect();
+
+    // visible part of the video, from 0 to 1. Its thumbnails come from a level of detail
+    // that splits the video in twice as many slots as the level before, chosen so that
+    // the slots are at most as wide as a thumbnail
+    private float mWindowStart = 0;
+    private float mWindowEnd = 1;
+    private int mLayoutWidth;
+    private int mTileCount;
+    // cache keys of the thumbnails drawn into the strip by slot, of the current level and
+    // of the previous one, drawn under them until every visible slot is filled. The bitmaps
+    // stay in the cache, which hands them out again when the window changes
+    private SparseArray<String> mTileKeys = new SparseArray<>();
+    private SparseArray<String> mFallbackTileKeys = new SparseArray<>();
+    private int mFallbackTileCount;
+    private final Rect mTileBounds = new Rect();
+    private final Rect mTileCrop = new Rect();
+    // changes with the width, level or video, thumbnails of an older layout are dropped
+    private int mLayout;
+
+    // latest extraction, workers of an older extraction stop at their next frame
+    private volatile int mGeneration;
+    private final PendingThumbnails<Tile> mPendingBitmaps = new PendingThumbnails<>();
+    private final Runnable mFlushBitmaps = new Runnable() {
+        @Override
+        public void run() {
+            flushBitmaps();
+        }
+    };
 
     public TimeLineView(@NonNull Context context, AttributeSet attrs) {
         this(context, attrs, 0);
@@ -77,78 +141,439 @@ public class TimeLineView extends View {
     }
 
     private void getBitmap(final int viewWidth) {
-        BackgroundExecutor.execute(new BackgroundExecutor.Task("", 0L, "") {
-                                       @Override
-                                       public void execute() {
-                                           try {
-                                               LongSparseArray<Bitmap> thumbnailList = new LongSparseArray<>();
-
-                                               MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-                                               mediaMetadataRetriever.setDataSource(getContext(), mVideoUri);
-
-                                               // Retrieve media data
-                                               long videoLengthInMs = Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)) * 1000;
-
-                                               // Set thumbnail properties (Thumbs are squares)
-                                               final int thumbWidth = mHeightView;
-                                               final int thumbHeight = mHeightView;
-
-                                               int numThumbs = (int) Math.ceil(((float) viewWidth) / thumbWidth);
-
-                                               final long interval = videoLengthInMs / numThumbs;
-
-                                               for (int i = 0; i < numThumbs; ++i) {
-                                                   Bitmap bitmap = mediaMetadataRetriever.getFrameAtTime(i * interval, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
-                                                   // TODO: bitmap might be null here, hence throwing NullPointerException. You were right
-                                                   try {
-                                                       bitmap = Bitmap.createScaledBitmap(bitmap, thumbWidth, thumbHeight, false);
-                                                   } catch (Exception e) {
-                                                       e.printStackTrace();
-                                                   }
-                                                   thumbnailList.put(i, bitmap);
-                                               }
+        // only the newest size or video is worth extracting
+        mLayoutWidth = viewWidth;
+        mTileCount = getTileCount();
+        mTileKeys.clear();
+        mFallbackTileKeys.clear();
+        mLayout++;
+        requestTiles(0L);
+    }
+
+    private int getTileCount() {
+        return ThumbnailSlots.getTileCount(mLayoutWidth, mHeightView, mWindowStart, mWindowEnd);
+    }
 
-                                               mediaMetadataRetriever.release();
-                                               returnBitmaps(thumbnailList);
-                                           } catch (final Throwable e) {
-                                               Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+    private int getFirstVisibleTile() {
+        return ThumbnailSlots.getFirstVisibleTile(mWindowStart, mTileCount);
+    }
+
+    private int getLastVisibleTile() {
+        return ThumbnailSlots.getLastVisibleTile(mWindowEnd, mTileCount);
+    }
+
+    /**
+     * Extracts the missing thumbnails of the visible window, then those of half a window
+     * on each side so that scrolling finds them ready. Thumbnails further away are dropped,
+     * they come back from the cache.
+     */
+    private void requestTiles(long delayMs) {
+        cancelExtraction();
+        if (mVideoUri == null || mTileCount == 0) {
+            return;
+        }
+        final int generation = mGeneration;
+        final int layout = mLayout;
+        final int tileCount = mTileCount;
+        int first = getFirstVisibleTile();
+        int last = getLastVisibleTile();
+        int margin = (last - first) / 2;
+        int keepFirst = Math.max(0, first - margin);
+        int keepLast = Math.min(tileCount, last + margin);
+        for (int i = mTileKeys.size() - 1; i >= 0; i--) {
+            int tile = mTileKeys.keyAt(i);
+            if (tile < keepFirst || tile >= keepLast) {
+                mTileKeys.removeAt(i);
+            }
+        }
+
+        int[] visible = getMissingTiles(first, last);
+        int[] prefetch = ThumbnailSlots.concat(getMissingTiles(last, keepLast), getMissingTiles(keepFirst, first));
+        final int workers = Math.min(mParallelism, visible.length + prefetch.length);
+        final AtomicInteger frames = new AtomicInteger();
+        for (int worker = 0; worker < workers; worker++) {
+            final int[] tiles = ThumbnailSlots.getWorkerTiles(visible, prefetch, worker, workers);
+            BackgroundExecutor.execute(new BackgroundExecutor.Task(mTaskId, delayMs, "") {
+                                           @Override
+                                           public void execute() {
+                                               int priority = Process.getThreadPriority(Process.myTid());
+                                               if (workers > 1) {
+                                                   Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                               }
+                                               try {
+                                                   extractThumbnails(generation, layout, tileCount, tiles, frames);
+                                               } catch (final Throwable e) {
+                                                   Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+                                               } finally {
+                                                   Process.setThreadPriority(priority);
+                                               }
                                            }
                                        }
-                                   }
-        );
+            );
+        }
     }
 
-    private void returnBitmaps(final LongSparseArray<Bitmap> thumbnailList) {
-        UiThreadExecutor.runTask("", new Runnable() {
-                    @Override
-                    public void run() {
-                        mBitmapList = thumbnailList;
-                        invalidate();
+    @NonNull
+    private int[] getMissingTiles(int from, int to) {
+        int[] tiles = new int[Math.max(0, to - from)];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (mTileKeys.get(i) == null) {
+                tiles[count++] = i;
+            }
+        }
+        return Arrays.copyOf(tiles, count);
+    }
+
+    /**
+     * Extracts the thumbnails of the given slots, out of <code>numThumbs</code>, one after
+     * the other, with a retriever of its own, handing each to the UI thread as soon as it
+     * is ready.
+     */
+    private void extractThumbnails(int generation, int layout, int numThumbs, @NonNull int[] tiles, @NonNull AtomicInteger frames) {
+        ThumbnailRetriever retriever = new ThumbnailRetriever(getContext(), mVideoUri);
+        try {
+            // Retrieve media data
+            long videoLengthInMs = retriever.getDurationUs();
+
+            // Set thumbnail properties (Thumbs are squares)
+            final int thumbWidth = mHeightView;
+            final int thumbHeight = mHeightView;
+
+            final long interval = videoLengthInMs / numThumbs;
+            long[] times = ThumbnailSlots.getTimesUs(numThumbs, interval, getSyncSampleTimesUs());
+
+            ThumbnailCache cache = mThumbnailCache;
+            String sourceKey = ThumbnailCache.getSourceKey(mVideoUri);
+            Tracer tracer = Tracing.getTracer();
+            String key = null;
+            Bitmap bitmap = null;
+            for (int j = 0; j < tiles.length && generation == mGeneration; ++j) {
+                int i = tiles[j];
+                // neighbours given the same key frame share its thumbnail
+                if (j > 0 && tiles[j - 1] == i - 1 && times[i] == times[i - 1]) {
+                    if (bitmap != null) {
+                        returnBitmap(layout, i, key, bitmap);
+                    }
+                    continue;
+                }
+                key = ThumbnailCache.getKey(sourceKey, times[i], thumbWidth, thumbHeight);
+                bitmap = cache.get(key);
+                if (bitmap == null) {
+                    tracer.beginSection(Tracing.SECTION_FRAME);
+                    try {
+                        bitmap = retriever.getThumbnail(times[i], thumbWidth, thumbHeight);
+                        if (bitmap != null) {
+                            cache.put(key, bitmap);
+                        }
+                    } finally {
+                        tracer.endSection();
                     }
                 }
-                , 0L);
+                if (bitmap != null) {
+                    returnBitmap(layout, i, key, bitmap);
+                }
+                tracer.setCounter(Tracing.COUNTER_FRAMES, frames.incrementAndGet());
+            }
+        } finally {
+            retriever.release();
+        }
+    }
+
+    /**
+     * @return the key frame times of the first video track, or null while the index is
+     * not built. Never waits for it: the thumbnails are evenly spaced until then, and those
+     * requested afterwards are aligned
+     */
+    @Nullable
+    private long[] getSyncSampleTimesUs() {
+        long[] syncTimesUs = mSyncTimesUs;
+        Mp4IndexLoader indexLoader = mIndexLoader;
+        if (syncTimesUs != null || indexLoader == null || !indexLoader.isLoaded()) {
+            return syncTimesUs;
+        }
+        syncTimesUs = new long[0];
+        try {
+            for (TrackIndex track : indexLoader.get().getTracks()) {
+                if (TrackIndex.HANDLER_VIDEO.equals(track.getHandlerType())) {
+                    syncTimesUs = track.getSyncSampleTimesUs();
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Thumbnails not aligned to key frames", e);
+        }
+        // unless the video changed meanwhile
+        if (indexLoader == mIndexLoader) {
+            mSyncTimesUs = syncTimesUs;
+        }
+        return syncTimesUs;
+    }
+
+    /**
+     * Queues a thumbnail for the UI thread. Thumbnails ready before the UI thread gets to
+     * them are drawn together, with a single invalidate.
+     */
+    private void returnBitmap(int layout, int index, @NonNull String key, @NonNull Bitmap bitmap) {
+        if (mPendingBitmaps.put(layout, index, new Tile(key, bitmap))) {
+            UiThreadExecutor.runTask("", mFlushBitmaps, 0L);
+        }
+    }
+
+    private void flushBitmaps() {
+        Map<Integer, Tile> tiles = mPendingBitmaps.take(mLayout);
+        if (tiles == null) {
+            // the size or zoom changed since, a newer extraction is running
+            return;
+        }
+        if (mStrip == null) {
+            renderStrip();
+        }
+        // thumbnails arrive in any order, each is drawn over the strip at its own slot
+        for (Map.Entry<Integer, Tile> entry : tiles.entrySet()) {
+            mTileKeys.put(entry.getKey(), entry.getValue().mKey);
+            drawTile(entry.getKey(), mTileCount, entry.getValue().mBitmap);
+        }
+        if (mFallbackTileKeys.size() > 0 && hasVisibleTiles()) {
+            // covered by now
+            mFallbackTileKeys.clear();
+        }
+        postInvalidateOnAnimation();
+    }
+
+    private boolean hasVisibleTiles() {
+        for (int i = getFirstVisibleTile(); i < getLastVisibleTile(); i++) {
+            if (mTileKeys.get(i) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Draws the thumbnails of the visible window into the strip again, those of the
+     * previous level first, taking them from the memory cache. Those it evicted since are
+     * forgotten, and extracted again by the next request.
+     */
+    private void renderStrip() {
+        if (mLayoutWidth == 0) {
+            return;
+        }
+        prepareStrip(mLayoutWidth, mHeightView);
+        drawTiles(mFallbackTileKeys, mFallbackTileCount);
+        drawTiles(mTileKeys, mTileCount);
+    }
+
+    private void drawTiles(@NonNull SparseArray<String> keys, int tileCount) {
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            if (!setTileBounds(keys.keyAt(i), tileCount)) {
+                continue;
+            }
+            Bitmap tile = mThumbnailCache.getFromMemory(keys.valueAt(i));
+            if (tile == null) {
+                keys.removeAt(i);
+                continue;
+            }
+            drawTile(tile);
+        }
+    }
+
+    private void drawTile(int slot, int tileCount, @NonNull Bitmap tile) {
+        if (setTileBounds(slot, tileCount)) {
+            drawTile(tile);
+        }
+    }
+
+    /**
+     * Draws <code>tile</code> into the strip at the bounds set before, cropped to them.
+     */
+    private void drawTile(@NonNull Bitmap tile) {
+        ThumbnailRetriever.getCropRect(tile.getWidth(), tile.getHeight(), mTileBounds.width(), mTileBounds.height(), mTileCrop);
+        mStripCanvas.drawBitmap(tile, mTileCrop, mTileBounds, null);
+    }
+
+    /**
+     * Sets the bounds of <code>slot</code> out of <code>tileCount</code> in the strip.
+     *
+     * @return whether the slot is visible
+     */
+    private boolean setTileBounds(int slot, int tileCount) {
+        float span = mWindowEnd - mWindowStart;
+        int width = Math.max(mHeightView, (int) Math.ceil(mLayoutWidth / (span * tileCount)));
+        int x = Math.round((slot / (float) tileCount - mWindowStart) / span * mLayoutWidth);
+        if (x + width <= 0 || x >= mLayoutWidth) {
+            return false;
+        }
+        mTileBounds.set(x, 0, x + width, mHeightView);
+        return true;
+    }
+
+    /**
+     * Clears the strip for thumbnails of a new width, reusing its memory when it is big enough.
+     * Runs on the UI thread, and the callers invalidate the view afterwards, so the strip is
+     * never reconfigured while a frame draws it.
+     */
+    private void prepareStrip(int width, int height) {
+        // the canvas must not hold the strip while it is reconfigured
+        mStripCanvas.setBitmap(null);
+        if (mStrip != null && !fitStrip(mStrip, width, height)) {
+            releaseStrip(mStrip);
+            mStrip = null;
+        }
+        if (mStrip == null) {
+            mStrip = acquireStrip(width, height);
+        }
+        mStrip.eraseColor(Color.TRANSPARENT);
+        mStripCanvas.setBitmap(mStrip);
+        mStripBounds.set(0, 0, width, height);
+    }
+
+    @NonNull
+    private static Bitmap acquireStrip(int width, int height) {
+        for (int i = 0; i < STRIP_POOL.size(); i++) {
+            Bitmap strip = STRIP_POOL.get(i);
+            if (fitStrip(strip, width, height)) {
+                STRIP_POOL.remove(i);
+                return strip;
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private static void releaseStrip(@NonNull Bitmap strip) {
+        if (STRIP_POOL.size() < STRIP_POOL_SIZE) {
+            STRIP_POOL.add(strip);
+        } else {
+            strip.recycle();
+        }
+    }
+
+    /**
+     * @return whether <code>strip</code> can hold <code>width</code> by <code>height</code>,
+     * once reconfigured to that size if needed
+     */
+    private static boolean fitStrip(@NonNull Bitmap strip, int width, int height) {
+        if (strip.getWidth() >= width && strip.getHeight() == height) {
+            return true;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && strip.getAllocationByteCount() >= width * height * 4) {
+            strip.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mStrip == null && mVideoUri != null && getWidth() > 0) {
+            getBitmap(getWidth());
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // stop the extraction, and lend the strip to the next view
+        cancelExtraction();
+        mTileKeys.clear();
+        mFallbackTileKeys.clear();
+        if (mStrip != null) {
+            mStripCanvas.setBitmap(null);
+            releaseStrip(mStrip);
+            mStrip = null;
+        }
+    }
+
+    /**
+     * Drops the thumbnails still coming, and stops the running extraction before its next frame.
+     */
+    private void cancelExtraction() {
+        mGeneration++;
+        BackgroundExecutor.cancelAll(mTaskId, true);
     }
 
     @Override
     protected void onDraw(@NonNull Canvas canvas) {
         super.onDraw(canvas);
 
-        if (mBitmapList != null) {
-            canvas.save();
-            int x = 0;
+        if (mStrip != null) {
+            canvas.drawBitmap(mStrip, mStripBounds, mStripBounds, null);
+        }
+    }
 
-            for (int i = 0; i < mBitmapList.size(); i++) {
-                Bitmap bitmap = mBitmapList.get(i);
+    public void setVideo(@NonNull Uri data) {
+        mVideoUri = data;
+        mSyncTimesUs = null;
+        if (getWidth() > 0) {
+            getBitmap(getWidth());
+        }
+    }
 
-                if (bitmap != null) {
-                    canvas.drawBitmap(bitmap, x, 0, null);
-                    x = x + bitmap.getWidth();
-                }
+    /**
+     * Shows the part of the video between <code>start</code> and <code>end</code>, from 0
+     * to 1. The thumbnails at hand are drawn again from the cache right away, and those of
+     * the new level of detail follow once the window stops changing.
+     */
+    public void setWindow(float start, float end) {
+        mWindowStart = start;
+        mWindowEnd = end;
+        if (mLayoutWidth == 0) {
+            return;
+        }
+        int tileCount = getTileCount();
+        if (tileCount != mTileCount) {
+            if (mTileKeys.size() > 0) {
+                mFallbackTileKeys = mTileKeys;
+                mFallbackTileCount = mTileCount;
+                mTileKeys = new SparseArray<>();
             }
+            mTileCount = tileCount;
+            mLayout++;
         }
+        renderStrip();
+        invalidate();
+        requestTiles(TILE_REQUEST_DELAY_MS);
     }
 
-    public void setVideo(@NonNull Uri data) {
-        mVideoUri = data;
+    /**
+     * Extracts the thumbnails with several retrievers at once, each taking a part of the
+     * timeline. The workers run at background priority, and there are at most as many as
+     * cores, so that the other half of the background threads stays free for trims.
+     *
+     * @param parallelism the number of retrievers, 1 to extract one thumbnail at a time
+     */
+    public void setThumbnailParallelism(int parallelism) {
+        mParallelism = Math.max(1, Math.min(parallelism, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Moves the thumbnails to the key frames of the video, read from its sample tables, so
+     * that every key frame is decoded at most once and neighbours show different frames.
+     * Thumbnails asked for before the index is built are evenly spaced.
+     *
+     * @param indexLoader the index of the video, or null for evenly spaced thumbnails
+     */
+    public void setIndexLoader(@Nullable Mp4IndexLoader indexLoader) {
+        mIndexLoader = indexLoader;
+        mSyncTimesUs = null;
+    }
+
+    /**
+     * @param cache where thumbnails are looked up before extracting them, and kept after.
+     *              By default they are only kept in memory
+     */
+    public void setThumbnailCache(@NonNull ThumbnailCache cache) {
+        mThumbnailCache = cache;
+    }
+
+    private static final class Tile {
+        private final String mKey;
+        private final Bitmap mBitmap;
+
+        Tile(@NonNull String key, @NonNull Bitmap bitmap) {
+            mKey = key;
+            mBitmap = bitmap;
+        }
     }
 }
@@ -0,0 +1,226 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CopyPipelineTest {
+
+    private static final int SOURCE_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private FileInputStream mSource;
+
+    @Before
+    public void setUp() throws IOException {
+        File file = mFolder.newFile("source.bin");
+        byte[] bytes = new byte[SOURCE_SIZE];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        mSource = new FileInputStream(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mSource.close();
+    }
+
+    @Test(timeout = 10000)
+    public void copy_keepsOrderAndChunkEnds() throws IOException {
+        CopyPipeline pipeline = new CopyPipeline(mSource.getChannel());
+        try {
+            pipeline.start(new CopyPipeline.Source() {
+                @Override
+                public void produce(@NonNull CopyPipeline pipeline) throws IOException {
+                    // two chunks in the first range, one more in the second
+                    pipeline.endChunkAt(100000);
+                    pipeline.endChunkAt(300000);
+                    pipeline.read(1000, 300000);
+                    pipeline.endChunkAt(300010);
+                    pipeline.read(5, 10);
+                }
+            });
+            long expected = 1000;
+            int bytes = 0;
+            int blocks = 0;
+            List<Integer> chunkEnds = new ArrayList<>();
+            CopyPipeline.Block block;
+            while ((block = pipeline.take()) != null) {
+                for (int i = 0; i < block.getChunkEndCount(); i++) {
+                    chunkEnds.add(bytes + block.getChunkEnd(i));
+                }
+                ByteBuffer buffer = block.getBuffer();
+                while (buffer.hasRemaining()) {
+                    if (bytes == 300000) {
+                        expected = 5;
+                    }
+                    assertEquals((byte) expected++, buffer.get());
+                    bytes++;
+                }
+                blocks++;
+                pipeline.recycle(block);
+            }
+            assertEquals(300010, bytes);
+            // the ranges share the blocks, which are not cut at chunk ends
+            assertEquals(2, blocks);
+            assertEquals(Arrays.asList(100000, 300000, 300010), chunkEnds);
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void readerFailure_reachesWriter() throws IOException {
+        CopyPipeline pipeline = new CopyPipeline(mSource.getChannel());
+        try {
+            pipeline.start(new CopyPipeline.Source() {
+                @Override
+                public void produce(@NonNull CopyPipeline pipeline) throws IOException {
+                    pipeline.read(0, 1000);
+                    throw new IndexOutOfBoundsException("no such chunk");
+                }
+            });
+            drain(pipeline);
+            fail("The writer did not see the failure of the reader");
+        } catch (IndexOutOfBoundsException e) {
+            assertEquals("no such chunk", e.getMessage());
+        } finally {
+            pipeline.close();
+        }
+
+        pipeline = new CopyPipeline(mSource.getChannel());
+        try {
+            pipeline.start(new CopyPipeline.Source() {
+                @Override
+                public void produce(@NonNull CopyPipeline pipeline) throws IOException {
+                    pipeline.read(SOURCE_SIZE - 10, 20);
+                }
+            });
+            drain(pipeline);
+            fail("Reading past the end of the source did not fail");
+        } catch (EOFException e) {
+            // expected
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void close_stopsBlockedReader() throws IOException {
+        CopyPipeline pipeline = new CopyPipeline(mSource.getChannel());
+        pipeline.start(new CopyPipeline.Source() {
+            @Override
+            public void produce(@NonNull CopyPipeline pipeline) throws IOException {
+                // more than the ring holds, the reader waits for the writer
+                while (true) {
+                    pipeline.read(0, SOURCE_SIZE);
+                }
+            }
+        });
+        CopyPipeline.Block block = pipeline.take();
+        assertTrue(block.getBuffer().hasRemaining());
+        pipeline.recycle(block);
+        pipeline.close();
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentPipelines_reuseTheirBuffers() throws IOException {
+        CopyPipeline first = new CopyPipeline(mSource.getChannel());
+        CopyPipeline second = new CopyPipeline(mSource.getChannel());
+        ByteBuffer firstBuffer = firstBuffer(first);
+        ByteBuffer secondBuffer = firstBuffer(second);
+        assertNotSame(firstBuffer, secondBuffer);
+        first.close();
+        second.close();
+
+        // both sets are kept, two new pipelines at once allocate nothing
+        CopyPipeline third = new CopyPipeline(mSource.getChannel());
+        CopyPipeline fourth = new CopyPipeline(mSource.getChannel());
+        ByteBuffer thirdBuffer = firstBuffer(third);
+        ByteBuffer fourthBuffer = firstBuffer(fourth);
+        third.close();
+        fourth.close();
+        assertTrue(thirdBuffer == firstBuffer || thirdBuffer == secondBuffer);
+        assertTrue(fourthBuffer == firstBuffer || fourthBuffer == secondBuffer);
+        assertNotSame(thirdBuffer, fourthBuffer);
+    }
+
+    private static void drain(@NonNull CopyPipeline pipeline) throws IOException {
+        CopyPipeline.Block block;
+        while ((block = pipeline.take()) != null) {
+            pipeline.recycle(block);
+        }
+    }
+
+    /**
+     * @return the buffer of the first block the pipeline fills
+     */
+    @NonNull
+    private static ByteBuffer firstBuffer(@NonNull CopyPipeline pipeline) throws IOException {
+        pipeline.start(new CopyPipeline.Source() {
+            @Override
+            public void produce(@NonNull CopyPipeline pipeline) throws IOException {
+                pipeline.read(0, 10);
+            }
+        });
+        CopyPipeline.Block block = pipeline.take();
+        ByteBuffer buffer = block.getBuffer();
+        pipeline.recycle(block);
+        assertNull(pipeline.take());
+        return buffer;
+    }
+}
@@ -0,0 +1,909 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes MP4 files made up for tests and benchmarks, without an encoder: the sample
+ * tables are valid, the samples are a byte pattern that tells which track and sample
+ * they belong to.
+ * <p>
+ * The same specification and seed always give the same file. The movie box is written
+ * after the media data, and chunks of all the tracks are interleaved in time order.
+ * Sparse fixtures skip writing the samples, so that files of several gigabytes take
+ * no time and, on most file systems, no space.
+ * <p>
+ * Fragmented fixtures have an empty movie box followed by a moof and an mdat per
+ * fragment, optionally indexed by a sidx.
+ */
+public final class Mp4Fixture {
+
+    private static final int MOVIE_TIMESCALE = 1000;
+
+    /**
+     * What a track of a fixture holds.
+     */
+    public static final class TrackSpec {
+        private final String mHandler;
+        private final long mTimescale;
+        private final int mSampleCount;
+        private final int mSampleDuration;
+        private int mGopLength;
+        private int mMinSize = 1000;
+        private int mMaxSize = 1000;
+        private int mKeyFrameSize;
+        private boolean mCompositionOffsets;
+        private long mEmptyEditMs = -1;
+        private long mEditMediaTime;
+        private boolean mSampleGroups;
+
+        private TrackSpec(@NonNull String handler, long timescale, int sampleCount, int sampleDuration) {
+            mHandler = handler;
+            mTimescale = timescale;
+            mSampleCount = sampleCount;
+            mSampleDuration = sampleDuration;
+        }
+
+        /**
+         * A video track with a sync sample every <code>gopLength</code> frames.
+         */
+        @NonNull
+        public static TrackSpec video(long timescale, int frameCount, int frameDuration, int gopLength) {
+            TrackSpec spec = new TrackSpec(TrackIndex.HANDLER_VIDEO, timescale, frameCount, frameDuration);
+            spec.mGopLength = gopLength;
+            return spec;
+        }
+
+        /**
+         * An audio track without sync sample table, every frame lasting
+         * <code>frameDuration</code>, for example 1024 for AAC.
+         */
+        @NonNull
+        public static TrackSpec audio(long timescale, int frameCount, int frameDuration) {
+            return new TrackSpec(TrackIndex.HANDLER_SOUND, timescale, frameCount, frameDuration);
+        }
+
+        /**
+         * 10s of 30fps video with a 1s GOP, key frames of 20KB and other frames of 2 to 6KB.
+         */
+        @NonNull
+        public static TrackSpec clipVideo() {
+            return video(30000, 300, 1000, 30).sizes(2000, 6000).keyFrameSize(20000);
+        }
+
+        /**
+         * 10s of 48kHz AAC-like audio, frames of 300 to 400 bytes.
+         */
+        @NonNull
+        public static TrackSpec clipAudio() {
+            return audio(48000, 469, 1024).sizes(300, 400);
+        }
+
+        /**
+         * Sample sizes are uniformly distributed between <code>min</code> and <code>max</code>.
+         * When they are equal, the track uses a constant sample size.
+         */
+        @NonNull
+        public TrackSpec sizes(int min, int max) {
+            mMinSize = min;
+            mMaxSize = max;
+            return this;
+        }
+
+        /**
+         * Sync samples of video tracks get this size instead of the distribution.
+         */
+        @NonNull
+        public TrackSpec keyFrameSize(int size) {
+            mKeyFrameSize = size;
+            return this;
+        }
+
+        /**
+         * Adds a composition offset table, as if the track had B frames.
+         */
+        @NonNull
+        public TrackSpec compositionOffsets() {
+            mCompositionOffsets = true;
+            return this;
+        }
+
+        /**
+         * Adds an edit list: an empty edit of <code>emptyDurationMs</code> if positive, then
+         * the media from <code>mediaTime</code>, in the track timescale, to its end.
+         */
+        @NonNull
+        public TrackSpec editList(long emptyDurationMs, long mediaTime) {
+            mEmptyEditMs = emptyDurationMs;
+            mEditMediaTime = mediaTime;
+            return this;
+        }
+
+        /**
+         * Adds the dependency flags of every sample, see {@link #getSampleDependency(int)},
+         * and a roll sample group, see {@link #getSampleGroup(int)}.
+         */
+        @NonNull
+        public TrackSpec sampleGroups() {
+            mSampleGroups = true;
+            return this;
+        }
+    }
+
+    private final List<TrackSpec> mSpecs = new ArrayList<>();
+    private final long mSeed;
+    private long mChunkDurationUs = 500000;
+    private boolean mSparse;
+    private long mFragmentDurationUs;
+    private boolean mSegmentIndex;
+
+    // layout, once written
+    private int[][] mSizes;
+    private long mLength;
+
+    public Mp4Fixture(long seed) {
+        mSeed = seed;
+    }
+
+    /**
+     * The clip most tests trim: {@link TrackSpec#clipVideo()} and {@link TrackSpec#clipAudio()}.
+     */
+    @NonNull
+    public static Mp4Fixture clip() {
+        return new Mp4Fixture(42).addTrack(TrackSpec.clipVideo()).addTrack(TrackSpec.clipAudio());
+    }
+
+    @NonNull
+    public Mp4Fixture addTrack(@NonNull TrackSpec spec) {
+        mSpecs.add(spec);
+        return this;
+    }
+
+    @NonNull
+    public Mp4Fixture chunkDurationMs(long durationMs) {
+        mChunkDurationUs = durationMs * 1000;
+        return this;
+    }
+
+    /**
+     * Writes a fragmented file, with fragments of <code>durationMs</code>.
+     */
+    @NonNull
+    public Mp4Fixture fragmentDurationMs(long durationMs) {
+        mFragmentDurationUs = durationMs * 1000;
+        return this;
+    }
+
+    /**
+     * Adds a sidx with a reference to every fragment of a fragmented file.
+     */
+    @NonNull
+    public Mp4Fixture segmentIndex(boolean segmentIndex) {
+        mSegmentIndex = segmentIndex;
+        return this;
+    }
+
+    @NonNull
+    public Mp4Fixture sparse(boolean sparse) {
+        mSparse = sparse;
+        return this;
+    }
+
+    /**
+     * Spreads <code>totalBytes</code> of samples over the tracks in proportion to their
+     * current average sample size, keeping the spread of every distribution.
+     */
+    @NonNull
+    public Mp4Fixture totalSize(long totalBytes) {
+        long current = 0;
+        for (TrackSpec spec : mSpecs) {
+            current += (long) spec.mSampleCount * (spec.mMinSize + spec.mMaxSize) / 2;
+        }
+        double scale = (double) totalBytes / current;
+        for (TrackSpec spec : mSpecs) {
+            spec.mMinSize = (int) Math.max(1, spec.mMinSize * scale);
+            spec.mMaxSize = (int) Math.max(1, spec.mMaxSize * scale);
+            spec.mKeyFrameSize = (int) (spec.mKeyFrameSize * scale);
+        }
+        return this;
+    }
+
+    public int getTrackCount() {
+        return mSpecs.size();
+    }
+
+    public int getSampleCount(int track) {
+        return mSpecs.get(track).mSampleCount;
+    }
+
+    public int getSampleSize(int track, int sample) {
+        return mSizes[track][sample];
+    }
+
+    public boolean isSyncSample(int track, int sample) {
+        int gop = mSpecs.get(track).mGopLength;
+        return gop <= 0 || sample % gop == 0;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    public boolean isSparse() {
+        return mSparse;
+    }
+
+    /**
+     * @return the byte at <code>position</code> of a sample of a fixture that is not sparse
+     */
+    public static byte getSampleByte(int track, int sample, int position) {
+        return (byte) (track * 131 + sample * 31 + position);
+    }
+
+    /**
+     * @return the sdtp byte of <code>sample</code> in tracks with sample groups
+     */
+    public static byte getSampleDependency(int sample) {
+        return (byte) (sample * 37);
+    }
+
+    /**
+     * @return the roll group of <code>sample</code> in tracks with sample groups, 0 for
+     * none. Samples are grouped by runs of 10
+     */
+    public static int getSampleGroup(int sample) {
+        return (sample / 10) % 2 == 0 ? 1 : 0;
+    }
+
+    /**
+     * Writes the fixture to <code>file</code>, replacing it.
+     */
+    @NonNull
+    public Mp4Fixture write(@NonNull File file) throws IOException {
+        int trackCount = mSpecs.size();
+        Random random = new Random(mSeed);
+        mSizes = new int[trackCount][];
+        long dataSize = 0;
+        for (int t = 0; t < trackCount; t++) {
+            TrackSpec spec = mSpecs.get(t);
+            mSizes[t] = new int[spec.mSampleCount];
+            for (int i = 0; i < spec.mSampleCount; i++) {
+                int size = spec.mMinSize + (spec.mMaxSize > spec.mMinSize ? random.nextInt(spec.mMaxSize - spec.mMinSize + 1) : 0);
+                if (spec.mKeyFrameSize > 0 && spec.mGopLength > 0 && i % spec.mGopLength == 0) {
+                    size = spec.mKeyFrameSize;
+                }
+                mSizes[t][i] = size;
+                dataSize += size;
+            }
+        }
+
+        byte[] ftyp = {0, 0, 0, 24, 'f', 't', 'y', 'p', 'i', 's', 'o', 'm', 0, 0, 2, 0, 'i', 's', 'o', 'm', 'm', 'p', '4', '1'};
+        if (mFragmentDurationUs > 0) {
+            writeFragments(file, ftyp);
+            return this;
+        }
+
+        // chunks of every track cut on a grid of mChunkDurationUs, in time order
+        List<int[]> chunks = new ArrayList<>();
+        int[] next = new int[trackCount];
+        while (true) {
+            int track = -1;
+            long trackTimeUs = Long.MAX_VALUE;
+            for (int t = 0; t < trackCount; t++) {
+                if (next[t] < mSpecs.get(t).mSampleCount) {
+                    long timeUs = toUs(mSpecs.get(t), next[t]);
+                    if (timeUs < trackTimeUs) {
+                        track = t;
+                        trackTimeUs = timeUs;
+                    }
+                }
+            }
+            if (track < 0) {
+                break;
+            }
+            TrackSpec spec = mSpecs.get(track);
+            long limitUs = (trackTimeUs / mChunkDurationUs + 1) * mChunkDurationUs;
+            int first = next[track];
+            int end = first + 1;
+            while (end < spec.mSampleCount && toUs(spec, end) < limitUs) {
+                end++;
+            }
+            chunks.add(new int[]{track, first, end - first});
+            next[track] = end;
+        }
+
+        boolean largeData = dataSize + 8 > 0xFFFFFFFFL;
+        long dataOffset = ftyp.length + (largeData ? 16 : 8);
+
+        List<List<Long>> chunkOffsets = new ArrayList<>();
+        List<IntList> chunkSampleCounts = new ArrayList<>();
+        for (int t = 0; t < trackCount; t++) {
+            chunkOffsets.add(new ArrayList<Long>());
+            chunkSampleCounts.add(new IntList());
+        }
+        long offset = dataOffset;
+        for (int[] chunk : chunks) {
+            chunkOffsets.get(chunk[0]).add(offset);
+            chunkSampleCounts.get(chunk[0]).add(chunk[2]);
+            for (int i = chunk[1]; i < chunk[1] + chunk[2]; i++) {
+                offset += mSizes[chunk[0]][i];
+            }
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(ftyp);
+            if (largeData) {
+                raf.writeInt(1);
+                raf.writeBytes("mdat");
+                raf.writeLong(16 + dataSize);
+            } else {
+                raf.writeInt((int) (8 + dataSize));
+                raf.writeBytes("mdat");
+            }
+            if (!mSparse) {
+                writeSamples(raf, chunks);
+            }
+            raf.seek(dataOffset + dataSize);
+            raf.write(buildMoov(chunkOffsets, chunkSampleCounts, false));
+            mLength = raf.getFilePointer();
+            raf.setLength(mLength);
+        } finally {
+            raf.close();
+        }
+        return this;
+    }
+
+    private void writeFragments(@NonNull File file, @NonNull byte[] ftyp) throws IOException {
+        int trackCount = mSpecs.size();
+        List<byte[]> moofs = new ArrayList<>();
+        List<List<int[]>> fragmentChunks = new ArrayList<>();
+        LongList fragmentSizes = new LongList();
+        LongList fragmentDurations = new LongList();
+        int[] next = new int[trackCount];
+        for (long startUs = 0; ; startUs += mFragmentDurationUs) {
+            List<int[]> chunks = new ArrayList<>();
+            long dataSize = 0;
+            for (int t = 0; t < trackCount; t++) {
+                TrackSpec spec = mSpecs.get(t);
+                int end = next[t];
+                while (end < spec.mSampleCount && toUs(spec, end) < startUs + mFragmentDurationUs) {
+                    end++;
+                }
+                if (end > next[t]) {
+                    chunks.add(new int[]{t, next[t], end - next[t]});
+                    for (int i = next[t]; i < end; i++) {
+                        dataSize += mSizes[t][i];
+                    }
+                }
+                if (t == 0) {
+                    fragmentDurations.add((long) (end - next[t]) * spec.mSampleDuration);
+                }
+                next[t] = end;
+            }
+            if (chunks.isEmpty()) {
+                break;
+            }
+            byte[] moof = buildMoof(moofs.size() + 1, chunks, 0);
+            moof = buildMoof(moofs.size() + 1, chunks, moof.length + 8);
+            moofs.add(moof);
+            fragmentChunks.add(chunks);
+            fragmentSizes.add(moof.length + 8 + dataSize);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(ftyp);
+            raf.write(buildMoov(null, null, true));
+            if (mSegmentIndex) {
+                Boxes sidx = new Boxes();
+                sidx.begin("sidx");
+                sidx.putInt(0);
+                sidx.putInt(1);
+                sidx.putInt((int) mSpecs.get(0).mTimescale);
+                sidx.putInt(0);
+                sidx.putInt(0);
+                sidx.putShort(0);
+                sidx.putShort(moofs.size());
+                for (int i = 0; i < moofs.size(); i++) {
+                    sidx.putInt((int) fragmentSizes.get(i));
+                    sidx.putInt((int) fragmentDurations.get(i));
+                    sidx.putInt(0x90000000);
+                }
+                sidx.end();
+                raf.write(sidx.toByteArray());
+            }
+            for (int i = 0; i < moofs.size(); i++) {
+                raf.write(moofs.get(i));
+                raf.writeInt((int) (fragmentSizes.get(i) - moofs.get(i).length));
+                raf.writeBytes("mdat");
+                writeSamples(raf, fragmentChunks.get(i));
+            }
+            mLength = raf.getFilePointer();
+            raf.setLength(mLength);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param dataOffset where the samples start, from the start of the moof
+     */
+    @NonNull
+    private byte[] buildMoof(int sequence, @NonNull List<int[]> chunks, long dataOffset) {
+        Boxes out = new Boxes();
+        out.begin("moof");
+        out.begin("mfhd");
+        out.putInt(0);
+        out.putInt(sequence);
+        out.end();
+        for (int[] chunk : chunks) {
+            TrackSpec spec = mSpecs.get(chunk[0]);
+            out.begin("traf");
+            out.begin("tfhd");
+            // default-base-is-moof
+            out.putInt(0x020000);
+            out.putInt(chunk[0] + 1);
+            out.end();
+            out.begin("tfdt");
+            out.putInt(0x01000000);
+            out.putLong((long) chunk[1] * spec.mSampleDuration);
+            out.end();
+            out.begin("trun");
+            out.putInt(spec.mCompositionOffsets ? 0x000F01 : 0x000701);
+            out.putInt(chunk[2]);
+            out.putInt((int) dataOffset);
+            for (int i = chunk[1]; i < chunk[1] + chunk[2]; i++) {
+                out.putInt(spec.mSampleDuration);
+                out.putInt(mSizes[chunk[0]][i]);
+                out.putInt(isSyncSample(chunk[0], i) ? 0x02000000 : 0x01010000);
+                if (spec.mCompositionOffsets) {
+                    out.putInt(getCompositionOffset(spec, i));
+                }
+                dataOffset += mSizes[chunk[0]][i];
+            }
+            out.end();
+            out.end();
+        }
+        out.end();
+        return out.toByteArray();
+    }
+
+    private void writeSamples(@NonNull RandomAccessFile raf, @NonNull List<int[]> chunks) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int buffered = 0;
+        for (int[] chunk : chunks) {
+            int track = chunk[0];
+            for (int sample = chunk[1]; sample < chunk[1] + chunk[2]; sample++) {
+                int size = mSizes[track][sample];
+                for (int position = 0; position < size; position++) {
+                    if (buffered == buffer.length) {
+                        raf.write(buffer, 0, buffered);
+                        buffered = 0;
+                    }
+                    buffer[buffered++] = getSampleByte(track, sample, position);
+                }
+            }
+        }
+        raf.write(buffer, 0, buffered);
+    }
+
+    private static long toUs(@NonNull TrackSpec spec, int sample) {
+        return (long) sample * spec.mSampleDuration * 1000000L / spec.mTimescale;
+    }
+
+    @NonNull
+    private byte[] buildMoov(List<List<Long>> chunkOffsets, List<IntList> chunkSampleCounts, boolean fragmented) {
+        Boxes out = new Boxes();
+        long movieDuration = 0;
+        for (TrackSpec spec : mSpecs) {
+            movieDuration = Math.max(movieDuration, (long) spec.mSampleCount * spec.mSampleDuration * MOVIE_TIMESCALE / spec.mTimescale);
+        }
+
+        out.begin("moov");
+        out.begin("mvhd");
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(MOVIE_TIMESCALE);
+        out.putInt((int) movieDuration);
+        out.putInt(0x00010000);
+        out.putShort(0x0100);
+        out.zeros(10);
+        putMatrix(out);
+        out.zeros(24);
+        out.putInt(mSpecs.size() + 1);
+        out.end();
+
+        for (int t = 0; t < mSpecs.size(); t++) {
+            TrackSpec spec = mSpecs.get(t);
+            boolean video = TrackIndex.HANDLER_VIDEO.equals(spec.mHandler);
+            long duration = (long) spec.mSampleCount * spec.mSampleDuration;
+
+            out.begin("trak");
+            out.begin("tkhd");
+            out.putInt(7);
+            out.putInt(0);
+            out.putInt(0);
+            out.putInt(t + 1);
+            out.putInt(0);
+            out.putInt((int) (duration * MOVIE_TIMESCALE / spec.mTimescale));
+            out.zeros(8);
+            out.putShort(0);
+            out.putShort(0);
+            out.putShort(video ? 0 : 0x0100);
+            out.putShort(0);
+            putMatrix(out);
+            out.putInt(video ? 320 << 16 : 0);
+            out.putInt(video ? 240 << 16 : 0);
+            out.end();
+
+            if (spec.mEmptyEditMs >= 0) {
+                out.begin("edts");
+                out.begin("elst");
+                out.putInt(0);
+                out.putInt(spec.mEmptyEditMs > 0 ? 2 : 1);
+                if (spec.mEmptyEditMs > 0) {
+                    out.putInt((int) (spec.mEmptyEditMs * MOVIE_TIMESCALE / 1000));
+                    out.putInt(-1);
+                    out.putInt(0x00010000);
+                }
+                out.putInt((int) ((duration - spec.mEditMediaTime) * MOVIE_TIMESCALE / spec.mTimescale));
+                out.putInt((int) spec.mEditMediaTime);
+                out.putInt(0x00010000);
+                out.end();
+                out.end();
+            }
+
+            out.begin("mdia");
+            out.begin("mdhd");
+            out.putInt(0);
+            out.putInt(0);
+            out.putInt(0);
+            out.putInt((int) spec.mTimescale);
+            out.putInt((int) Math.min(duration, 0xFFFFFFFFL));
+            out.putShort(0x55C4);
+            out.putShort(0);
+            out.end();
+            out.begin("hdlr");
+            out.putInt(0);
+            out.putInt(0);
+            out.putType(spec.mHandler);
+            out.zeros(12);
+            out.putType(video ? "Vide" : "Soun");
+            out.zeros(1);
+            out.end();
+
+            out.begin("minf");
+            if (video) {
+                out.begin("vmhd");
+                out.putInt(1);
+                out.zeros(8);
+                out.end();
+            } else {
+                out.begin("smhd");
+                out.putInt(0);
+                out.zeros(4);
+                out.end();
+            }
+            out.begin("dinf");
+            out.begin("dref");
+            out.putInt(0);
+            out.putInt(1);
+            out.putInt(12);
+            out.putType("url ");
+            out.putInt(1);
+            out.end();
+            out.end();
+
+            out.begin("stbl");
+            putSampleDescription(out, spec, video);
+            if (fragmented) {
+                // the samples are in the fragments
+                putEmptySampleTables(out);
+                out.end();
+                out.end();
+                out.end();
+                out.end();
+                continue;
+            }
+            putTimes(out, spec);
+            if (spec.mGopLength > 0) {
+                out.begin("stss");
+                out.putInt(0);
+                int count = (spec.mSampleCount + spec.mGopLength - 1) / spec.mGopLength;
+                out.putInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.putInt(i * spec.mGopLength + 1);
+                }
+                out.end();
+            }
+            putChunks(out, chunkSampleCounts.get(t), chunkOffsets.get(t));
+            out.begin("stsz");
+            out.putInt(0);
+            if (spec.mMinSize == spec.mMaxSize && spec.mKeyFrameSize == 0) {
+                out.putInt(spec.mMinSize);
+                out.putInt(spec.mSampleCount);
+            } else {
+                out.putInt(0);
+                out.putInt(spec.mSampleCount);
+                for (int size : mSizes[t]) {
+                    out.putInt(size);
+                }
+            }
+            out.end();
+            if (spec.mSampleGroups) {
+                putSampleGroups(out, spec);
+            }
+            out.end();
+            out.end();
+            out.end();
+            out.end();
+        }
+        if (fragmented) {
+            out.begin("mvex");
+            for (int t = 0; t < mSpecs.size(); t++) {
+                out.begin("trex");
+                out.putInt(0);
+                out.putInt(t + 1);
+                out.putInt(1);
+                out.putInt(0);
+                out.putInt(0);
+                out.putInt(0);
+                out.end();
+            }
+            out.end();
+        }
+        out.end();
+        return out.toByteArray();
+    }
+
+    private static void putEmptySampleTables(@NonNull Boxes out) {
+        String[] types = {"stts", "stsc", "stco"};
+        for (String type : types) {
+            out.begin(type);
+            out.putInt(0);
+            out.putInt(0);
+            out.end();
+        }
+        out.begin("stsz");
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.end();
+    }
+
+    private static void putSampleDescription(@NonNull Boxes out, @NonNull TrackSpec spec, boolean video) {
+        out.begin("stsd");
+        out.putInt(0);
+        out.putInt(1);
+        if (video) {
+            out.begin("avc1");
+            out.zeros(6);
+            out.putShort(1);
+            out.zeros(16);
+            out.putShort(320);
+            out.putShort(240);
+            out.putInt(0x00480000);
+            out.putInt(0x00480000);
+            out.putInt(0);
+            out.putShort(1);
+            out.zeros(32);
+            out.putShort(0x0018);
+            out.putShort(0xFFFF);
+            out.end();
+        } else {
+            out.begin("mp4a");
+            out.zeros(6);
+            out.putShort(1);
+            out.zeros(8);
+            out.putShort(2);
+            out.putShort(16);
+            out.zeros(4);
+            out.putInt((int) Math.min(spec.mTimescale, 0xFFFF) << 16);
+            out.end();
+        }
+        out.end();
+    }
+
+    private static void putSampleGroups(@NonNull Boxes out, @NonNull TrackSpec spec) {
+        out.begin("sdtp");
+        out.putInt(0);
+        for (int i = 0; i < spec.mSampleCount; i++) {
+            out.put(getSampleDependency(i));
+        }
+        out.end();
+
+        out.begin("sbgp");
+        out.putInt(0);
+        out.putType("roll");
+        int runs = (spec.mSampleCount + 9) / 10;
+        out.putInt(runs);
+        for (int run = 0; run < runs; run++) {
+            out.putInt(Math.min(10, spec.mSampleCount - run * 10));
+            out.putInt(getSampleGroup(run * 10));
+        }
+        out.end();
+
+        // version 1 with a default length, one group rolling back one sample
+        out.begin("sgpd");
+        out.putInt(0x01000000);
+        out.putType("roll");
+        out.putInt(2);
+        out.putInt(1);
+        out.putShort(-1);
+        out.end();
+    }
+
+    private static void putTimes(@NonNull Boxes out, @NonNull TrackSpec spec) {
+        out.begin("stts");
+        out.putInt(0);
+        out.putInt(1);
+        out.putInt(spec.mSampleCount);
+        out.putInt(spec.mSampleDuration);
+        out.end();
+
+        if (spec.mCompositionOffsets) {
+            // I P B B P B B ..., each P shown after the two B frames that follow it
+            out.begin("ctts");
+            out.putInt(0);
+            out.putInt(spec.mSampleCount);
+            for (int i = 0; i < spec.mSampleCount; i++) {
+                out.putInt(1);
+                out.putInt(getCompositionOffset(spec, i));
+            }
+            out.end();
+        }
+    }
+
+    private static int getCompositionOffset(@NonNull TrackSpec spec, int sample) {
+        int position = spec.mGopLength > 0 ? sample % spec.mGopLength : sample;
+        if (position == 0) {
+            return spec.mSampleDuration;
+        } else if (position % 3 == 1) {
+            return 3 * spec.mSampleDuration;
+        } else {
+            return 0;
+        }
+    }
+
+    private static void putChunks(@NonNull Boxes out, @NonNull IntList sampleCounts, @NonNull List<Long> offsets) {
+        IntList entries = new IntList();
+        for (int chunk = 0; chunk < sampleCounts.size(); chunk++) {
+            if (chunk == 0 || sampleCounts.get(chunk) != sampleCounts.get(chunk - 1)) {
+                entries.add(chunk + 1);
+                entries.add(sampleCounts.get(chunk));
+            }
+        }
+        out.begin("stsc");
+        out.putInt(0);
+        out.putInt(entries.size() / 2);
+        for (int i = 0; i < entries.size(); i += 2) {
+            out.putInt(entries.get(i));
+            out.putInt(entries.get(i + 1));
+            out.putInt(1);
+        }
+        out.end();
+
+        boolean wide = !offsets.isEmpty() && offsets.get(offsets.size() - 1) > 0xFFFFFFFFL;
+        out.begin(wide ? "co64" : "stco");
+        out.putInt(0);
+        out.putInt(offsets.size());
+        for (long offset : offsets) {
+            if (wide) {
+                out.putLong(offset);
+            } else {
+                out.putInt((int) offset);
+            }
+        }
+        out.end();
+    }
+
+    private static void putMatrix(@NonNull Boxes out) {
+        int[] matrix = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+        for (int value : matrix) {
+            out.putInt(value);
+        }
+    }
+
+    /**
+     * Growable big-endian buffer of nested boxes, their sizes filled in when they end.
+     */
+    private static final class Boxes {
+        private byte[] mBytes = new byte[4096];
+        private int mSize;
+        private final IntList mOpen = new IntList();
+        private int mOpenCount;
+
+        void begin(@NonNull String type) {
+            if (mOpenCount == mOpen.size()) {
+                mOpen.add(mSize);
+            } else {
+                mOpen.set(mOpenCount, mSize);
+            }
+            mOpenCount++;
+            putInt(0);
+            putType(type);
+        }
+
+        void end() {
+            int start = mOpen.get(--mOpenCount);
+            int size = mSize - start;
+            mBytes[start] = (byte) (size >>> 24);
+            mBytes[start + 1] = (byte) (size >>> 16);
+            mBytes[start + 2] = (byte) (size >>> 8);
+            mBytes[start + 3] = (byte) size;
+        }
+
+        void putType(@NonNull String type) {
+            for (int i = 0; i < type.length(); i++) {
+                put(type.charAt(i));
+            }
+        }
+
+        void putShort(int value) {
+            put(value >>> 8);
+            put(value);
+        }
+
+        void putInt(int value) {
+            putShort(value >>> 16);
+            putShort(value);
+        }
+
+        void putLong(long value) {
+            putInt((int) (value >>> 32));
+            putInt((int) value);
+        }
+
+        void zeros(int count) {
+            for (int i = 0; i < count; i++) {
+                put(0);
+            }
+        }
+
+        void put(int value) {
+            if (mSize == mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, mBytes.length * 2);
+            }
+            mBytes[mSize++] = (byte) value;
+        }
+
+        @NonNull
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBytes, mSize);
+        }
+    }
+}
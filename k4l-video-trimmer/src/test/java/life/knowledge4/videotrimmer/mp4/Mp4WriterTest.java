@@ -0,0 +1,556 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import life.knowledge4.videotrimmer.interfaces.Tracer;
+import life.knowledge4.videotrimmer.utils.Tracing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class Mp4WriterTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        Tracing.setTracer(null);
+    }
+
+    private static Mp4Fixture createFixture() {
+        // the clip, with B frames
+        return new Mp4Fixture(42)
+                .addTrack(Mp4Fixture.TrackSpec.clipVideo().compositionOffsets())
+                .addTrack(Mp4Fixture.TrackSpec.clipAudio());
+    }
+
+    @Test
+    public void fixture_isIndexed() throws Exception {
+        File file = mFolder.newFile("fixture.mp4");
+        Mp4Fixture fixture = createFixture().write(file);
+        Mp4Index index = Mp4Index.parse(file);
+
+        assertEquals(file.length(), fixture.getLength());
+        assertEquals(2, index.getTracks().size());
+        assertEquals(TrackIndex.HANDLER_VIDEO, index.getTracks().get(0).getHandlerType());
+        assertEquals(10000000, index.getTracks().get(0).getDurationUs());
+        for (int t = 0; t < fixture.getTrackCount(); t++) {
+            SampleTable table = index.getTracks().get(t).getSampleTable();
+            assertEquals(fixture.getSampleCount(t), table.getSampleCount());
+            assertEquals(t == 0, table.hasSyncSamples());
+            for (int i = 0; i < table.getSampleCount(); i += 7) {
+                assertEquals(fixture.getSampleSize(t, i), table.getSize(i));
+                assertEquals(fixture.isSyncSample(t, i), table.isSyncSample(i));
+                assertSample(file, table.getSampleOffset(i), t, i, table.getSize(i));
+            }
+        }
+    }
+
+    @Test
+    public void trim_keepsSamplesFromSyncSample() throws Exception {
+        assertTrim(0, 20);
+    }
+
+    @Test
+    public void trim_interleavedKeepsSamples() throws Exception {
+        assertTrim(200000, 30);
+    }
+
+    @Test
+    public void trim_largeSparseSource() throws Exception {
+        // 12 minutes of video above 4GB, so the source needs co64 and a 64 bit mdat
+        File file = mFolder.newFile("large.mp4");
+        new Mp4Fixture(7)
+                .addTrack(Mp4Fixture.TrackSpec.video(30000, 21600, 1000, 60).sizes(200000, 250000))
+                .sparse(true)
+                .write(file);
+        assertTrue(file.length() > 0xFFFFFFFFL);
+
+        Mp4Index index = Mp4Index.parse(file);
+        TrimPlan plan = TrimPlan.create(index, 600000, 605000);
+        File out = mFolder.newFile("large-trim.mp4");
+        new Mp4Writer(plan).write(out);
+
+        Mp4Index result = Mp4Index.parse(out);
+        assertEquals(plan.getEndSample(0) - plan.getStartSample(0), result.getTracks().get(0).getSampleTable().getSampleCount());
+        assertEquals(plan.getDataSize(), result.getBox("mdat").getContentSize());
+    }
+
+    @Test
+    public void trim_insufficientSpaceFailsBeforeWriting() throws Exception {
+        // a sparse source whose trim needs 1GB more than the folder has
+        long usableBytes = mFolder.getRoot().getUsableSpace();
+        assumeTrue(usableBytes < 1L << 40);
+        File file = mFolder.newFile("huge.mp4");
+        new Mp4Fixture(5)
+                .addTrack(Mp4Fixture.TrackSpec.video(30000, 2000, 1000, 1).sizes(1000, 1000))
+                .totalSize(usableBytes + (1L << 30))
+                .sparse(true)
+                .write(file);
+
+        Mp4Index index = Mp4Index.parse(file);
+        TrimPlan plan = TrimPlan.create(index, 0, index.getTracks().get(0).getDurationUs() / 1000);
+        assertTrue(plan.getDataSize() > usableBytes);
+        File out = new File(mFolder.getRoot(), "huge-trim.mp4");
+        Mp4Writer writer = new Mp4Writer(plan);
+        try {
+            writer.write(out);
+            fail("Trim of " + plan.getDataSize() + " bytes into " + usableBytes + " usable bytes");
+        } catch (InsufficientSpaceException e) {
+            assertTrue(e.getRequiredBytes() > e.getUsableBytes());
+        }
+        assertFalse(out.exists());
+        assertEquals(0, writer.getMetrics().getBytesWritten());
+    }
+
+    @Test
+    public void trim_severalSyncSampleTracks() throws Exception {
+        // two angles with key frames every second, and a third one every 1.5s
+        File file = mFolder.newFile("angles.mp4");
+        new Mp4Fixture(3)
+                .addTrack(Mp4Fixture.TrackSpec.video(30000, 300, 1000, 30).sizes(2000, 6000))
+                .addTrack(Mp4Fixture.TrackSpec.video(90000, 300, 3000, 30).sizes(1000, 3000))
+                .addTrack(Mp4Fixture.TrackSpec.video(30000, 300, 1000, 45).sizes(1000, 3000))
+                .addTrack(Mp4Fixture.TrackSpec.clipAudio())
+                .write(file);
+        Mp4Index index = Mp4Index.parse(file);
+
+        TrimPlan plan = TrimPlan.create(index, 3700, 6200);
+        // the last second where all three tracks have a key frame
+        assertEquals(3000000, plan.getStartUs());
+        // the next key frame of the track with the fewest of them
+        assertEquals(7500000, plan.getEndUs());
+        for (int t = 0; t < 3; t++) {
+            assertTrue(index.getTracks().get(t).getSampleTable().isSyncSample(plan.getStartSample(t)));
+        }
+
+        CutPointResolver cutPoints = new CutPointResolver(index);
+        cutPoints.resolve(4600000, 6200000);
+        assertEquals(2, cutPoints.getReferenceTrack());
+        assertTrue(cutPoints.isAligned());
+        // the reference key frame at 4.5s is not one of the others, 3s is
+        assertEquals(3000000, cutPoints.getStartUs());
+
+        // no common key frame within reach: the reference cut wins, other tracks start earlier
+        new Mp4Fixture(3)
+                .addTrack(Mp4Fixture.TrackSpec.video(30000, 900, 1000, 30).sizes(1000, 2000))
+                .addTrack(Mp4Fixture.TrackSpec.video(30000, 900, 1001, 31).sizes(1000, 2000))
+                .write(file);
+        index = Mp4Index.parse(file);
+        cutPoints = new CutPointResolver(index);
+        cutPoints.resolve(25000000, 27000000);
+        assertFalse(cutPoints.isAligned());
+        plan = TrimPlan.create(index, 25000, 27000);
+        for (int t = 0; t < 2; t++) {
+            SampleTable table = index.getTracks().get(t).getSampleTable();
+            assertTrue(table.isSyncSample(plan.getStartSample(t)));
+            assertTrue(index.getTracks().get(t).toUs(table.getDecodingTime(plan.getStartSample(t))) <= plan.getStartUs());
+        }
+        File out = mFolder.newFile("angles-trim.mp4");
+        new Mp4Writer(plan).write(out);
+        assertEquals(2, Mp4Index.parse(out).getTracks().size());
+    }
+
+    @Test
+    public void trim_fragmentedSource() throws Exception {
+        File flat = mFolder.newFile("flat.mp4");
+        createFixture().write(flat);
+        TrimPlan expected = TrimPlan.create(Mp4Index.parse(flat), 2500, 6200);
+
+        boolean[] segmentIndexes = {false, true};
+        for (boolean segmentIndex : segmentIndexes) {
+            // 400ms fragments, so that most do not start with a key frame
+            File file = mFolder.newFile("fragmented-" + segmentIndex + ".mp4");
+            createFixture().fragmentDurationMs(400).segmentIndex(segmentIndex).write(file);
+            Mp4Index index = Mp4Index.parse(file);
+            assertTrue(index.isFragmented());
+            assertEquals(25, index.getFragmentCount());
+
+            TrimPlan plan = TrimPlan.create(index, 2500, 6200);
+            assertEquals(expected.getStartUs(), plan.getStartUs());
+            assertEquals(expected.getEndUs(), plan.getEndUs());
+            // only the fragments around the range were read
+            assertTrue(plan.getIndex().getTracks().get(0).getSampleTable().getSampleCount() < 200);
+
+            File out = mFolder.newFile("fragmented-trim-" + segmentIndex + ".mp4");
+            new Mp4Writer(plan).write(out);
+            Mp4Index result = Mp4Index.parse(out);
+            assertFalse(result.isFragmented());
+            for (int t = 0; t < 2; t++) {
+                SampleTable table = result.getTracks().get(t).getSampleTable();
+                int start = expected.getStartSample(t);
+                assertEquals(expected.getEndSample(t) - start, table.getSampleCount());
+                for (int i = 0; i < table.getSampleCount(); i++) {
+                    assertEquals(expected.getIndex().getTracks().get(t).getSampleTable().isSyncSample(start + i), table.isSyncSample(i));
+                    assertSample(out, table.getSampleOffset(i), t, start + i, table.getSize(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void index_syncSampleTimes() throws Exception {
+        File file = mFolder.newFile("source.mp4");
+        createFixture().write(file);
+        TrackIndex video = Mp4Index.parse(file).getTracks().get(0);
+        long[] times = video.getSyncSampleTimesUs();
+        assertEquals(10, times.length);
+        long offsetUs = video.toUs(video.getSampleTable().getCompositionOffset(0));
+        for (int i = 0; i < times.length; i++) {
+            assertEquals(i * 1000000L + offsetUs, times[i]);
+        }
+        assertNull(Mp4Index.parse(file).getTracks().get(1).getSyncSampleTimesUs());
+    }
+
+    @Test
+    public void trim_growingSource() throws Exception {
+        File complete = mFolder.newFile("complete.mp4");
+        createFixture().fragmentDurationMs(400).write(complete);
+        Mp4Index completeIndex = Mp4Index.parse(complete);
+        byte[] bytes = new byte[(int) complete.length()];
+        RandomAccessFile raf = new RandomAccessFile(complete, "r");
+        try {
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+
+        // recording stopped in the middle of a fragment
+        File file = mFolder.newFile("recording.mp4");
+        RandomAccessFile recording = new RandomAccessFile(file, "rw");
+        try {
+            recording.write(bytes, 0, bytes.length / 2);
+            Mp4Index index = Mp4Index.follow(file);
+            int fragments = index.getFragmentCount();
+            assertTrue(fragments > 0 && fragments < 25);
+            long nextStartUs = completeIndex.getFragmentIndex().getFragmentStartUs(fragments);
+            assertTrue(index.getFragmentsEndUs() >= nextStartUs);
+            assertTrue(index.getFragmentsEndUs() < nextStartUs + 100000);
+            assertTrue(index.refresh() == index);
+
+            long endMs = index.getFragmentsEndUs() / 1000 - 1500;
+            TrimPlan plan = TrimPlan.create(index, endMs - 2000, endMs);
+            TrimPlan expected = TrimPlan.create(completeIndex, endMs - 2000, endMs);
+            assertEquals(expected.getStartUs(), plan.getStartUs());
+            assertEquals(expected.getEndUs(), plan.getEndUs());
+
+            recording.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+            Mp4Index refreshed = index.refresh();
+            assertEquals(25, refreshed.getFragmentCount());
+            assertEquals(completeIndex.getFragmentsEndUs(), refreshed.getFragmentsEndUs());
+            assertEquals(completeIndex.getBoxes().size(), refreshed.getBoxes().size());
+            plan = TrimPlan.create(refreshed, 2500, 9000);
+            expected = TrimPlan.create(completeIndex, 2500, 9000);
+            assertEquals(expected.getStartUs(), plan.getStartUs());
+            assertEquals(expected.getEndUs(), plan.getEndUs());
+            assertEquals(expected.getDataSize(), plan.getDataSize());
+        } finally {
+            recording.close();
+        }
+    }
+
+    @Test
+    public void trim_verifiedDigestMatchesOutput() throws Exception {
+        File file = mFolder.newFile("source.mp4");
+        createFixture().write(file);
+        TrimPlan plan = TrimPlan.create(Mp4Index.parse(file), 2500, 6200, 500000);
+
+        String[] algorithms = {TrimOptions.DIGEST_CRC32, TrimOptions.DIGEST_SHA256};
+        for (String algorithm : algorithms) {
+            File out = mFolder.newFile("trim-" + algorithm + ".mp4");
+            Mp4Writer writer = new Mp4Writer(plan);
+            writer.setVerify(algorithm);
+            writer.write(out);
+
+            OutputDigest expected = OutputDigest.create(algorithm);
+            byte[] bytes = readBytes(out);
+            expected.update(bytes, 0, bytes.length);
+            assertEquals(algorithm, writer.getMetrics().getDigestAlgorithm());
+            assertEquals(expected.getValue(), writer.getMetrics().getDigest());
+        }
+    }
+
+    @Test
+    public void digest_matchesTheVerifiedWrite() throws Exception {
+        File file = mFolder.newFile("source.mp4");
+        createFixture().write(file);
+        File out = mFolder.newFile("trim.mp4");
+        Mp4Writer writer = new Mp4Writer(TrimPlan.create(Mp4Index.parse(file), 2500, 6200));
+        writer.setVerify(TrimOptions.DIGEST_SHA256);
+        writer.write(out);
+
+        TrimMetrics metrics = Mp4Writer.digest(out, TrimOptions.DIGEST_SHA256);
+        assertEquals(writer.getMetrics().getDigest(), metrics.getDigest());
+        assertEquals(out.length(), metrics.getBytesRead());
+        assertEquals(0, metrics.getBytesWritten());
+        assertNull(Mp4Writer.digest(out, null).getDigest());
+    }
+
+    @Test
+    public void trim_resumesAfterCheckpoint() throws Exception {
+        // 32MB of samples, so that the copy passes several checkpoints
+        File file = mFolder.newFile("source.mp4");
+        createFixture().totalSize(32 * 1024 * 1024).write(file);
+        TrimPlan plan = TrimPlan.create(Mp4Index.parse(file), 0, 10000);
+        File expected = mFolder.newFile("expected.mp4");
+        Mp4Writer plain = new Mp4Writer(plan);
+        plain.write(expected);
+
+        File out = new File(mFolder.getRoot(), "resumed.mp4");
+        File journal = new File(mFolder.getRoot(), "resumed.journal");
+        // the journal checkpoints between chunks without splitting the reads at them
+        Mp4Writer journaled = new Mp4Writer(plan);
+        journaled.setJournal(journal);
+        journaled.write(out);
+        assertFalse(journal.exists());
+        assertEquals(plain.getMetrics().getReadCount(), journaled.getMetrics().getReadCount());
+        assertTrue(Arrays.equals(readBytes(expected), readBytes(out)));
+        assertTrue(out.delete());
+
+        Tracing.setTracer(new Tracer() {
+            @Override
+            public void beginSection(String name) {
+            }
+
+            @Override
+            public void endSection() {
+            }
+
+            @Override
+            public void setCounter(String name, long value) {
+                // interrupt the copy half way, well after the first checkpoint
+                if (Tracing.COUNTER_BYTES_WRITTEN.equals(name) && value > 16 * 1024 * 1024) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Mp4Writer interrupted = new Mp4Writer(plan);
+        interrupted.setJournal(journal);
+        try {
+            interrupted.write(out);
+            fail("The trim was not interrupted");
+        } catch (InterruptedIOException e) {
+            // expected
+        } finally {
+            Thread.interrupted();
+            Tracing.setTracer(null);
+        }
+        TrimJournal checkpoint = TrimJournal.read(journal);
+        assertNotNull(checkpoint);
+        assertTrue(checkpoint.getCompletedChunks() > 0);
+
+        Mp4Writer resumed = new Mp4Writer(plan);
+        resumed.setJournal(journal);
+        resumed.write(out);
+        assertFalse(journal.exists());
+        // only what followed the checkpoint was written again
+        assertEquals(out.length() - checkpoint.getCompletedPosition(), resumed.getMetrics().getBytesWritten());
+        assertTrue(Arrays.equals(readBytes(expected), readBytes(out)));
+    }
+
+    @Test
+    public void trim_rewritesEditListsAndKeepsSampleGroups() throws Exception {
+        // B frames shown one frame late, audio delayed by 100ms with 1024 samples of priming
+        File file = mFolder.newFile("edits.mp4");
+        new Mp4Fixture(42)
+                .addTrack(Mp4Fixture.TrackSpec.clipVideo().compositionOffsets().editList(0, 1000).sampleGroups())
+                .addTrack(Mp4Fixture.TrackSpec.clipAudio().editList(100, 1024))
+                .write(file);
+        Mp4Index index = Mp4Index.parse(file);
+
+        TrimPlan plan = TrimPlan.create(index, 2500, 6200);
+        File out = mFolder.newFile("trim.mp4");
+        new Mp4Writer(plan).write(out);
+        Mp4Index result = Mp4Index.parse(out);
+
+        // the media time offsets and the delay of the audio are kept
+        SampleTable video = result.getTracks().get(0).getSampleTable();
+        long[] videoEdits = readBox(out, result.getTracks().get(0).getTrak().getDescendant("edts", "elst"));
+        assertArrayEquals(new long[]{video.getDuration() / 30, 1000, 0x00010000}, videoEdits);
+        SampleTable audio = result.getTracks().get(1).getSampleTable();
+        long[] audioEdits = readBox(out, result.getTracks().get(1).getTrak().getDescendant("edts", "elst"));
+        assertArrayEquals(new long[]{100, -1, 0x00010000, (audio.getDuration() - 1024) / 48, 1024, 0x00010000}, audioEdits);
+
+        // the output shows every track as much earlier as the source, up to the audio
+        // frame the cut falls in
+        long videoShiftUs = getPresentationTimeUs(file, index.getTracks().get(0), plan.getStartSample(0))
+                - getPresentationTimeUs(out, result.getTracks().get(0), 0);
+        long audioShiftUs = getPresentationTimeUs(file, index.getTracks().get(1), plan.getStartSample(1))
+                - getPresentationTimeUs(out, result.getTracks().get(1), 0);
+        assertTrue(videoShiftUs + " " + audioShiftUs, Math.abs(videoShiftUs - audioShiftUs) < 1024 * 1000000L / 48000);
+
+        // the dependency flags and groups follow the kept samples
+        int start = plan.getStartSample(0);
+        Mp4Box stbl = result.getTracks().get(0).getTrak().getDescendant("mdia", "minf", "stbl");
+        long[] sdtp = readBox(out, stbl.getChild("sdtp"));
+        assertEquals(video.getSampleCount(), sdtp.length);
+        long[] sbgp = readBox(out, stbl.getChild("sbgp"));
+        int sample = 0;
+        for (int i = 0; i < sbgp.length; i += 2) {
+            for (int j = 0; j < sbgp[i]; j++, sample++) {
+                assertEquals(Mp4Fixture.getSampleDependency(start + sample), (byte) sdtp[sample]);
+                assertEquals(Mp4Fixture.getSampleGroup(start + sample), sbgp[i + 1]);
+            }
+        }
+        assertEquals(video.getSampleCount(), sample);
+        assertNotNull(stbl.getChild("sgpd"));
+
+        // from the start, the empty edit still delays the audio
+        plan = TrimPlan.create(index, 0, 3000);
+        File head = mFolder.newFile("head.mp4");
+        new Mp4Writer(plan).write(head);
+        result = Mp4Index.parse(head);
+        audio = result.getTracks().get(1).getSampleTable();
+        audioEdits = readBox(head, result.getTracks().get(1).getTrak().getDescendant("edts", "elst"));
+        assertArrayEquals(new long[]{100, -1, 0x00010000, (audio.getDuration() - 1024) / 48, 1024, 0x00010000}, audioEdits);
+    }
+
+    /**
+     * @return when <code>sample</code> of <code>track</code> is shown, after its edit list
+     */
+    private static long getPresentationTimeUs(File file, TrackIndex track, int sample) throws IOException {
+        long[] edits = readBox(file, track.getTrak().getDescendant("edts", "elst"));
+        long emptyMs = 0;
+        int media = 0;
+        while (edits[media + 1] == -1) {
+            emptyMs += edits[media];
+            media += 3;
+        }
+        SampleTable table = track.getSampleTable();
+        long time = table.getDecodingTime(sample) + (table.hasCompositionOffsets() ? table.getCompositionOffset(sample) : 0);
+        return emptyMs * 1000 + track.toUs(time - edits[media + 1]);
+    }
+
+    /**
+     * @return the entries of a version 0 elst, the bytes of a sdtp or the runs of a sbgp
+     * of <code>file</code>
+     */
+    private static long[] readBox(File file, Mp4Box box) throws IOException {
+        assertNotNull(box);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(box.getContentOffset());
+            assertEquals(0, raf.readInt());
+            long[] values;
+            if ("sdtp".equals(box.getType())) {
+                values = new long[(int) box.getContentSize() - 4];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = raf.readByte();
+                }
+                return values;
+            }
+            if ("sbgp".equals(box.getType())) {
+                raf.readInt();
+                values = new long[raf.readInt() * 2];
+            } else {
+                values = new long[raf.readInt() * 3];
+            }
+            for (int i = 0; i < values.length; i++) {
+                values[i] = raf.readInt();
+            }
+            return values;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        return bytes;
+    }
+
+    private void assertTrim(long interleaveUs, int expectedVideoSamplesMin) throws Exception {
+        File file = mFolder.newFile("source.mp4");
+        Mp4Fixture fixture = createFixture().write(file);
+        Mp4Index index = Mp4Index.parse(file);
+
+        TrimPlan plan = TrimPlan.create(index, 2500, 6200, interleaveUs);
+        assertEquals(2000000, plan.getStartUs());
+        assertEquals(7000000, plan.getEndUs());
+
+        File out = mFolder.newFile("trim.mp4");
+        Mp4Writer writer = new Mp4Writer(plan);
+        writer.write(out);
+        assertEquals(out.length(), writer.getMetrics().getBytesWritten());
+
+        Mp4Index result = Mp4Index.parse(out);
+        assertNotNull(result.getBox("mdat"));
+        for (int t = 0; t < fixture.getTrackCount(); t++) {
+            SampleTable source = index.getTracks().get(t).getSampleTable();
+            SampleTable table = result.getTracks().get(t).getSampleTable();
+            int start = plan.getStartSample(t);
+            assertEquals(plan.getEndSample(t) - start, table.getSampleCount());
+            assertTrue(table.getSampleCount() >= expectedVideoSamplesMin);
+            for (int i = 0; i < table.getSampleCount(); i++) {
+                assertEquals(source.getSize(start + i), table.getSize(i));
+                assertEquals(source.getDuration(start + i), table.getDuration(i));
+                assertEquals(source.isSyncSample(start + i), table.isSyncSample(i));
+                if (source.hasCompositionOffsets()) {
+                    assertEquals(source.getCompositionOffset(start + i), table.getCompositionOffset(i));
+                }
+                assertSample(out, table.getSampleOffset(i), t, start + i, table.getSize(i));
+            }
+        }
+    }
+
+    private static void assertSample(File file, long offset, int track, int sample, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset);
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        for (int i = 0; i < size; i++) {
+            if (bytes[i] != Mp4Fixture.getSampleByte(track, sample, i)) {
+                throw new AssertionError("Sample " + sample + " of track " + track + " differs at byte " + i);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleTableTest {
+
+    @Test
+    public void packedArray_roundTrip() throws Exception {
+        for (int bits = 1; bits <= 64; bits++) {
+            PackedArray array = new PackedArray(100, bits);
+            long mask = bits == 64 ? -1L : (1L << bits) - 1;
+            for (int i = 0; i < array.size(); i++) {
+                array.set(i, (i * 0x9E3779B97F4A7C15L) & mask);
+            }
+            for (int i = 0; i < array.size(); i++) {
+                assertEquals((i * 0x9E3779B97F4A7C15L) & mask, array.get(i));
+            }
+        }
+        assertEquals(11, PackedArray.bitsRequired(2047));
+        assertEquals(12, PackedArray.bitsRequired(2048));
+    }
+
+    @Test
+    public void sampleTable_timesAndChunks() throws Exception {
+        // 10 samples: 4 of 100 units then 6 of 50 units, sync at 0 and 6,
+        // chunks of 3, 3, then 2 samples per chunk
+        PackedArray sizes = new PackedArray(10, PackedArray.bitsRequired(1000));
+        for (int i = 0; i < 10; i++) {
+            sizes.set(i, 100 + i);
+        }
+        PackedArray chunkOffsets = new PackedArray(4, PackedArray.bitsRequired(5000));
+        chunkOffsets.set(0, 1000);
+        chunkOffsets.set(1, 2000);
+        chunkOffsets.set(2, 3000);
+        chunkOffsets.set(3, 4000);
+        SampleTable table = new SampleTable(10,
+                new int[]{4, 6}, new int[]{100, 50},
+                null, null,
+                0, sizes,
+                new int[]{0, 6},
+                new int[]{0, 2}, new int[]{3, 2}, new int[]{1, 1},
+                chunkOffsets);
+
+        assertEquals(700, table.getDuration());
+        assertEquals(0, table.getDecodingTime(0));
+        assertEquals(400, table.getDecodingTime(4));
+        assertEquals(450, table.getDecodingTime(5));
+        assertEquals(700, table.getDecodingTime(10));
+        assertEquals(50, table.getDuration(9));
+
+        assertEquals(-1, table.getSampleAtTime(-1));
+        assertEquals(0, table.getSampleAtTime(99));
+        assertEquals(3, table.getSampleAtTime(399));
+        assertEquals(4, table.getSampleAtTime(449));
+        assertEquals(5, table.getSampleAtTime(450));
+        assertEquals(9, table.getSampleAtTime(10000));
+
+        assertTrue(table.isSyncSample(6));
+        assertFalse(table.isSyncSample(5));
+
+        assertEquals(0, table.getChunkForSample(2));
+        assertEquals(1, table.getChunkForSample(3));
+        assertEquals(2, table.getChunkForSample(6));
+        assertEquals(3, table.getChunkForSample(9));
+        assertEquals(8, table.getChunkFirstSample(3));
+        assertEquals(2, table.getChunkSampleCount(3));
+        assertEquals(2000 + 103 + 104, table.getSampleOffset(5));
+        assertEquals(105, table.getSize(5));
+    }
+}
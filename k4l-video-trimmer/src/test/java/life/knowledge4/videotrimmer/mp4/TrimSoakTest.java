@@ -0,0 +1,177 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs many randomized trims one after another and fails if the heap, direct buffers,
+ * file descriptors or threads grow past their limits. The number of trims, the limits
+ * and the seed are system properties, so that a long soak can be run with for example
+ * <code>-Dk4l.soak.trims=5000</code>.
+ */
+public class TrimSoakTest {
+
+    private static final int TRIMS = Integer.getInteger("k4l.soak.trims", 1000);
+    private static final long SEED = Long.getLong("k4l.soak.seed", 1);
+    private static final long MAX_HEAP_GROWTH = Long.getLong("k4l.soak.maxHeapGrowthBytes", 16 * 1024 * 1024);
+    private static final long MAX_DIRECT_GROWTH = Long.getLong("k4l.soak.maxDirectGrowthBytes", 2 * 1024 * 1024);
+    private static final int MAX_FD_GROWTH = Integer.getInteger("k4l.soak.maxFdGrowth", 4);
+    private static final int MAX_THREAD_GROWTH = Integer.getInteger("k4l.soak.maxThreadGrowth", 2);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static final class Usage {
+        final long mHeapBytes;
+        final long mDirectBytes;
+        final int mFileDescriptors;
+        final int mThreads;
+
+        Usage() {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+                System.runFinalization();
+            }
+            Runtime runtime = Runtime.getRuntime();
+            mHeapBytes = runtime.totalMemory() - runtime.freeMemory();
+            long direct = 0;
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if ("direct".equals(pool.getName())) {
+                    direct = pool.getMemoryUsed();
+                }
+            }
+            mDirectBytes = direct;
+            String[] fds = new File("/proc/self/fd").list();
+            mFileDescriptors = fds != null ? fds.length : -1;
+            mThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        }
+
+        @Override
+        public String toString() {
+            return "heap=" + mHeapBytes + " direct=" + mDirectBytes + " fds=" + mFileDescriptors + " threads=" + mThreads;
+        }
+    }
+
+    @Test
+    public void soak_resourcesStayBounded() throws Exception {
+        Random random = new Random(SEED);
+        List<Mp4Index> inputs = new ArrayList<>();
+        inputs.add(createInput(new Mp4Fixture(SEED)
+                .addTrack(Mp4Fixture.TrackSpec.video(30000, 600, 1000, 30).sizes(1000, 4000).keyFrameSize(12000))
+                .addTrack(Mp4Fixture.TrackSpec.audio(48000, 938, 1024).sizes(200, 300)),
+                "two-tracks.mp4"));
+        inputs.add(createInput(new Mp4Fixture(SEED + 1)
+                .addTrack(Mp4Fixture.TrackSpec.video(90000, 1500, 3000, 60).sizes(500, 2000).compositionOffsets())
+                .chunkDurationMs(1000),
+                "video-only.mp4"));
+        inputs.add(createInput(new Mp4Fixture(SEED + 2)
+                .addTrack(Mp4Fixture.TrackSpec.video(24000, 480, 1001, 24).sizes(800, 3000).compositionOffsets())
+                .addTrack(Mp4Fixture.TrackSpec.audio(44100, 862, 1024).sizes(256, 256))
+                .addTrack(Mp4Fixture.TrackSpec.audio(22050, 431, 1024).sizes(100, 180))
+                .chunkDurationMs(250),
+                "three-tracks.mp4"));
+
+        File out = new File(mFolder.getRoot(), "out.mp4");
+        File journal = new File(mFolder.getRoot(), "out.journal");
+        int warmUp = Math.max(1, TRIMS / 10);
+        Usage before = null;
+        int interrupted = 0;
+        for (int i = 0; i < TRIMS; i++) {
+            if (i == warmUp) {
+                before = new Usage();
+            }
+            if (!trim(random, inputs.get(random.nextInt(inputs.size())), out, journal)) {
+                interrupted++;
+            }
+        }
+        Usage after = new Usage();
+        if (before == null) {
+            before = after;
+        }
+
+        String usage = "before " + before + ", after " + after;
+        assertTrue(interrupted > 0);
+        assertTrue(usage, after.mHeapBytes - before.mHeapBytes <= MAX_HEAP_GROWTH);
+        assertTrue(usage, after.mDirectBytes - before.mDirectBytes <= MAX_DIRECT_GROWTH);
+        assertTrue(usage, after.mFileDescriptors - before.mFileDescriptors <= MAX_FD_GROWTH);
+        assertTrue(usage, after.mThreads - before.mThreads <= MAX_THREAD_GROWTH);
+    }
+
+    private Mp4Index createInput(Mp4Fixture fixture, String name) throws IOException {
+        File file = mFolder.newFile(name);
+        fixture.write(file);
+        return Mp4Index.parse(file);
+    }
+
+    /**
+     * @return false if the trim was interrupted on purpose
+     */
+    private static boolean trim(Random random, Mp4Index index, File out, File journal) throws IOException {
+        long durationMs = index.getTracks().get(0).getDurationUs() / 1000;
+        long startMs = (long) (random.nextDouble() * durationMs);
+        long endMs = startMs + 1 + (long) (random.nextDouble() * (durationMs - startMs));
+        long interleaveUs = random.nextBoolean() ? 0 : 100000 + random.nextInt(900000);
+        TrimPlan plan = TrimPlan.create(index, startMs, endMs, interleaveUs);
+
+        Mp4Writer writer = new Mp4Writer(plan);
+        if (random.nextInt(4) == 0) {
+            writer.setJournal(journal);
+        }
+        if (random.nextInt(10) == 0) {
+            Thread.currentThread().interrupt();
+            try {
+                writer.write(out);
+            } catch (IOException e) {
+                // the interrupt closes the source channel or aborts the copy
+                return false;
+            } finally {
+                Thread.interrupted();
+            }
+        } else {
+            writer.write(out);
+        }
+
+        assertFalse(journal.exists());
+        Mp4Index result = Mp4Index.parse(out);
+        for (int t = 0; t < index.getTracks().size(); t++) {
+            assertEquals(plan.getEndSample(t) - plan.getStartSample(t), result.getTracks().get(t).getSampleTable().getSampleCount());
+        }
+        return true;
+    }
+}
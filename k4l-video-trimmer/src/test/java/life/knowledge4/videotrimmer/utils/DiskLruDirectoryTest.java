@@ -0,0 +1,161 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DiskLruDirectoryTest {
+
+    private static final int FILE_SIZE = 1000;
+    private static final String EXTENSION = ".bin";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static File put(DiskLruDirectory lru, String key) throws Exception {
+        File partial = lru.getPartialFile(key + "-1");
+        FileOutputStream out = new FileOutputStream(partial);
+        try {
+            out.write(new byte[FILE_SIZE]);
+        } finally {
+            out.close();
+        }
+        return lru.put(key, partial);
+    }
+
+    @Test
+    public void hash_isAFileName() {
+        String key = DiskLruDirectory.hash("/sdcard/video.mp4:1000:2000");
+        assertEquals(40, key.length());
+        assertTrue(key.matches("[0-9a-f]+"));
+        assertEquals(key, DiskLruDirectory.hash("/sdcard/video.mp4:1000:2000"));
+        assertNotEquals(key, DiskLruDirectory.hash("/sdcard/video.mp4:1000:2001"));
+    }
+
+    @Test
+    public void put_movesThePartialFileIn() throws Exception {
+        File directory = mFolder.newFolder("cache");
+        DiskLruDirectory lru = new DiskLruDirectory(directory, EXTENSION, 10 * FILE_SIZE);
+        File partial = lru.getPartialFile("a-1");
+        assertTrue(partial.getName().startsWith("."));
+
+        File file = put(lru, "a");
+        assertEquals(new File(directory, "a" + EXTENSION), file);
+        assertFalse(partial.exists());
+        assertEquals(file, lru.get("a"));
+        assertNull(lru.get("b"));
+
+        lru.remove("a");
+        assertNull(lru.get("a"));
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() throws Exception {
+        DiskLruDirectory lru = new DiskLruDirectory(mFolder.newFolder("cache"), EXTENSION, 2 * FILE_SIZE + FILE_SIZE / 2);
+        File a = put(lru, "a");
+        File b = put(lru, "b");
+        assertNotNull(lru.get("a"));
+
+        put(lru, "c");
+        assertNull(lru.get("b"));
+        assertFalse(b.exists());
+        assertTrue(a.exists());
+        assertNotNull(lru.get("c"));
+    }
+
+    @Test
+    public void put_keepsAFileOverTheLimit() throws Exception {
+        DiskLruDirectory lru = new DiskLruDirectory(mFolder.newFolder("cache"), EXTENSION, FILE_SIZE / 2);
+        put(lru, "a");
+        assertNotNull(lru.get("a"));
+        put(lru, "b");
+        assertNull(lru.get("a"));
+        assertNotNull(lru.get("b"));
+    }
+
+    @Test
+    public void acquire_pinsTheFileUntilReleased() throws Exception {
+        DiskLruDirectory lru = new DiskLruDirectory(mFolder.newFolder("cache"), EXTENSION, FILE_SIZE + FILE_SIZE / 2);
+        File a = put(lru, "a");
+        assertEquals(a, lru.acquire("a"));
+
+        // a is being read, the directory goes over its limit meanwhile
+        put(lru, "b");
+        assertTrue(a.exists());
+        assertNotNull(lru.get("b"));
+
+        lru.release("a");
+        assertFalse(a.exists());
+        assertNull(lru.get("a"));
+        assertNotNull(lru.get("b"));
+    }
+
+    @Test
+    public void load_ordersByModificationTimeAndDeletesPartials() throws Exception {
+        File directory = mFolder.newFolder("cache");
+        DiskLruDirectory lru = new DiskLruDirectory(directory, EXTENSION, 10 * FILE_SIZE);
+        File a = put(lru, "a");
+        File b = put(lru, "b");
+        File partial = lru.getPartialFile("c-1");
+        assertTrue(partial.createNewFile());
+        // a was used last by the previous process
+        long now = System.currentTimeMillis();
+        assertTrue(b.setLastModified(now - 60000));
+        assertTrue(a.setLastModified(now - 30000));
+
+        DiskLruDirectory reopened = new DiskLruDirectory(directory, EXTENSION, 2 * FILE_SIZE);
+        put(reopened, "d");
+        assertFalse(partial.exists());
+        assertNull(reopened.get("b"));
+        assertNotNull(reopened.get("a"));
+        assertNotNull(reopened.get("d"));
+    }
+
+    @Test
+    public void open_sharesOneInstancePerDirectory() throws Exception {
+        File directory = mFolder.newFolder("cache");
+        DiskLruDirectory lru = DiskLruDirectory.open(directory, EXTENSION, 10 * FILE_SIZE);
+        put(lru, "a");
+        put(lru, "b");
+
+        // the new limit applies to the files already there
+        assertSame(lru, DiskLruDirectory.open(new File(directory.getPath()), EXTENSION, FILE_SIZE));
+        assertNull(lru.get("a"));
+        assertNotNull(lru.get("b"));
+        assertEquals(1, directory.list().length);
+    }
+}
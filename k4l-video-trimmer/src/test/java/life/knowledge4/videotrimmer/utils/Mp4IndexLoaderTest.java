@@ -0,0 +1,183 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.utils;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import life.knowledge4.videotrimmer.interfaces.Tracer;
+import life.knowledge4.videotrimmer.mp4.Mp4Fixture;
+import life.knowledge4.videotrimmer.mp4.Mp4Index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Mp4IndexLoaderTest {
+
+    private static final long TIMEOUT_MS = 10000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        Tracing.setTracer(null);
+    }
+
+    private File createSource() throws Exception {
+        File file = mFolder.newFile("source.mp4");
+        Mp4Fixture.clip().write(file);
+        return file;
+    }
+
+    /**
+     * Counts the parses, and holds those of background threads until released.
+     */
+    private static final class BlockingTracer implements Tracer {
+
+        final AtomicInteger mParses = new AtomicInteger();
+        final CountDownLatch mBlocked = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        private final Thread mTestThread = Thread.currentThread();
+
+        @Override
+        public void beginSection(String name) {
+            if (!Tracing.SECTION_PARSE.equals(name)) {
+                return;
+            }
+            mParses.incrementAndGet();
+            if (Thread.currentThread() == mTestThread) {
+                return;
+            }
+            mBlocked.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                // let the parse see the cancel
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void endSection() {
+        }
+
+        @Override
+        public void setCounter(String name, long value) {
+        }
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue("Not waiting: " + thread.getState(), System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void get_waitsForPreload() throws Exception {
+        final Mp4IndexLoader loader = new Mp4IndexLoader(createSource());
+        BlockingTracer tracer = new BlockingTracer();
+        Tracing.setTracer(tracer);
+
+        loader.preload();
+        assertTrue(tracer.mBlocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        final AtomicReference<Mp4Index> waited = new AtomicReference<>();
+        Thread getter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    waited.set(loader.get());
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        getter.start();
+        awaitWaiting(getter);
+        assertFalse(loader.isLoaded());
+
+        tracer.mRelease.countDown();
+        getter.join(TIMEOUT_MS);
+        assertTrue(loader.isLoaded());
+        assertSame(loader.get(), waited.get());
+        assertEquals(1, tracer.mParses.get());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void cancel_leavesTheBuildToGet() throws Exception {
+        Mp4IndexLoader loader = new Mp4IndexLoader(createSource());
+        BlockingTracer tracer = new BlockingTracer();
+        Tracing.setTracer(tracer);
+
+        loader.preload();
+        assertTrue(tracer.mBlocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        loader.cancel();
+
+        // built on this thread once the cancelled build gave up
+        Mp4Index index = loader.get();
+        assertTrue(loader.isLoaded());
+        assertEquals(2, index.getTracks().size());
+        assertEquals(2, tracer.mParses.get());
+    }
+
+    @Test
+    public void get_keepsTheFailure() throws Exception {
+        File file = mFolder.newFile("broken.mp4");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[]{0, 0, 0, 8, 'f', 'r', 'e', 'e', 0, 0, 0, 8});
+        } finally {
+            out.close();
+        }
+        Mp4IndexLoader loader = new Mp4IndexLoader(file);
+        BlockingTracer tracer = new BlockingTracer();
+        Tracing.setTracer(tracer);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                loader.get();
+                fail("A file without movie box was indexed");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        assertFalse(loader.isLoaded());
+        assertEquals(1, tracer.mParses.get());
+    }
+}
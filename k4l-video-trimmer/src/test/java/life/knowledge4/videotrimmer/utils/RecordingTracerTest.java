@@ -0,0 +1,91 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+
+import life.knowledge4.videotrimmer.interfaces.Tracer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingTracerTest {
+
+    @After
+    public void tearDown() {
+        Tracing.setTracer(null);
+    }
+
+    @Test
+    public void recordingTracer_nestedSectionsAndCounters() throws Exception {
+        RecordingTracer recorder = new RecordingTracer();
+        Tracing.setTracer(recorder);
+        assertSame(recorder, Tracing.getTracer());
+
+        Tracer tracer = Tracing.getTracer();
+        tracer.beginSection(Tracing.SECTION_WRITE);
+        tracer.beginSection(Tracing.SECTION_CUT_POINTS);
+        Thread.sleep(2);
+        tracer.endSection();
+        tracer.setCounter(Tracing.COUNTER_BYTES_WRITTEN, 1024);
+        tracer.endSection();
+
+        List<RecordingTracer.Section> sections = recorder.getSections();
+        assertEquals(2, sections.size());
+        assertEquals(Tracing.SECTION_WRITE, sections.get(0).getName());
+        assertEquals(0, sections.get(0).getDepth());
+        assertEquals(1, sections.get(1).getDepth());
+        assertTrue(recorder.getTotalTimeNs(Tracing.SECTION_CUT_POINTS) >= 2000000);
+        assertTrue(recorder.getTotalTimeNs(Tracing.SECTION_WRITE) >= recorder.getTotalTimeNs(Tracing.SECTION_CUT_POINTS));
+        assertEquals(Long.valueOf(1024), recorder.getCounter(Tracing.COUNTER_BYTES_WRITTEN));
+        assertNull(recorder.getCounter(Tracing.COUNTER_FRAMES));
+    }
+
+    @Test
+    public void recordingTracer_sectionsPerThread() throws Exception {
+        final RecordingTracer recorder = new RecordingTracer();
+        recorder.beginSection(Tracing.SECTION_PROGRESS);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recorder.beginSection(Tracing.SECTION_FRAME);
+                recorder.endSection();
+            }
+        });
+        thread.start();
+        thread.join();
+        recorder.endSection();
+
+        List<RecordingTracer.Section> frames = recorder.getSections(Tracing.SECTION_FRAME);
+        assertEquals(1, frames.size());
+        assertEquals(0, frames.get(0).getDepth());
+        assertTrue(frames.get(0).getDurationNs() >= 0);
+        assertTrue(recorder.getSections(Tracing.SECTION_PROGRESS).get(0).getDurationNs() >= 0);
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.utils;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import life.knowledge4.videotrimmer.interfaces.OnTrimVideoListener;
+import life.knowledge4.videotrimmer.interfaces.Tracer;
+import life.knowledge4.videotrimmer.mp4.Mp4Fixture;
+import life.knowledge4.videotrimmer.mp4.Mp4Index;
+import life.knowledge4.videotrimmer.mp4.Mp4Writer;
+import life.knowledge4.videotrimmer.mp4.TrimOptions;
+import life.knowledge4.videotrimmer.mp4.TrimPlan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpeculativeExporterTest {
+
+    private static final long TIMEOUT_MS = 10000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        Tracing.setTracer(null);
+    }
+
+    private File createSource() throws Exception {
+        File file = mFolder.newFile("source.mp4");
+        Mp4Fixture.clip()
+                .totalSize(16 * 1024 * 1024)
+                .write(file);
+        return file;
+    }
+
+    /**
+     * Counts the results handed out.
+     */
+    private static final class ResultListener implements OnTrimVideoListener {
+
+        final AtomicInteger mResults = new AtomicInteger();
+
+        @Override
+        public void onTrimStarted() {
+        }
+
+        @Override
+        public void getResult(Uri uri) {
+            mResults.incrementAndGet();
+        }
+
+        @Override
+        public void cancelAction() {
+        }
+
+        @Override
+        public void onError(String message) {
+        }
+    }
+
+    /**
+     * Counts down when a write ends, which is when an export is about to be done.
+     */
+    private static final class WriteTracer implements Tracer {
+
+        final CountDownLatch mWritten = new CountDownLatch(1);
+        private final ThreadLocal<ArrayDeque<String>> mSections = new ThreadLocal<ArrayDeque<String>>() {
+            @Override
+            protected ArrayDeque<String> initialValue() {
+                return new ArrayDeque<>();
+            }
+        };
+
+        @Override
+        public void beginSection(String name) {
+            mSections.get().push(name);
+        }
+
+        @Override
+        public void endSection() {
+            if (Tracing.SECTION_WRITE.equals(mSections.get().pop())) {
+                mWritten.countDown();
+            }
+        }
+
+        @Override
+        public void setCounter(String name, long value) {
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("The export was not written", mWritten.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private static byte[] readBytes(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void deliver_handsOutTheLatestExport() throws Exception {
+        File source = createSource();
+        File dst = mFolder.newFolder("dst");
+        String dstPath = dst.getPath() + File.separator;
+        Mp4IndexLoader loader = new Mp4IndexLoader(source);
+        TrimOptions options = new TrimOptions();
+        SpeculativeExporter exporter = new SpeculativeExporter(Long.MAX_VALUE);
+
+        WriteTracer tracer = new WriteTracer();
+        Tracing.setTracer(tracer);
+
+        // the second range replaces the first before it starts
+        exporter.schedule(loader, dstPath, 0, 3000, options, TIMEOUT_MS);
+        exporter.schedule(loader, dstPath, 2500, 6200, options, 0);
+        tracer.await();
+        ResultListener listener = new ResultListener();
+        assertTrue(exporter.deliver(loader, dstPath, 2500, 6200, options, null, listener));
+        assertEquals(1, listener.mResults.get());
+
+        File[] files = dst.listFiles();
+        assertEquals(1, files.length);
+        assertFalse(files[0].getName().startsWith("."));
+        File expected = mFolder.newFile("expected.mp4");
+        new Mp4Writer(TrimPlan.create(loader.get(), 2500, 6200)).write(expected);
+        assertTrue(Arrays.equals(readBytes(expected), readBytes(files[0])));
+    }
+
+    @Test
+    public void deliver_ofAnotherRangeDiscardsTheExport() throws Exception {
+        File source = createSource();
+        File dst = mFolder.newFolder("dst");
+        String dstPath = dst.getPath() + File.separator;
+        Mp4IndexLoader loader = new Mp4IndexLoader(source);
+        TrimOptions options = new TrimOptions();
+        SpeculativeExporter exporter = new SpeculativeExporter(Long.MAX_VALUE);
+
+        WriteTracer tracer = new WriteTracer();
+        Tracing.setTracer(tracer);
+
+        exporter.schedule(loader, dstPath, 2500, 6200, options, 0);
+        tracer.await();
+        ResultListener listener = new ResultListener();
+        assertFalse(exporter.deliver(loader, dstPath, 0, 3000, options, null, listener));
+        assertEquals(0, listener.mResults.get());
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (dst.list().length > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, dst.list().length);
+        assertTrue(exporter.getWastedBytes() > 0);
+    }
+
+    @Test
+    public void schedule_overBudgetWritesNothing() throws Exception {
+        File source = createSource();
+        File dst = mFolder.newFolder("dst");
+        String dstPath = dst.getPath() + File.separator;
+        Mp4IndexLoader loader = new Mp4IndexLoader(source);
+        TrimOptions options = new TrimOptions();
+        long dataSize = TrimPlan.create(loader.get(), 2500, 6200).getDataSize();
+        SpeculativeExporter exporter = new SpeculativeExporter(dataSize - 1);
+        final AtomicInteger writes = new AtomicInteger();
+        Tracing.setTracer(new Tracer() {
+            @Override
+            public void beginSection(String name) {
+                if (Tracing.SECTION_WRITE.equals(name)) {
+                    writes.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void endSection() {
+            }
+
+            @Override
+            public void setCounter(String name, long value) {
+            }
+        });
+
+        exporter.schedule(loader, dstPath, 2500, 6200, options, 0);
+        // the export stops once it knows its size
+        assertTrue(exporter.awaitIdle(TIMEOUT_MS));
+        assertEquals(0, writes.get());
+        assertEquals(0, dst.list().length);
+        assertFalse(exporter.deliver(loader, dstPath, 2500, 6200, options, null, new ResultListener()));
+        assertEquals(0, exporter.getWastedBytes());
+    }
+
+    @Test
+    public void schedule_deletesExportsOfPreviousProcesses() throws Exception {
+        File source = createSource();
+        File dst = mFolder.newFolder("dst");
+        File leftover = new File(dst, ".speculative-1b2c3d-4.mp4");
+        File other = new File(dst, "MP4_20160101_000000.mp4");
+        assertTrue(leftover.createNewFile());
+        assertTrue(other.createNewFile());
+        SpeculativeExporter exporter = new SpeculativeExporter(Long.MAX_VALUE);
+
+        exporter.schedule(new Mp4IndexLoader(source), dst.getPath() + File.separator, 2500, 6200, new TrimOptions(), TIMEOUT_MS);
+        exporter.cancel();
+        assertFalse(leftover.exists());
+        assertTrue(other.exists());
+    }
+
+    @Test
+    public void cancelledExport_chargesWrittenBytes() throws Exception {
+        File source = createSource();
+        File dst = mFolder.newFolder("dst");
+        final SpeculativeExporter exporter = new SpeculativeExporter(Long.MAX_VALUE);
+        final AtomicLong cancelledAt = new AtomicLong();
+        Tracing.setTracer(new Tracer() {
+            @Override
+            public void beginSection(String name) {
+            }
+
+            @Override
+            public void endSection() {
+            }
+
+            @Override
+            public void setCounter(String name, long value) {
+                // cancel on the export thread once the first samples reached the output
+                if (Tracing.COUNTER_BYTES_WRITTEN.equals(name) && cancelledAt.compareAndSet(0, value)) {
+                    exporter.cancel();
+                }
+            }
+        });
+
+        exporter.schedule(new Mp4IndexLoader(source), dst.getPath(), 2500, 6200, new TrimOptions(), 0);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (exporter.getWastedBytes() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        long outputSize = TrimPlan.create(Mp4Index.parse(source), 2500, 6200).getDataSize();
+        assertTrue(cancelledAt.get() > 0);
+        // the bytes written before the cancel, not the preallocated size of the output
+        assertEquals(cancelledAt.get(), exporter.getWastedBytes());
+        assertTrue(exporter.getWastedBytes() < outputSize);
+        assertEquals(0, dst.list().length);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class ThumbnailCacheTest {
+
+    @Test
+    public void getKey_dependsOnSourceTimeAndSize() {
+        String key = ThumbnailCache.getKey("/sdcard/video.mp4:1000:2000", 500000, 96, 96);
+        assertEquals(40, key.length());
+        assertEquals(key, ThumbnailCache.getKey("/sdcard/video.mp4:1000:2000", 500000, 96, 96));
+        assertNotEquals(key, ThumbnailCache.getKey("/sdcard/video.mp4:1000:2001", 500000, 96, 96));
+        assertNotEquals(key, ThumbnailCache.getKey("/sdcard/video.mp4:1000:2000", 533333, 96, 96));
+        assertNotEquals(key, ThumbnailCache.getKey("/sdcard/video.mp4:1000:2000", 500000, 96, 128));
+        assertNotEquals(key, ThumbnailCache.getKey("/sdcard/video.mp4:1000:2000", 500000, 128, 96));
+    }
+}
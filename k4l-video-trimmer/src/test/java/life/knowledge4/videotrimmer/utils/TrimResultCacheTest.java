@@ -0,0 +1,142 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import life.knowledge4.videotrimmer.mp4.Mp4Fixture;
+import life.knowledge4.videotrimmer.mp4.Mp4Index;
+import life.knowledge4.videotrimmer.mp4.TrimMetrics;
+import life.knowledge4.videotrimmer.mp4.TrimOptions;
+import life.knowledge4.videotrimmer.mp4.TrimPlan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TrimResultCacheTest {
+
+    private static final int RESULT_SIZE = 100 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File createResult(String name, int seed) throws Exception {
+        byte[] bytes = new byte[RESULT_SIZE];
+        new Random(seed).nextBytes(bytes);
+        File file = mFolder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] readBytes(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void getKey_dependsOnSyncRangeAndLayout() throws Exception {
+        File source = mFolder.newFile("source.mp4");
+        Mp4Fixture.clip().write(source);
+        Mp4Index index = Mp4Index.parse(source);
+        TrimOptions options = new TrimOptions();
+        String key = TrimResultCache.getKey(TrimPlan.create(index, 2000, 6000), options);
+
+        // the start moves to the same sync sample
+        assertEquals(key, TrimResultCache.getKey(TrimPlan.create(index, 2400, 6000), options));
+        assertNotEquals(key, TrimResultCache.getKey(TrimPlan.create(index, 3000, 6000), options));
+
+        TrimOptions interleaved = new TrimOptions();
+        interleaved.setInterleaveDurationMs(500);
+        assertNotEquals(key, TrimResultCache.getKey(TrimPlan.create(index, 2000, 6000, 500 * 1000), interleaved));
+
+        // verifying does not change the output
+        TrimOptions verified = new TrimOptions();
+        verified.setDigestAlgorithm(TrimOptions.DIGEST_SHA256);
+        assertEquals(key, TrimResultCache.getKey(TrimPlan.create(index, 2000, 6000), verified));
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() throws Exception {
+        TrimResultCache cache = new TrimResultCache(mFolder.newFolder("cache"), 2 * RESULT_SIZE + RESULT_SIZE / 2);
+        File dst = mFolder.newFolder("dst");
+        assertTrue(cache.put("a", createResult("a.mp4", 1)));
+        assertTrue(cache.put("b", createResult("b.mp4", 2)));
+        assertNotNull(cache.get("a", new File(dst, "a.mp4"), null));
+
+        assertTrue(cache.put("c", createResult("c.mp4", 3)));
+        assertNull(cache.get("b", new File(dst, "b.mp4"), null));
+        assertNotNull(cache.get("a", new File(dst, "a.mp4"), null));
+        assertNotNull(cache.get("c", new File(dst, "c.mp4"), null));
+        assertFalse(new File(dst, "b.mp4").exists());
+    }
+
+    @Test
+    public void get_handsOutTheResultWithMetrics() throws Exception {
+        TrimResultCache cache = new TrimResultCache(mFolder.newFolder("cache"), RESULT_SIZE + RESULT_SIZE / 2);
+        File result = createResult("result.mp4", 1);
+        byte[] bytes = readBytes(result);
+        assertTrue(cache.put("result", result));
+        // the result stays with its writer
+        assertTrue(result.isFile());
+
+        File dst = new File(mFolder.newFolder("dst"), "copy.mp4");
+        TrimMetrics metrics = cache.get("result", dst, TrimOptions.DIGEST_CRC32);
+        assertNotNull(metrics);
+        assertEquals(RESULT_SIZE, metrics.getBytesRead());
+        assertEquals(RESULT_SIZE, metrics.getBytesWritten());
+        assertTrue(metrics.getWriteTimeNs() > 0);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        assertEquals(String.format("%08x", crc.getValue()), metrics.getDigest());
+
+        // evicting the kept result leaves the copy alone
+        assertTrue(cache.put("other", createResult("other.mp4", 2)));
+        assertNull(cache.get("result", new File(dst.getParentFile(), "again.mp4"), null));
+        assertTrue(Arrays.equals(bytes, readBytes(dst)));
+    }
+}
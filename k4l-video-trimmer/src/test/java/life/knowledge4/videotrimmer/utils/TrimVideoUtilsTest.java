@@ -0,0 +1,194 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.utils;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import life.knowledge4.videotrimmer.interfaces.OnTrimMetricsListener;
+import life.knowledge4.videotrimmer.interfaces.OnTrimVideoListener;
+import life.knowledge4.videotrimmer.interfaces.Tracer;
+import life.knowledge4.videotrimmer.mp4.Mp4Fixture;
+import life.knowledge4.videotrimmer.mp4.TrimMetrics;
+import life.knowledge4.videotrimmer.mp4.TrimOptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TrimVideoUtilsTest {
+
+    private static final OnTrimVideoListener NO_OP_LISTENER = new OnTrimVideoListener() {
+        @Override
+        public void onTrimStarted() {
+        }
+
+        @Override
+        public void getResult(Uri uri) {
+        }
+
+        @Override
+        public void cancelAction() {
+        }
+
+        @Override
+        public void onError(String message) {
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        Tracing.setTracer(null);
+    }
+
+    private File createSource(long totalBytes) throws Exception {
+        File file = mFolder.newFile("source.mp4");
+        Mp4Fixture.clip()
+                .totalSize(totalBytes)
+                .write(file);
+        return file;
+    }
+
+    @Test
+    public void discardResumableTrims_deletesInterruptedTrims() throws Exception {
+        File source = createSource(32 * 1024 * 1024);
+        File dst = mFolder.newFolder("dst");
+        TrimOptions options = new TrimOptions();
+        options.setResumable(true);
+        Tracing.setTracer(new Tracer() {
+            @Override
+            public void beginSection(String name) {
+            }
+
+            @Override
+            public void endSection() {
+            }
+
+            @Override
+            public void setCounter(String name, long value) {
+                if (Tracing.COUNTER_BYTES_WRITTEN.equals(name) && value > 16 * 1024 * 1024) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        try {
+            TrimVideoUtils.startTrim(new Mp4IndexLoader(source), dst.getPath() + File.separator, 0, 10000, options, NO_OP_LISTENER);
+            fail("The trim was not interrupted");
+        } catch (InterruptedIOException e) {
+            // expected
+        } finally {
+            Thread.interrupted();
+        }
+        // the partial output and its journal
+        assertEquals(2, dst.list().length);
+
+        assertEquals(1, TrimVideoUtils.discardResumableTrims(dst.getPath()));
+        assertEquals(0, dst.list().length);
+    }
+
+    private static File getOnlyFile(File folder) {
+        File[] files = folder.listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private static byte[] readBytes(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static TrimOptions recordMetrics(final List<TrimMetrics> metrics) {
+        TrimOptions options = new TrimOptions();
+        options.setMetricsListener(new OnTrimMetricsListener() {
+            @Override
+            public void onTrimMetrics(TrimMetrics trimMetrics) {
+                metrics.add(trimMetrics);
+            }
+        });
+        return options;
+    }
+
+    @Test
+    public void startTrim_reportsMetrics() throws Exception {
+        File source = createSource(4 * 1024 * 1024);
+        File dst = mFolder.newFolder("dst");
+        List<TrimMetrics> metrics = new ArrayList<>();
+        TrimVideoUtils.startTrim(new Mp4IndexLoader(source), dst.getPath() + File.separator, 2000, 6000, recordMetrics(metrics), NO_OP_LISTENER);
+
+        File out = getOnlyFile(dst);
+        assertEquals(1, metrics.size());
+        TrimMetrics trimMetrics = metrics.get(0);
+        assertEquals(out.length(), trimMetrics.getBytesWritten());
+        assertTrue(trimMetrics.getBytesRead() > 0 && trimMetrics.getBytesRead() < source.length());
+        assertTrue(trimMetrics.getReadCount() > 0 && trimMetrics.getWriteCount() > 0);
+        assertTrue(trimMetrics.getParseTimeNs() > 0 && trimMetrics.getIndexTimeNs() > 0);
+        assertTrue(trimMetrics.getCutPointTimeNs() > 0 && trimMetrics.getWriteTimeNs() > 0);
+        assertTrue(trimMetrics.getThroughputBytesPerSecond() > 0);
+    }
+
+    @Test
+    public void startTrim_copiesKeptResultWithMetrics() throws Exception {
+        File source = createSource(4 * 1024 * 1024);
+        TrimResultCache cache = new TrimResultCache(mFolder.newFolder("cache"), 64 * 1024 * 1024);
+        List<TrimMetrics> metrics = new ArrayList<>();
+        TrimOptions options = recordMetrics(metrics);
+        options.setDigestAlgorithm(TrimOptions.DIGEST_SHA256);
+
+        // separate folders, the output is named after the current second
+        File first = mFolder.newFolder("first");
+        File second = mFolder.newFolder("second");
+        Mp4IndexLoader loader = new Mp4IndexLoader(source);
+        TrimVideoUtils.startTrim(loader, first.getPath() + File.separator, 2000, 6000, options, cache, NO_OP_LISTENER);
+        TrimVideoUtils.startTrim(loader, second.getPath() + File.separator, 2000, 6000, options, cache, NO_OP_LISTENER);
+
+        File trimmed = getOnlyFile(first);
+        File copied = getOnlyFile(second);
+        assertTrue(Arrays.equals(readBytes(trimmed), readBytes(copied)));
+        assertEquals(2, metrics.size());
+        assertEquals(metrics.get(0).getDigest(), metrics.get(1).getDigest());
+        assertEquals(copied.length(), metrics.get(1).getBytesWritten());
+        // the copy reads the kept result, not the samples scattered over the source
+        assertEquals(copied.length(), metrics.get(1).getBytesRead());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.view;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PendingThumbnailsTest {
+
+    @Test
+    public void put_postsOnceUntilTaken() {
+        PendingThumbnails<String> pending = new PendingThumbnails<>();
+        assertTrue(pending.put(1, 3, "a"));
+        assertFalse(pending.put(1, 0, "b"));
+        assertFalse(pending.put(1, 7, "c"));
+
+        Map<Integer, String> thumbnails = pending.take(1);
+        assertEquals(3, thumbnails.size());
+        assertEquals("a", thumbnails.get(3));
+        assertEquals("b", thumbnails.get(0));
+        assertEquals("c", thumbnails.get(7));
+
+        assertTrue(pending.put(1, 4, "d"));
+        assertEquals(1, pending.take(1).size());
+    }
+
+    @Test
+    public void take_handsOutEachThumbnailOnce() {
+        PendingThumbnails<String> pending = new PendingThumbnails<>();
+        pending.put(1, 3, "a");
+        pending.put(1, 3, "b");
+        assertEquals("b", pending.take(1).get(3));
+        assertTrue(pending.take(1).isEmpty());
+    }
+
+    @Test
+    public void put_dropsOlderLayouts() {
+        PendingThumbnails<String> pending = new PendingThumbnails<>();
+        pending.put(1, 0, "old");
+        // a resize started a newer extraction, the older one still finishes a frame
+        pending.put(2, 1, "new");
+        assertFalse(pending.put(1, 2, "late"));
+
+        Map<Integer, String> thumbnails = pending.take(2);
+        assertEquals(1, thumbnails.size());
+        assertEquals("new", thumbnails.get(1));
+    }
+
+    @Test
+    public void take_dropsThumbnailsOfAnotherLayout() {
+        PendingThumbnails<String> pending = new PendingThumbnails<>();
+        pending.put(1, 0, "a");
+        // the view moved on before the UI thread got to them
+        assertNull(pending.take(2));
+        assertTrue(pending.put(2, 0, "b"));
+        assertEquals("b", pending.take(2).get(0));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.view;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ThumbnailRetrieverTest {
+
+    @Test
+    public void getScaledSize_coversTheThumbnail() {
+        assertArrayEquals(new int[]{171, 96}, ThumbnailRetriever.getScaledSize(1920, 1080, 96, 96));
+        assertArrayEquals(new int[]{96, 171}, ThumbnailRetriever.getScaledSize(1080, 1920, 96, 96));
+        assertArrayEquals(new int[]{200, 150}, ThumbnailRetriever.getScaledSize(640, 480, 200, 100));
+        assertArrayEquals(new int[]{267, 200}, ThumbnailRetriever.getScaledSize(640, 480, 100, 200));
+    }
+
+    @Test
+    public void getScaledSize_fitsExactlyWhereFloatsRoundUp() {
+        // in floats, these come out a row taller than the thumbnail
+        assertArrayEquals(new int[]{178, 100}, ThumbnailRetriever.getScaledSize(1280, 720, 100, 100));
+        assertArrayEquals(new int[]{171, 96}, ThumbnailRetriever.getScaledSize(640, 360, 96, 96));
+    }
+
+    @Test
+    public void getScaledSize_growsSmallFrames() {
+        // bigger than the frame, which is then decoded at its own size
+        assertArrayEquals(new int[]{171, 96}, ThumbnailRetriever.getScaledSize(160, 90, 96, 96));
+        assertArrayEquals(new int[]{96, 96}, ThumbnailRetriever.getScaledSize(96, 96, 96, 96));
+    }
+
+    @Test
+    public void getCropRect_keepsTheCenterAtTheSlotRatio() {
+        // the 178x100 frame of a 1280x720 video, in a square slot and in a wider one
+        assertArrayEquals(new int[]{39, 0, 139, 100}, crop(178, 100, 96, 96));
+        assertArrayEquals(new int[]{0, 5, 178, 94}, crop(178, 100, 200, 100));
+        assertArrayEquals(new int[]{0, 0, 100, 100}, crop(100, 100, 96, 96));
+        assertArrayEquals(new int[]{0, 37, 96, 133}, crop(96, 171, 96, 96));
+    }
+
+    private static int[] crop(int bitmapWidth, int bitmapHeight, int width, int height) {
+        Rect crop = new Rect();
+        ThumbnailRetriever.getCropRect(bitmapWidth, bitmapHeight, width, height, crop);
+        return new int[]{crop.left, crop.top, crop.right, crop.bottom};
+    }
+}
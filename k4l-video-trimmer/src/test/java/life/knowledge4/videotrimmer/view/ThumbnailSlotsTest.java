@@ -0,0 +1,118 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2016 Knowledge, education for life.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package life.knowledge4.videotrimmer.view;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThumbnailSlotsTest {
+
+    @Test
+    public void getTileCount_doublesWithTheZoomLevel() {
+        assertEquals(10, ThumbnailSlots.getTileCount(1000, 100, 0, 1));
+        assertEquals(11, ThumbnailSlots.getTileCount(1050, 100, 0, 1));
+        assertEquals(20, ThumbnailSlots.getTileCount(1000, 100, 0.25f, 0.75f));
+        assertEquals(20, ThumbnailSlots.getTileCount(1000, 100, 0, 0.51f));
+        assertEquals(40, ThumbnailSlots.getTileCount(1000, 100, 0.3f, 0.7f));
+        // a window a hair smaller than the video stays on its level
+        assertEquals(10, ThumbnailSlots.getTileCount(1000, 100, 0, 0.995f));
+    }
+
+    @Test
+    public void getTileCount_slotsAreAtMostAThumbnailWide() {
+        for (int i = 1; i < 100; i++) {
+            float span = i / 100f;
+            int tileCount = ThumbnailSlots.getTileCount(1080, 96, 0, span);
+            assertTrue("span " + span, 1080 / (span * tileCount) <= 96);
+        }
+    }
+
+    @Test
+    public void getVisibleTiles_coverTheWindow() {
+        assertEquals(10, ThumbnailSlots.getFirstVisibleTile(0.25f, 40));
+        assertEquals(26, ThumbnailSlots.getLastVisibleTile(0.65f, 40));
+        assertEquals(9, ThumbnailSlots.getFirstVisibleTile(0.249f, 40));
+        assertEquals(27, ThumbnailSlots.getLastVisibleTile(0.651f, 40));
+        assertEquals(0, ThumbnailSlots.getFirstVisibleTile(-0.1f, 40));
+        assertEquals(40, ThumbnailSlots.getLastVisibleTile(1.1f, 40));
+    }
+
+    @Test
+    public void getTimesUs_evenlySpacedWithoutKeyFrames() {
+        assertArrayEquals(new long[]{0, 1000, 2000, 3000}, ThumbnailSlots.getTimesUs(4, 1000, null));
+        assertArrayEquals(new long[]{0, 1000, 2000, 3000}, ThumbnailSlots.getTimesUs(4, 1000, new long[0]));
+    }
+
+    @Test
+    public void getTimesUs_movesToTheClosestKeyFrame() {
+        // ties go to the earlier key frame, times past the last one take it
+        assertArrayEquals(new long[]{0, 900, 2600, 2600},
+                ThumbnailSlots.getTimesUs(4, 1000, new long[]{0, 900, 2600}));
+        assertArrayEquals(new long[]{500, 1000, 1500},
+                ThumbnailSlots.getTimesUs(3, 1000, new long[]{500, 1000, 1500}));
+    }
+
+    @Test
+    public void getTimesUs_takesAnotherKeyFrameOfTheSlot() {
+        // 2000 is as close to 1400 as to 2600, but 1400 is taken and 2600 is still in its slot
+        assertArrayEquals(new long[]{0, 1400, 2600},
+                ThumbnailSlots.getTimesUs(3, 1000, new long[]{0, 1400, 2600}));
+        // 3000 is past the slot of 2000, which is left with the key frame before it
+        assertArrayEquals(new long[]{0, 1400, 1400},
+                ThumbnailSlots.getTimesUs(3, 1000, new long[]{0, 1400, 3000}));
+    }
+
+    @Test
+    public void getTimesUs_sharesKeyFramesWhenTheyRunOut() {
+        assertArrayEquals(new long[]{0, 1400, 1400, 1400},
+                ThumbnailSlots.getTimesUs(4, 1000, new long[]{0, 1400}));
+    }
+
+    @Test
+    public void getWorkerTiles_splitsTheVisibleSlotsThenThePrefetchedOnes() {
+        int[] visible = {4, 5, 6, 7, 8};
+        int[] prefetch = {9, 10, 2, 3};
+        assertArrayEquals(new int[]{4, 5, 9, 10}, ThumbnailSlots.getWorkerTiles(visible, prefetch, 0, 2));
+        assertArrayEquals(new int[]{6, 7, 8, 2, 3}, ThumbnailSlots.getWorkerTiles(visible, prefetch, 1, 2));
+    }
+
+    @Test
+    public void getWorkerTiles_givesEverySlotToOneWorker() {
+        int[] visible = {0, 1, 2, 3, 4, 5, 6};
+        int[] prefetch = {7, 8};
+        for (int workers = 1; workers <= 9; workers++) {
+            int[] all = new int[0];
+            for (int worker = 0; worker < workers; worker++) {
+                all = ThumbnailSlots.concat(all, ThumbnailSlots.getWorkerTiles(visible, prefetch, worker, workers));
+            }
+            Arrays.sort(all);
+            assertArrayEquals(ThumbnailSlots.concat(visible, prefetch), all);
+        }
+    }
+}